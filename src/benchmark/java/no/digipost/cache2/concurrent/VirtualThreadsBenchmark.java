@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.concurrent;
+
+import no.digipost.cache2.inmemory.Cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static no.digipost.cache2.inmemory.CacheConfig.initialCapacity;
+
+/**
+ * Measures the throughput of {@link Cache} loads which block, e.g. on HTTP calls, when
+ * 10 000 loads are run concurrently on a fixed pool of platform threads and on the executor from
+ * {@link VirtualThreads#newExecutor(String)}, which uses virtual threads on Java 21 or later,
+ * or else a cached pool of platform threads. This is not part of the test sources, and is compiled
+ * with the {@code benchmarks} profile. Run the {@code main} method on the Java version to measure.
+ * <p>
+ * The caches are created with an initial capacity well above the number of concurrent loads,
+ * as loads of keys sharing a bin of the cache's underlying hash table block each other.
+ * On Java 21 to 23, the loads pin their virtual threads to the carrier threads, as they block
+ * while the cache holds a monitor.
+ */
+public class VirtualThreadsBenchmark {
+
+	private static final int CONCURRENT_LOADS = 10_000;
+	private static final long BLOCKED_MILLIS = 100;
+	private static final int PLATFORM_POOL_SIZE = 200;
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("Java " + System.getProperty("java.version") + ", virtual threads available: " + VirtualThreads.areAvailable());
+		System.out.println(CONCURRENT_LOADS + " concurrent loads, each blocked for " + BLOCKED_MILLIS + " ms");
+
+		ExecutorService platformPool = Executors.newFixedThreadPool(PLATFORM_POOL_SIZE);
+		ExecutorService executor = VirtualThreads.newExecutor("benchmark-loader");
+		try {
+			measure("warmup", executor);
+			System.out.printf("Fixed pool of %d platform threads: %,10.0f loads/s%n", PLATFORM_POOL_SIZE, measure("platform", platformPool));
+			System.out.printf("VirtualThreads.newExecutor:        %,10.0f loads/s%n", measure("virtual", executor));
+		} finally {
+			platformPool.shutdown();
+			executor.shutdown();
+		}
+	}
+
+	private static double measure(String name, ExecutorService executor) throws InterruptedException {
+		Cache<Integer, Integer> cache = Cache.create("benchmark-" + name, initialCapacity(2 * CONCURRENT_LOADS));
+		CountDownLatch done = new CountDownLatch(CONCURRENT_LOADS);
+		long start = System.nanoTime();
+		for (int i = 0; i < CONCURRENT_LOADS; i++) {
+			int key = i;
+			executor.execute(() -> {
+				try {
+					cache.get(key, () -> {
+						Thread.sleep(BLOCKED_MILLIS);
+						return key;
+					});
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		return CONCURRENT_LOADS / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.fallback.testharness.ZipfianKeys;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static no.digipost.cache2.inmemory.CacheConfig.costAwareMaximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.executor;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+
+/**
+ * Measures the total time spent loading values from a simulated backend for a trace of requests
+ * with a Zipfian distribution of keys, where a tenth of the keys are costly to load, with a
+ * {@link CacheConfig#maximumSize(long) maximum size} and a
+ * {@link CacheConfig#costAwareMaximumSize(long, Duration) cost-aware maximum size}.
+ * As the cost-aware cache may hold more entries than its maximum size, it is also compared to a cache
+ * with a maximum size of the number of entries the cost-aware cache ended up holding.
+ * The loads are not actually run, but report their cost.
+ * This is not part of the test sources, and is compiled with the {@code benchmarks} profile.
+ */
+public class CostAwareEvictionBenchmark {
+
+	private static final int REQUESTS = 2_000_000;
+	private static final int KEYS = 100_000;
+	private static final long MAXIMUM_SIZE = 5_000;
+	private static final Duration CHEAP = Duration.ofMillis(2);
+	private static final Duration COSTLY = Duration.ofSeconds(3);
+
+	public static void main(String[] args) {
+		ZipfianKeys keys = new ZipfianKeys(KEYS, 0.9);
+		int[] trace = new int[REQUESTS];
+		Random random = new Random(42);
+		for (int i = 0; i < REQUESTS; i++) {
+			trace[i] = keys.next(random);
+		}
+		System.out.println(REQUESTS + " requests of " + keys + ", every tenth key costing " + COSTLY + ", others " + CHEAP);
+
+		Cache<Integer, Integer> costAware = Cache.create("cost-aware", costAwareMaximumSize(MAXIMUM_SIZE, CHEAP), executor(Runnable::run));
+		Duration costAwareTime = run(costAware, trace);
+		long costAwareEntries = costAware.snapshot().getEstimatedSize();
+
+		System.out.printf("maximumSize(%d):             backend time %s%n", MAXIMUM_SIZE,
+				run(Cache.create("size", maximumSize(MAXIMUM_SIZE), executor(Runnable::run)), trace));
+		System.out.printf("maximumSize(%d):             backend time %s%n", costAwareEntries,
+				run(Cache.create("same-size", maximumSize(costAwareEntries), executor(Runnable::run)), trace));
+		System.out.printf("costAwareMaximumSize(%d):    backend time %s, holding %d entries%n", MAXIMUM_SIZE, costAwareTime, costAwareEntries);
+	}
+
+	private static Duration run(Cache<Integer, Integer> cache, int[] trace) {
+		AtomicLong backendNanos = new AtomicLong();
+		for (int key : trace) {
+			cache.get(key, () -> {
+				Duration cost = key % 10 == 0 ? COSTLY : CHEAP;
+				backendNanos.addAndGet(cost.toNanos());
+				Cache.reportLoadCost(cost);
+				return key;
+			});
+		}
+		return Duration.ofNanos(backendNanos.get());
+	}
+}
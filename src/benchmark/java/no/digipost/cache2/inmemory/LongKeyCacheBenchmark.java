@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+
+/**
+ * Compares throughput and heap footprint of {@link LongKeyCache} and {@link Cache Cache&lt;Long, V&gt;}.
+ * This is not part of the test sources, and is compiled with the {@code benchmarks} profile.
+ * Run the {@code main} method with a reasonably sized heap, e.g. {@code -Xmx2g}, and preferably
+ * with {@code -XX:+UseParallelGC} to make the footprint measurements less noisy.
+ */
+public class LongKeyCacheBenchmark {
+
+	private static final int ENTRIES = 1_000_000;
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static final long MEASURE_MILLIS = 5_000;
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("Entries: " + ENTRIES + ", threads: " + THREADS);
+
+		long before = usedHeap();
+		LongKeyCache<Object> longKeyCache = LongKeyCache.create("benchmark-long-key", maximumSize(ENTRIES));
+		for (long key = 0; key < ENTRIES; key++) {
+			longKeyCache.get(key, k -> Boolean.TRUE);
+		}
+		long longKeyCacheFootprint = usedHeap() - before;
+		double longKeyCacheThroughput = measure(key -> longKeyCache.get(key, k -> Boolean.TRUE) != null ? 1 : 0);
+
+		before = usedHeap();
+		Cache<Long, Object> boxedKeyCache = Cache.create("benchmark-boxed-key", maximumSize(ENTRIES));
+		for (long key = 0; key < ENTRIES; key++) {
+			boxedKeyCache.get(key, () -> Boolean.TRUE);
+		}
+		long boxedKeyCacheFootprint = usedHeap() - before;
+		double boxedKeyCacheThroughput = measure(key -> boxedKeyCache.get(key, () -> Boolean.TRUE) != null ? 1 : 0);
+
+		System.out.printf("LongKeyCache<V>:  %,15.0f gets/s, %,6d bytes/entry%n", longKeyCacheThroughput, longKeyCacheFootprint / ENTRIES);
+		System.out.printf("Cache<Long, V>:   %,15.0f gets/s, %,6d bytes/entry%n", boxedKeyCacheThroughput, boxedKeyCacheFootprint / ENTRIES);
+	}
+
+	private static double measure(LongUnaryOperator get) throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Long>> results = new ArrayList<>();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+			for (int i = 0; i < THREADS; i++) {
+				results.add(threads.submit(() -> {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long operations = 0;
+					while (System.nanoTime() < deadline) {
+						for (int j = 0; j < 1000; j++) {
+							operations += get.applyAsLong(random.nextInt(ENTRIES));
+						}
+					}
+					return operations;
+				}));
+			}
+			long operations = 0;
+			for (Future<Long> result : results) {
+				operations += result.get();
+			}
+			return operations * 1000.0 / MEASURE_MILLIS;
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
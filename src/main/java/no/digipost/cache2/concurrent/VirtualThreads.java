@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors running tasks on virtual threads when the JVM is Java 21 or later. On earlier Java versions,
+ * the executors fall back to running tasks on platform threads.
+ * <p>
+ * Note that a {@link no.digipost.cache2.inmemory.Cache} loads values while holding a monitor of its
+ * underlying hash table, and a virtual thread blocking while holding a monitor is pinned to its carrier
+ * thread on Java 21 to 23. Loads blocking on I/O on virtual threads are thus limited by the number of
+ * carrier threads on these Java versions.
+ * <p>
+ * The library is compiled for Java 8, so virtual threads are looked up reflectively.
+ * Use the executors with e.g. {@link no.digipost.cache2.inmemory.CacheConfig#executor(java.util.concurrent.Executor)},
+ * {@link no.digipost.cache2.fallback.disk.LoaderWithDiskFallbackDecorator#withFallbackWritesOn(java.util.concurrent.Executor)}
+ * and {@link no.digipost.cache2.inmemory.Cache#restoreFrom(java.nio.file.Path, no.digipost.cache2.fallback.marshall.Marshaller, no.digipost.cache2.fallback.marshall.Marshaller, java.util.concurrent.Executor)}.
+ */
+public final class VirtualThreads {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private static final MethodHandle VIRTUAL_THREAD_FACTORY = lookUpVirtualThreadFactory();
+
+	/**
+	 * @return whether the JVM supports virtual threads.
+	 */
+	public static boolean areAvailable() {
+		return VIRTUAL_THREAD_FACTORY != null;
+	}
+
+	/**
+	 * Create an executor which runs each task on a new virtual thread if
+	 * {@link #areAvailable() available}, or else on a cached pool of daemon platform threads.
+	 *
+	 * @param name the prefix of the names of the threads.
+	 */
+	public static ExecutorService newExecutor(String name) {
+		if (VIRTUAL_THREAD_FACTORY != null) {
+			try {
+				ThreadFactory virtualThreads = (ThreadFactory) VIRTUAL_THREAD_FACTORY.invoke(name + "-", 0L);
+				return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, virtualThreads);
+			} catch (Throwable e) {
+				LOG.warn("Unable to create executor with virtual threads because {}: '{}'. Using platform threads.", e.getClass().getSimpleName(), e.getMessage());
+			}
+		}
+		AtomicInteger threadNumber = new AtomicInteger();
+		return Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static MethodHandle lookUpVirtualThreadFactory() {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+			MethodHandle name = lookup.findVirtual(virtualBuilderClass, "name", MethodType.methodType(virtualBuilderClass, String.class, long.class));
+			MethodHandle factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+			// (String, long) -> Thread.ofVirtual().name(prefix, start).factory()
+			MethodHandle namedBuilder = MethodHandles.collectArguments(name, 0, ofVirtual);
+			return MethodHandles.filterReturnValue(namedBuilder, factory.asType(MethodType.methodType(ThreadFactory.class, virtualBuilderClass)));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.debug("Virtual threads are not available in Java {}", System.getProperty("java.version"));
+			return null;
+		}
+	}
+
+	private VirtualThreads() {
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps fallback values using another {@link FallbackKeeper} on an {@link Executor},
+ * so that the loaded value is returned without waiting for the fallback value to be written.
+ * Failures to keep a value, including the executor rejecting to run it, are given to the
+ * {@link FallbackKeeperFailedHandler}.
+ */
+public class ExecutingFallbackKeeper<K, V> implements FallbackKeeper<K, V> {
+
+	private final FallbackKeeper<K, V> fallbackKeeper;
+	private final Executor executor;
+	private final FallbackKeeperFailedHandler<? super K, ? super V> fallbackWriteFailedHandler;
+
+	public ExecutingFallbackKeeper(FallbackKeeper<K, V> fallbackKeeper, Executor executor, FallbackKeeperFailedHandler<? super K, ? super V> fallbackWriteFailedHandler) {
+		this.fallbackKeeper = fallbackKeeper;
+		this.executor = executor;
+		this.fallbackWriteFailedHandler = fallbackWriteFailedHandler;
+	}
+
+	@Override
+	public void keep(K key, V value) {
+		try {
+			executor.execute(() -> {
+				try {
+					fallbackKeeper.keep(key, value);
+				} catch (Exception e) {
+					fallbackWriteFailedHandler.handle(key, value, e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			fallbackWriteFailedHandler.handle(key, value, e);
+		}
+	}
+}
@@ -16,6 +16,7 @@
 package no.digipost.cache2.fallback;
 
 import no.digipost.cache2.loader.Loader;
+import no.digipost.cache2.loader.ReloadingLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,9 +28,12 @@ import org.slf4j.LoggerFactory;
  * Should the write-operation start to fail, the fallback-value may become out-dated. Currently,
  * this content is never considered to be expired, and it will continue to return a "stale" copy of the cache
  * until the {@link FallbackKeeper#keep(Object, Object) keep}-operation succeeds (thus overwriting the stale data).
+ * <p>
+ * If the primary loader is a {@link ReloadingLoader}, reloading a value is delegated to it, and the
+ * fallback value is not kept again if the primary loader returns the previous value unchanged.
  *
  */
-public class LoaderWithFallback<K, V> implements Loader<K, V> {
+public class LoaderWithFallback<K, V> implements ReloadingLoader<K, V> {
 
 	private static final Logger LOG = LoggerFactory.getLogger(LoaderWithFallback.class);
 
@@ -67,7 +71,30 @@ public class LoaderWithFallback<K, V> implements Loader<K, V> {
 		} catch (Exception loaderFailedException) {
 			return tryRecoverFailingLoader(key, loaderFailedException);
 		}
+		return keep(key, newCacheContent);
+	}
+
+	@Override
+	public V reload(K key, V previous) throws Exception {
+		if (!(cacheLoader instanceof ReloadingLoader)) {
+			return load(key);
+		}
+		@SuppressWarnings("unchecked")
+		ReloadingLoader<? super K, V> reloadingLoader = (ReloadingLoader<? super K, V>) cacheLoader;
+		V newCacheContent;
+		try {
+			newCacheContent = reloadingLoader.reload(key, previous);
+		} catch (Exception loaderFailedException) {
+			return tryRecoverFailingLoader(key, loaderFailedException);
+		}
+		if (newCacheContent == previous) {
+			LOG.debug("Reloaded value for key '{}' is unchanged. Not keeping it again as fallback.", key);
+			return newCacheContent;
+		}
+		return keep(key, newCacheContent);
+	}
 
+	private V keep(K key, V newCacheContent) {
 		try {
 			fallbackKeeper.keep(key, newCacheContent);
 		} catch (Exception e) {
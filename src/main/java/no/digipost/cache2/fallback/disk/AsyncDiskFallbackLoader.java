@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import no.digipost.cache2.fallback.marshall.Marshaller;
+import no.digipost.cache2.io.ByteBufferInputStream;
+import no.digipost.cache2.latency.Latencies;
+import no.digipost.cache2.loader.Loader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static no.digipost.cache2.latency.Latencies.Operation.FALLBACK_LOAD;
+
+/**
+ * Loads fallback values written by a {@link LoaderWithDiskFallbackDecorator} without blocking the
+ * calling thread. The fallback file is read using an {@link AsynchronousFileChannel} into a pooled
+ * buffer, and the value is read from the buffer by the {@link Marshaller} on a given executor.
+ * <p>
+ * Created with {@link LoaderWithDiskFallbackDecorator#asyncFallbackLoader(Executor)}.
+ */
+public class AsyncDiskFallbackLoader<K, V> implements Loader<K, V> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AsyncDiskFallbackLoader.class);
+
+	/**
+	 * The size of the pooled buffers. Larger fallback files are read into buffers allocated for them.
+	 */
+	static final int POOLED_BUFFER_SIZE = 64 * 1024;
+
+	private final FallbackFile.Resolver<K> fileResolver;
+	private final Marshaller<V> marshaller;
+	private final Executor decodingExecutor;
+	private final Latencies latencies;
+	private final Queue<ByteBuffer> buffers = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+	AsyncDiskFallbackLoader(FallbackFile.Resolver<K> fileResolver, Marshaller<V> marshaller, Executor decodingExecutor, Latencies latencies) {
+		this.fileResolver = fileResolver;
+		this.marshaller = marshaller;
+		this.decodingExecutor = decodingExecutor;
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Load the fallback value of a key.
+	 *
+	 * @return the fallback value, which completes exceptionally if there is no fallback file
+	 *         for the key, or it can not be read.
+	 */
+	public CompletableFuture<V> loadAsync(K key) {
+		long start = System.nanoTime();
+		CompletableFuture<V> value = new CompletableFuture<>();
+		try {
+			FallbackFile fallbackFile = fileResolver.resolveFor(key);
+			AsynchronousFileChannel channel = AsynchronousFileChannel.open(fallbackFile.existingFile(), READ);
+			ByteBuffer buffer;
+			try {
+				buffer = acquireBuffer(channel.size());
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+			channel.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+				@Override
+				public void completed(Integer read, ByteBuffer buffer) {
+					if (read >= 0 && buffer.hasRemaining()) {
+						channel.read(buffer, buffer.position(), buffer, this);
+						return;
+					}
+					close(channel);
+					buffer.flip();
+					try {
+						decodingExecutor.execute(() -> decode(fallbackFile, buffer, value));
+					} catch (RuntimeException e) {
+						releaseBuffer(buffer);
+						value.completeExceptionally(e);
+					}
+				}
+
+				@Override
+				public void failed(Throwable cause, ByteBuffer buffer) {
+					close(channel);
+					releaseBuffer(buffer);
+					value.completeExceptionally(cause);
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			value.completeExceptionally(e);
+		}
+		return value.whenComplete((v, e) -> latencies.recordSince(FALLBACK_LOAD, start));
+	}
+
+	/**
+	 * Load the fallback value of a key, blocking until it is loaded.
+	 * Prefer {@link #loadAsync(Object)} to not block the calling thread.
+	 */
+	@Override
+	public V load(K key) throws Exception {
+		try {
+			return loadAsync(key).get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	private void decode(FallbackFile fallbackFile, ByteBuffer buffer, CompletableFuture<V> value) {
+		try (InputStream content = fallbackFile.contentOf(new ByteBufferInputStream(buffer))) {
+			value.complete(marshaller.read(content));
+		} catch (Exception | Error e) {
+			value.completeExceptionally(e);
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	private ByteBuffer acquireBuffer(long size) throws IOException {
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IOException("Fallback file of " + size + " bytes is too large to be read");
+		} else if (size > POOLED_BUFFER_SIZE) {
+			return ByteBuffer.allocate((int) size);
+		}
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(POOLED_BUFFER_SIZE);
+		}
+		buffer.limit((int) size);
+		return buffer;
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		if (buffer.capacity() == POOLED_BUFFER_SIZE) {
+			buffer.clear();
+			buffers.offer(buffer);
+		}
+	}
+
+	private static void close(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.warn("Failed to close {} because {}: '{}'", channel, e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+}
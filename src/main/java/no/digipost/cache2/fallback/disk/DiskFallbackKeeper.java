@@ -18,26 +18,43 @@ package no.digipost.cache2.fallback.disk;
 import no.digipost.cache2.fallback.FallbackKeeper;
 import no.digipost.cache2.fallback.disk.FallbackFile.Resolver;
 import no.digipost.cache2.fallback.marshall.Marshaller;
+import no.digipost.cache2.latency.Latencies;
 
 import java.io.OutputStream;
 
+import static no.digipost.cache2.latency.Latencies.Operation.FALLBACK_KEEP;
+import static no.digipost.cache2.latency.Latencies.Operation.LOCK_WAIT;
+
 class DiskFallbackKeeper<K, V> implements FallbackKeeper<K, V> {
 
 	private Resolver<K> fileResolver;
 	private Marshaller<V> marshaller;
+	private Latencies latencies;
 
 	public DiskFallbackKeeper(FallbackFile.Resolver<K> fileResolver, Marshaller<V> marshaller) {
+		this(fileResolver, marshaller, Latencies.NOT_RECORDED);
+	}
+
+	public DiskFallbackKeeper(FallbackFile.Resolver<K> fileResolver, Marshaller<V> marshaller, Latencies latencies) {
 		this.fileResolver = fileResolver;
 		this.marshaller = marshaller;
+		this.latencies = latencies;
 	}
 
 	@Override
 	public void keep(K key, final V value) throws Exception {
 		FallbackFile fallbackFile = fileResolver.resolveFor(key);
-		fileResolver.resolveFor(key).lockedFile.runIfLock(() -> {
-		    try (OutputStream out = fallbackFile.write()) {
-		        marshaller.write(value, out);
-		    }
-		});
+		long lockStart = System.nanoTime();
+		boolean locked = fallbackFile.lockedFile.tryLock();
+		latencies.recordSince(LOCK_WAIT, lockStart);
+		if (locked) {
+			long keepStart = System.nanoTime();
+			try (OutputStream out = fallbackFile.write()) {
+				marshaller.write(value, out);
+			} finally {
+				fallbackFile.lockedFile.release();
+				latencies.recordSince(FALLBACK_KEEP, keepStart);
+			}
+		}
 	}
 }
@@ -16,24 +16,36 @@
 package no.digipost.cache2.fallback.disk;
 
 import no.digipost.cache2.fallback.marshall.Marshaller;
+import no.digipost.cache2.latency.Latencies;
 import no.digipost.cache2.loader.Loader;
 
 import java.io.InputStream;
 
+import static no.digipost.cache2.latency.Latencies.Operation.FALLBACK_LOAD;
+
 public class DiskFallbackLoader<K, V> implements Loader<K, V> {
 
 	private final FallbackFile.Resolver<K> fileResolver;
 	private final Marshaller<V> marshaller;
+	private final Latencies latencies;
 
 	DiskFallbackLoader(FallbackFile.Resolver<K> fileResolver, Marshaller<V> marshaller) {
+		this(fileResolver, marshaller, Latencies.NOT_RECORDED);
+	}
+
+	DiskFallbackLoader(FallbackFile.Resolver<K> fileResolver, Marshaller<V> marshaller, Latencies latencies) {
 		this.fileResolver = fileResolver;
 		this.marshaller = marshaller;
+		this.latencies = latencies;
 	}
 
 	@Override
 	public V load(K key) throws Exception {
+		long start = System.nanoTime();
 		try (InputStream fallbackContent = fileResolver.resolveFor(key).read()) {
 			return marshaller.read(fallbackContent);
+		} finally {
+			latencies.recordSince(FALLBACK_LOAD, start);
 		}
 	}
 
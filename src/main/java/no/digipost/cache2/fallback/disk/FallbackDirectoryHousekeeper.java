@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static no.digipost.cache2.fallback.disk.FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME;
+
+/**
+ * Cleans up a directory of fallback files written by a {@link LoaderWithDiskFallbackDecorator}.
+ * Each run of the housekeeper
+ * <ol>
+ *   <li>removes temp files and lock files older than a threshold, which have been left behind
+ *       by processes crashing while writing a fallback file or holding its lock,</li>
+ *   <li>removes the least recently written fallback files, until the total size of the fallback files,
+ *       temp files and lock files is within the disk budget. Fallback files which are currently locked
+ *       are not removed.</li>
+ * </ol>
+ * Only the files which the {@link FallbackFileNamingStrategy#isFallbackFile(Path, Path) naming strategy}
+ * of the directory tells may be fallback files, and their temp files and lock files, are considered.
+ * Other files are left alone, and do not count against the disk budget. Files which the naming strategy
+ * can not tell apart from fallback files, such as the journal of a
+ * {@link no.digipost.cache2.invalidation.disk.SharedDirectoryInvalidationBus} sharing the directory,
+ * must be {@link #skipping(String...) skipped} explicitly.
+ * <p>
+ * Note that removing a fallback file means its value is not available as fallback until it has been
+ * successfully loaded again, so the disk budget should leave room for the values one wants to keep
+ * as fallback.
+ * <p>
+ * The housekeeper may run regularly on its own thread when {@link #start(Duration) started},
+ * or be invoked explicitly with {@link #clean()}.
+ */
+public final class FallbackDirectoryHousekeeper implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FallbackDirectoryHousekeeper.class);
+
+	/**
+	 * The default disk budget, which is unlimited.
+	 */
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	private final Path directory;
+	private final FallbackFileNamingStrategy<?> namingStrategy;
+	private final long diskBudgetBytes;
+	private final Duration orphanAge;
+	private final Clock clock;
+	private final List<PathMatcher> skippedFiles;
+	private ScheduledExecutorService scheduler;
+
+
+	/**
+	 * Create a housekeeper for a directory of fallback files named by
+	 * {@link FallbackFileNamingStrategy#USE_KEY_TOSTRING_AS_FILENAME}, removing orphaned files older
+	 * than the {@link LockedFile#DEFAULT_EXPIRY_TIME default lock expiry time}.
+	 */
+	public FallbackDirectoryHousekeeper(Path directory, long diskBudgetBytes) {
+		this(directory, USE_KEY_TOSTRING_AS_FILENAME, diskBudgetBytes, LockedFile.DEFAULT_EXPIRY_TIME, Clock.systemDefaultZone());
+	}
+
+	/**
+	 * @param directory the directory of fallback files.
+	 * @param namingStrategy the naming strategy of the fallback files in the directory.
+	 * @param diskBudgetBytes the maximum total size of the fallback files, temp files and lock files in the directory.
+	 * @param orphanAge the age of temp files and lock files for them to be considered left behind.
+	 *                  This must be longer than it may take to write a fallback file, and should be
+	 *                  at least the maximum locking duration of the fallback files.
+	 * @param clock the clock used to determine the age of files.
+	 */
+	public FallbackDirectoryHousekeeper(Path directory, FallbackFileNamingStrategy<?> namingStrategy, long diskBudgetBytes, Duration orphanAge, Clock clock) {
+		this(directory, namingStrategy, diskBudgetBytes, orphanAge, clock, emptyList());
+	}
+
+	private FallbackDirectoryHousekeeper(Path directory, FallbackFileNamingStrategy<?> namingStrategy, long diskBudgetBytes, Duration orphanAge, Clock clock, List<PathMatcher> skippedFiles) {
+		if (diskBudgetBytes < 0) {
+			throw new IllegalArgumentException("Disk budget must not be negative, but was " + diskBudgetBytes);
+		}
+		this.directory = directory;
+		this.namingStrategy = namingStrategy;
+		this.diskBudgetBytes = diskBudgetBytes;
+		this.orphanAge = orphanAge;
+		this.clock = clock;
+		this.skippedFiles = skippedFiles;
+	}
+
+	/**
+	 * Leave the files with names matching any of the given glob patterns alone, along with their temp
+	 * files and lock files, e.g. {@link no.digipost.cache2.invalidation.disk.SharedDirectoryInvalidationBus#JOURNAL_FILENAMES}
+	 * when the fallback directory is shared with the journal of invalidations.
+	 *
+	 * @param filenameGlobs glob patterns, as given to {@link java.nio.file.FileSystem#getPathMatcher(String)},
+	 *                      matching the names of files, without their directories.
+	 * @return a new housekeeper, skipping the given files in addition to any skipped by this one.
+	 */
+	public FallbackDirectoryHousekeeper skipping(String ... filenameGlobs) {
+		List<PathMatcher> skipped = new ArrayList<>(skippedFiles);
+		for (String glob : filenameGlobs) {
+			skipped.add(directory.getFileSystem().getPathMatcher("glob:" + glob));
+		}
+		return new FallbackDirectoryHousekeeper(directory, namingStrategy, diskBudgetBytes, orphanAge, clock, unmodifiableList(skipped));
+	}
+
+	/**
+	 * Run the housekeeper regularly on its own thread, until {@link #close() closed}.
+	 *
+	 * @return this housekeeper.
+	 */
+	public synchronized FallbackDirectoryHousekeeper start(Duration interval) {
+		if (scheduler != null) {
+			throw new IllegalStateException("Housekeeping of " + directory + " is already started");
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "fallback-housekeeping-" + directory.getFileName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				clean();
+			} catch (RuntimeException e) {
+				LOG.error("Unexpected {} when cleaning up fallback directory {}: '{}'", e.getClass().getSimpleName(), directory, e.getMessage(), e);
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	/**
+	 * Clean up the fallback directory once.
+	 *
+	 * @return what was removed from the directory.
+	 */
+	public synchronized Result clean() {
+		if (!Files.isDirectory(directory)) {
+			LOG.debug("Fallback directory {} does not exist. Nothing to clean up.", directory);
+			return new Result(0, 0, 0, 0, 0);
+		}
+		Instant orphanedBefore = clock.instant().minus(orphanAge);
+		List<FileEntry> fallbackFiles = new ArrayList<>();
+		int tempFiles = 0, lockFiles = 0, evictedFiles = 0;
+		long reclaimedBytes = 0, remainingBytes = 0;
+
+		for (FileEntry file : listFiles()) {
+			String filename = file.path.getFileName().toString();
+			boolean isLockFile = filename.endsWith(LockedFile.LOCK_FILE_POSTFIX);
+			boolean isTempfile = !isLockFile && (FallbackFile.isTempfile(file.path) || isLegacyTempfileLeftBehind(file, orphanedBefore));
+			Path fallbackFile = isLockFile ? file.path.resolveSibling(filename.substring(0, filename.length() - LockedFile.LOCK_FILE_POSTFIX.length()))
+					: isTempfile ? FallbackFile.targetOfTempfile(file.path) : file.path;
+			if (!isFallbackFile(fallbackFile)) {
+				continue;
+			}
+			remainingBytes += file.size;
+			if ((isLockFile || isTempfile) && file.lastModified.isBefore(orphanedBefore)) {
+				if (delete(file.path)) {
+					reclaimedBytes += file.size;
+					remainingBytes -= file.size;
+					if (isLockFile) {
+						lockFiles++;
+					} else {
+						tempFiles++;
+					}
+				}
+				continue;
+			}
+			if (!isLockFile && !isTempfile) {
+				fallbackFiles.add(file);
+			}
+		}
+
+		if (remainingBytes > diskBudgetBytes) {
+			fallbackFiles.sort(Comparator.comparing((FileEntry file) -> file.lastModified));
+			for (FileEntry file : fallbackFiles) {
+				if (remainingBytes <= diskBudgetBytes) {
+					break;
+				}
+				if (evict(file.path)) {
+					evictedFiles++;
+					reclaimedBytes += file.size;
+					remainingBytes -= file.size;
+				}
+			}
+			if (remainingBytes > diskBudgetBytes) {
+				LOG.warn("Fallback directory {} uses {} bytes after cleaning up, which is more than the disk budget of {} bytes",
+						directory, remainingBytes, diskBudgetBytes);
+			}
+		}
+
+		Result result = new Result(tempFiles, lockFiles, evictedFiles, reclaimedBytes, remainingBytes);
+		if (reclaimedBytes > 0 || tempFiles + lockFiles + evictedFiles > 0) {
+			LOG.info("Cleaned up fallback directory {}: {}", directory, result);
+		} else {
+			LOG.debug("Nothing to clean up in fallback directory {}, which uses {} bytes", directory, remainingBytes);
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+	private List<FileEntry> listFiles() {
+		List<FileEntry> files = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.forEach(path -> {
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					if (attributes.isRegularFile()) {
+						files.add(new FileEntry(path, attributes.size(), attributes.lastModifiedTime().toInstant()));
+					}
+				} catch (NoSuchFileException e) {
+					LOG.trace("{} was removed while listing the fallback directory", path);
+				} catch (IOException e) {
+					LOG.warn("Unable to read attributes of {} because {}: '{}'", path, e.getClass().getSimpleName(), e.getMessage());
+				}
+			});
+		} catch (IOException | UncheckedIOException e) {
+			LOG.warn("Unable to list all files in fallback directory {} because {}: '{}'", directory, e.getClass().getSimpleName(), e.getMessage());
+		}
+		return files;
+	}
+
+	private boolean isFallbackFile(Path file) {
+		if (!namingStrategy.isFallbackFile(directory, file)) {
+			return false;
+		}
+		Path filename = file.getFileName();
+		for (PathMatcher skipped : skippedFiles) {
+			if (skipped.matches(filename)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A file named like a temp file written before temp files were marked as such is only considered
+	 * a temp file left behind if it is older than the orphan age, and the fallback file it would have been
+	 * written for exists, as it may as well be a fallback file of a key looking like a temp file name.
+	 */
+	private static boolean isLegacyTempfileLeftBehind(FileEntry file, Instant orphanedBefore) {
+		return FallbackFile.isLegacyTempfile(file.path) && file.lastModified.isBefore(orphanedBefore)
+				&& Files.isRegularFile(FallbackFile.targetOfTempfile(file.path));
+	}
+
+	private boolean evict(Path fallbackFile) {
+		LockedFile lockedFile = new LockedFile(fallbackFile, orphanAge, clock);
+		try {
+			boolean[] deleted = {false};
+			if (!lockedFile.runIfLock(() -> deleted[0] = delete(fallbackFile))) {
+				LOG.debug("Not removing {}, as it is locked", fallbackFile);
+			}
+			return deleted[0];
+		} catch (RuntimeException e) {
+			LOG.warn("Unable to remove {} because {}: '{}'", fallbackFile, e.getClass().getSimpleName(), e.getMessage());
+			return false;
+		}
+	}
+
+	private static boolean delete(Path file) {
+		try {
+			return Files.deleteIfExists(file);
+		} catch (IOException e) {
+			LOG.warn("Unable to remove {} because {}: '{}'", file, e.getClass().getSimpleName(), e.getMessage());
+			return false;
+		}
+	}
+
+
+	/**
+	 * What was removed by one run of a {@link FallbackDirectoryHousekeeper}.
+	 */
+	public static final class Result {
+		private final int removedTempFiles;
+		private final int removedLockFiles;
+		private final int evictedFallbackFiles;
+		private final long reclaimedBytes;
+		private final long remainingBytes;
+
+		Result(int removedTempFiles, int removedLockFiles, int evictedFallbackFiles, long reclaimedBytes, long remainingBytes) {
+			this.removedTempFiles = removedTempFiles;
+			this.removedLockFiles = removedLockFiles;
+			this.evictedFallbackFiles = evictedFallbackFiles;
+			this.reclaimedBytes = reclaimedBytes;
+			this.remainingBytes = remainingBytes;
+		}
+
+		public int getRemovedTempFiles() {
+			return removedTempFiles;
+		}
+
+		public int getRemovedLockFiles() {
+			return removedLockFiles;
+		}
+
+		/**
+		 * @return the number of fallback files removed to stay within the disk budget.
+		 */
+		public int getEvictedFallbackFiles() {
+			return evictedFallbackFiles;
+		}
+
+		public long getReclaimedBytes() {
+			return reclaimedBytes;
+		}
+
+		/**
+		 * @return the total size of the fallback files, temp files and lock files in the directory after cleaning up.
+		 */
+		public long getRemainingBytes() {
+			return remainingBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "removed " + removedTempFiles + " temp files and " + removedLockFiles + " lock files left behind, evicted " +
+					evictedFallbackFiles + " fallback files, reclaimed " + reclaimedBytes + " bytes, " + remainingBytes + " bytes remaining";
+		}
+	}
+
+	private static final class FileEntry {
+		final Path path;
+		final long size;
+		final Instant lastModified;
+
+		FileEntry(Path path, long size, Instant lastModified) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
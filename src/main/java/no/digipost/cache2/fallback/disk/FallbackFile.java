@@ -18,6 +18,9 @@ package no.digipost.cache2.fallback.disk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,8 +30,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.SecureRandom;
 import java.time.Clock;
+import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -39,14 +45,43 @@ public class FallbackFile {
 
 	private static final Logger LOG = LoggerFactory.getLogger(FallbackFile.class);
 
+	private static final byte[] KEY_HEADER = {(byte) 0xD1, 'K', 'E', 'Y'};
+	private static final int MAXIMUM_STORED_KEY_LENGTH = 1024;
+
+	private static final String TEMPFILE_MARKER = ".tmp-";
+	private static final Pattern TEMPFILE_NAME = Pattern.compile("(.+)" + Pattern.quote(TEMPFILE_MARKER) + "\\d+\\.[a-z]{10}");
+	private static final Pattern LEGACY_TEMPFILE_NAME = Pattern.compile("(.+)\\.\\d+\\.[a-z]{10}");
+
 	public final LockedFile lockedFile;
 
 	private final Random random = new SecureRandom();
 	private final AtomicBoolean written;
+	private final String storedKey;
 
 	FallbackFile(LockedFile file) {
+		this(file, null);
+	}
+
+	/**
+	 * @param storedKey the key to store in the file, or {@code null} to not store it.
+	 */
+	FallbackFile(LockedFile file, String storedKey) {
 		this.lockedFile = file;
 		this.written = new AtomicBoolean(Files.exists(file.getPath()));
+		this.storedKey = storedKey;
+	}
+
+	/**
+	 * Read the key stored in a fallback file, if the file was written with a
+	 * {@link FallbackFileNamingStrategy#storesKey() naming strategy storing keys}.
+	 *
+	 * @return the {@link Object#toString() string representation} of the key, possibly truncated,
+	 *         or {@link Optional#empty() empty} if the file contains no key.
+	 */
+	public static Optional<String> readStoredKey(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			return Optional.ofNullable(readKeyHeader(in));
+		}
 	}
 
 
@@ -56,6 +91,13 @@ public class FallbackFile {
 	 * @return an {@link InputStream} for reading the contents of the fallback file.
 	 */
 	public InputStream read() throws IOException {
+		return contentOf(Files.newInputStream(existingFile()));
+	}
+
+	/**
+	 * @return the path of the fallback file, if it exists.
+	 */
+	Path existingFile() throws IOException {
 	    Path file = lockedFile.getPath();
         boolean fallbackFileExists = Files.exists(file);
 		written.compareAndSet(false, fallbackFileExists);
@@ -64,7 +106,39 @@ public class FallbackFile {
 		} else if (!fallbackFileExists) {
 			throw new FileNotFoundException("File " + file + " not found, even though it is supposed to have been written.");
 		}
-		return Files.newInputStream(file);
+		return file;
+	}
+
+	/**
+	 * @param in the full contents of the fallback file.
+	 * @return the fallback contents, i.e. without any stored key.
+	 */
+	InputStream contentOf(InputStream in) throws IOException {
+		if (storedKey == null) {
+			return in;
+		}
+		try {
+			DataInputStream content = new DataInputStream(new BufferedInputStream(in));
+			readKeyHeader(content);
+			return content;
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the key header, if present, leaving the stream positioned at the content following it.
+	 */
+	private static String readKeyHeader(DataInputStream in) throws IOException {
+		in.mark(KEY_HEADER.length);
+		for (byte expected : KEY_HEADER) {
+			if (in.read() != (expected & 0xFF)) {
+				in.reset();
+				return null;
+			}
+		}
+		return in.readUTF();
 	}
 
 
@@ -76,12 +150,21 @@ public class FallbackFile {
 	 */
 	public OutputStream write() throws IOException {
 		final Path tempfile = getTempfile();
+		if (!Files.isDirectory(tempfile.getParent())) {
+			Files.createDirectories(tempfile.getParent());
+		}
 		if (Files.exists(tempfile)) {
 			throw new FileAlreadyExistsException(tempfile.toString(), null,
 					"Temp-file used for writing cache already exists. " +
 					"This is a bug. The algorithm for generating temp-file path needs improving.");
 		}
 		final OutputStream stream = Files.newOutputStream(tempfile, CREATE_NEW, WRITE);
+		if (storedKey != null) {
+			DataOutputStream header = new DataOutputStream(stream);
+			header.write(KEY_HEADER);
+			header.writeUTF(storedKey.length() > MAXIMUM_STORED_KEY_LENGTH ? storedKey.substring(0, MAXIMUM_STORED_KEY_LENGTH) : storedKey);
+			header.flush();
+		}
 		return new OutputStream() {
 			final AtomicBoolean closed = new AtomicBoolean(false);
 
@@ -119,7 +202,37 @@ public class FallbackFile {
 
 	private Path getTempfile() {
 	    Path file = lockedFile.getPath();
-	    return file.resolveSibling(file.getFileName() + "." + System.currentTimeMillis() + "." + randomString(10));
+	    return file.resolveSibling(file.getFileName() + TEMPFILE_MARKER + System.currentTimeMillis() + "." + randomString(10));
+	}
+
+	static boolean isTempfile(Path file) {
+		return TEMPFILE_NAME.matcher(file.getFileName().toString()).matches();
+	}
+
+	/**
+	 * Temp files used to be named without the {@value #TEMPFILE_MARKER} marker, which may not be told apart
+	 * from fallback files named like them, e.g. for the key {@code "user.1.abcdefghij"}.
+	 *
+	 * @return whether the given file may be a temp file named as before the marker was introduced.
+	 */
+	static boolean isLegacyTempfile(Path file) {
+		return LEGACY_TEMPFILE_NAME.matcher(file.getFileName().toString()).matches();
+	}
+
+	/**
+	 * @return the fallback file which the given {@link #isTempfile(Path) temp file}, or
+	 *         {@link #isLegacyTempfile(Path) legacy temp file}, is written for.
+	 */
+	static Path targetOfTempfile(Path tempfile) {
+		String filename = tempfile.getFileName().toString();
+		Matcher tempfileName = TEMPFILE_NAME.matcher(filename);
+		if (!tempfileName.matches()) {
+			tempfileName = LEGACY_TEMPFILE_NAME.matcher(filename);
+		}
+		if (!tempfileName.matches()) {
+			throw new IllegalArgumentException(tempfile + " is not a temp file of a fallback file");
+		}
+		return tempfile.resolveSibling(tempfileName.group(1));
 	}
 
 	private String randomString(int length) {
@@ -144,7 +257,8 @@ public class FallbackFile {
 		}
 
 		public FallbackFile resolveFor(K cacheKey) {
-			return new FallbackFile(new LockedFile(directory.resolve(fileNamingStrategy.toFilename(cacheKey)), clock));
+			LockedFile file = new LockedFile(fileNamingStrategy.resolve(directory, cacheKey), clock);
+			return new FallbackFile(file, fileNamingStrategy.storesKey() ? String.valueOf(cacheKey) : null);
 		}
 	}
 
@@ -15,10 +15,14 @@
  */
 package no.digipost.cache2.fallback.disk;
 
+import java.nio.file.Path;
+
 public interface FallbackFileNamingStrategy<K> {
 
 	/**
-	 * Uses the key's {@link Object#toString()} to yield filename.
+	 * Uses the key's {@link Object#toString()} to yield filename. This requires that the keys yield
+	 * valid filenames. Otherwise, or for caches with very many keys, consider
+	 * {@link ShardedFallbackFileNamingStrategy}.
 	 */
 	public static final FallbackFileNamingStrategy<Object> USE_KEY_TOSTRING_AS_FILENAME = new FallbackFileNamingStrategy<Object>() {
 		@Override
@@ -36,4 +40,34 @@ public interface FallbackFileNamingStrategy<K> {
 	 */
 	String toFilename(K key);
 
+	/**
+	 * Resolve the fallback file for the given key in a directory. The default is the
+	 * {@link #toFilename(Object) filename} directly in the directory.
+	 *
+	 * @return the path of the fallback file for the given key
+	 */
+	default Path resolve(Path directory, K key) {
+		return directory.resolve(toFilename(key));
+	}
+
+	/**
+	 * Tell if a file found in a fallback directory may be a fallback file named by this strategy, which a
+	 * {@link FallbackDirectoryHousekeeper} may remove. The default accepts any file directly in the directory,
+	 * as resolved by the default {@link #resolve(Path, Object)}.
+	 *
+	 * @param directory the fallback directory.
+	 * @param file a file in the directory, or in any of its subdirectories, which is not a temp file or lock file.
+	 * @return whether the file may be a fallback file.
+	 */
+	default boolean isFallbackFile(Path directory, Path file) {
+		return directory.equals(file.getParent());
+	}
+
+	/**
+	 * @return whether the original key should be stored in the fallback files. The default is {@code false}.
+	 */
+	default boolean storesKey() {
+		return false;
+	}
+
 }
@@ -15,9 +15,13 @@
  */
 package no.digipost.cache2.fallback.disk;
 
+import no.digipost.cache2.fallback.ExecutingFallbackKeeper;
+import no.digipost.cache2.fallback.FallbackKeeper;
 import no.digipost.cache2.fallback.FallbackKeeperFailedHandler;
 import no.digipost.cache2.fallback.LoaderWithFallback;
+import no.digipost.cache2.fallback.marshall.CompressingMarshaller;
 import no.digipost.cache2.fallback.marshall.Marshaller;
+import no.digipost.cache2.latency.Latencies;
 import no.digipost.cache2.loader.Loader;
 import no.digipost.cache2.loader.LoaderDecorator;
 
@@ -25,6 +29,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.Executor;
 
 public class LoaderWithDiskFallbackDecorator<K, V> implements LoaderDecorator<K, V> {
 
@@ -33,6 +39,9 @@ public class LoaderWithDiskFallbackDecorator<K, V> implements LoaderDecorator<K,
 	private final Marshaller<V> marshaller;
 	private final FallbackKeeperFailedHandler<? super K, ? super V> fallbackWriteFailedHandler;
     private final Clock clock;
+    private final Duration sharedFallbackFreshness;
+    private final Latencies latencies;
+    private final Executor fallbackWriteExecutor;
 
 
 	public LoaderWithDiskFallbackDecorator(
@@ -52,11 +61,99 @@ public class LoaderWithDiskFallbackDecorator<K, V> implements LoaderDecorator<K,
 			Path fallbackDirectory, FallbackFileNamingStrategy<? super K> fallbackFileNamingStrategy, Marshaller<V> marshaller,
 			FallbackKeeperFailedHandler<? super K, ? super V> fallbackWriteFailedHandler, Clock clock) {
 
+		this(fallbackDirectory, fallbackFileNamingStrategy, marshaller, fallbackWriteFailedHandler, clock, null, Latencies.NOT_RECORDED, null);
+	}
+
+	private LoaderWithDiskFallbackDecorator(
+			Path fallbackDirectory, FallbackFileNamingStrategy<? super K> fallbackFileNamingStrategy, Marshaller<V> marshaller,
+			FallbackKeeperFailedHandler<? super K, ? super V> fallbackWriteFailedHandler, Clock clock, Duration sharedFallbackFreshness,
+			Latencies latencies, Executor fallbackWriteExecutor) {
+
 		this.fallbackDirectory = fallbackDirectory;
 		this.fallbackFileNamingStrategy = fallbackFileNamingStrategy;
 		this.marshaller = marshaller;
 		this.fallbackWriteFailedHandler = fallbackWriteFailedHandler;
         this.clock = clock;
+        this.sharedFallbackFreshness = sharedFallbackFreshness;
+        this.latencies = latencies;
+        this.fallbackWriteExecutor = fallbackWriteExecutor;
+	}
+
+	/**
+	 * Use the fallback files as a read tier shared by all processes which use the same fallback
+	 * directory. Loading a value will first use an existing fallback file if it was written within
+	 * the given freshness bound, regardless of which process wrote it. When the fallback file is
+	 * older, only the process acquiring the lock of the fallback file will invoke the underlying
+	 * loader, while others keep using the existing fallback file until it is refreshed.
+	 *
+	 * @param freshness the maximum age of a fallback file to use instead of invoking the underlying loader.
+	 * @return a new decorator sharing fallback files as described.
+	 */
+	public LoaderWithDiskFallbackDecorator<K, V> withSharedFallbackFiles(Duration freshness) {
+		return new LoaderWithDiskFallbackDecorator<>(fallbackDirectory, fallbackFileNamingStrategy, marshaller, fallbackWriteFailedHandler, clock, freshness, latencies, fallbackWriteExecutor);
+	}
+
+	/**
+	 * Record the latency of reading and writing fallback files, and of acquiring their locks.
+	 * Usually given the {@link no.digipost.cache2.inmemory.Cache#getLatencies() latencies} of the
+	 * cache using the decorated loader, to have all latencies involved in loading values for the
+	 * cache in one place.
+	 *
+	 * @param latencies where to record the latencies.
+	 * @return a new decorator recording latencies as described.
+	 */
+	public LoaderWithDiskFallbackDecorator<K, V> withLatenciesRecordedTo(Latencies latencies) {
+		return new LoaderWithDiskFallbackDecorator<>(fallbackDirectory, fallbackFileNamingStrategy, marshaller, fallbackWriteFailedHandler, clock, sharedFallbackFreshness, latencies, fallbackWriteExecutor);
+	}
+
+	/**
+	 * Write fallback files using the given executor, instead of before returning the loaded value.
+	 * Consider {@link no.digipost.cache2.concurrent.VirtualThreads#newExecutor(String) virtual threads}
+	 * for this. This does not apply to the loading process refreshing
+	 * {@link #withSharedFallbackFiles(Duration) shared fallback files}, which writes the fallback file
+	 * while holding its lock.
+	 *
+	 * @param executor runs the writing of fallback files.
+	 * @return a new decorator writing fallback files as described.
+	 */
+	public LoaderWithDiskFallbackDecorator<K, V> withFallbackWritesOn(Executor executor) {
+		return new LoaderWithDiskFallbackDecorator<>(fallbackDirectory, fallbackFileNamingStrategy, marshaller, fallbackWriteFailedHandler, clock, sharedFallbackFreshness, latencies, executor);
+	}
+
+	/**
+	 * Compress the fallback files, using {@link CompressingMarshaller}. Existing fallback files written
+	 * without compression stay readable.
+	 *
+	 * @param level the compression level, from {@link java.util.zip.Deflater#BEST_SPEED BEST_SPEED} to
+	 *              {@link java.util.zip.Deflater#BEST_COMPRESSION BEST_COMPRESSION}.
+	 * @return a new decorator compressing fallback files as described.
+	 */
+	public LoaderWithDiskFallbackDecorator<K, V> withCompression(int level) {
+		return new LoaderWithDiskFallbackDecorator<>(fallbackDirectory, fallbackFileNamingStrategy, new CompressingMarshaller<>(marshaller, level), fallbackWriteFailedHandler, clock, sharedFallbackFreshness, latencies, fallbackWriteExecutor);
+	}
+
+	/**
+	 * Create a loader of the fallback values written by loaders decorated by this decorator, which
+	 * does not block the calling thread while reading them, e.g. to serve fallback values during an
+	 * outage of the underlying source of values without pinning request threads on disk reads.
+	 *
+	 * @param decodingExecutor runs the {@link Marshaller} reading values from the fallback files.
+	 * @return a new asynchronous fallback loader for the fallback directory.
+	 */
+	public AsyncDiskFallbackLoader<K, V> asyncFallbackLoader(Executor decodingExecutor) {
+		return new AsyncDiskFallbackLoader<>(new FallbackFile.Resolver<>(fallbackDirectory, fallbackFileNamingStrategy, clock), marshaller, decodingExecutor, latencies);
+	}
+
+	/**
+	 * Create a housekeeper for the fallback directory of this decorator, which removes files left
+	 * behind by crashed processes, and keeps the directory within the given disk budget. The housekeeper
+	 * must be {@link FallbackDirectoryHousekeeper#start(Duration) started} to run regularly.
+	 *
+	 * @param diskBudgetBytes the maximum total size of the fallback files, temp files and lock files in the fallback directory.
+	 * @return a new housekeeper for the fallback directory.
+	 */
+	public FallbackDirectoryHousekeeper housekeeper(long diskBudgetBytes) {
+		return new FallbackDirectoryHousekeeper(fallbackDirectory, fallbackFileNamingStrategy, diskBudgetBytes, LockedFile.DEFAULT_EXPIRY_TIME, clock);
 	}
 
 	@Override
@@ -71,7 +168,14 @@ public class LoaderWithDiskFallbackDecorator<K, V> implements LoaderDecorator<K,
 			throw new RuntimeException("Unable to prepare the directory to store cache values for fallback: "
 					+ e.getClass().getSimpleName() + " '" + e.getMessage() + "'", e);
 		}
-		return new LoaderWithFallback<K, V>(loader, new DiskFallbackLoader<>(resolver, marshaller), new DiskFallbackKeeper<>(resolver, marshaller), fallbackWriteFailedHandler);
+		FallbackKeeper<K, V> fallbackKeeper = new DiskFallbackKeeper<>(resolver, marshaller, latencies);
+		if (fallbackWriteExecutor != null) {
+			fallbackKeeper = new ExecutingFallbackKeeper<>(fallbackKeeper, fallbackWriteExecutor, fallbackWriteFailedHandler);
+		}
+		if (sharedFallbackFreshness != null) {
+			return new SharedDiskFallbackLoader<K, V>(loader, resolver, marshaller, fallbackKeeper, fallbackWriteFailedHandler, sharedFallbackFreshness, clock, latencies);
+		}
+		return new LoaderWithFallback<K, V>(loader, new DiskFallbackLoader<>(resolver, marshaller, latencies), fallbackKeeper, fallbackWriteFailedHandler);
 	}
 
 }
@@ -37,7 +37,7 @@ public class LockedFile {
 	static final Duration DEFAULT_EXPIRY_TIME = Duration.ofMinutes(10);
 
 	static final Logger LOG = LoggerFactory.getLogger(LockedFile.class);
-	private static final String LOCK_FILE_POSTFIX = "." + LockedFile.class.getCanonicalName() + ".lock";
+	static final String LOCK_FILE_POSTFIX = "." + LockedFile.class.getCanonicalName() + ".lock";
 	private final Path file;
 	private final Path lockfile;
 	private final Duration maximumLockingDuration;
@@ -48,7 +48,13 @@ public class LockedFile {
 		this(forFile, DEFAULT_EXPIRY_TIME, clock);
 	}
 
-	LockedFile(Path forFile, Duration maximumLockingDuration, Clock clock) {
+	/**
+	 * @param forFile the file to coordinate access to. The lock-file is created as a sibling of this file.
+	 * @param maximumLockingDuration the time after which a lock is considered expired, and may be taken
+	 *                               by others, in case the holder of the lock was unable to release it.
+	 * @param clock the clock used to determine if a lock has expired.
+	 */
+	public LockedFile(Path forFile, Duration maximumLockingDuration, Clock clock) {
 	    this.file = forFile;
 		this.lockfile = forFile.resolveSibling(forFile.getFileName() + LOCK_FILE_POSTFIX);
 		this.maximumLockingDuration = maximumLockingDuration;
@@ -120,7 +126,7 @@ public class LockedFile {
 		// Attempt to acquire lock
 		try {
 			LOG.trace("Creating lockfile");
-			Files.createFile(lockfile); // fails if lock-file exists
+			createLockfile(); // fails if lock-file exists
 			LOG.trace("Acquired lock.");
 			return true;
 		} catch (FileAlreadyExistsException fileAlreadyExists) {
@@ -132,6 +138,16 @@ public class LockedFile {
 		}
 	}
 
+	private void createLockfile() throws IOException {
+		try {
+			Files.createFile(lockfile);
+		} catch (NoSuchFileException e) {
+			LOG.debug("Creating directory {} for lock-file", lockfile.getParent());
+			Files.createDirectories(lockfile.getParent());
+			Files.createFile(lockfile);
+		}
+	}
+
 	public boolean isLocked() {
 		return Files.exists(lockfile);
 	}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Names fallback files by the SHA-256 hash of the key's {@link Object#toString()}, and spreads them over
+ * two levels of subdirectories named by the first characters of the hash, e.g. {@code 3f/a2/3fa2...}.
+ * Any key yields a safe filename of fixed length, and each directory holds a limited number of files
+ * even for caches with very many keys. The original key is stored in the fallback file, and may be read
+ * with {@link FallbackFile#readStoredKey(Path)}, e.g. to warm up a cache or for debugging.
+ * <p>
+ * Given the naming strategy previously used for a fallback directory, fallback files in the flat layout
+ * of the previous strategy are moved into the sharded layout when their keys are resolved.
+ *
+ * @param <K> the type of the keys.
+ */
+public final class ShardedFallbackFileNamingStrategy<K> implements FallbackFileNamingStrategy<K> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ShardedFallbackFileNamingStrategy.class);
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final Pattern FILENAME = Pattern.compile("[0-9a-f]{64}");
+
+	private final FallbackFileNamingStrategy<? super K> previousStrategy;
+
+
+	public ShardedFallbackFileNamingStrategy() {
+		this(null);
+	}
+
+	/**
+	 * @param previousStrategy the naming strategy previously used for the fallback directory,
+	 *                         to migrate the existing fallback files from.
+	 */
+	public ShardedFallbackFileNamingStrategy(FallbackFileNamingStrategy<? super K> previousStrategy) {
+		this.previousStrategy = previousStrategy;
+	}
+
+	@Override
+	public String toFilename(K key) {
+		byte[] hash = sha256().digest(String.valueOf(key).getBytes(UTF_8));
+		char[] filename = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			filename[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+			filename[i * 2 + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(filename);
+	}
+
+	@Override
+	public Path resolve(Path directory, K key) {
+		String filename = toFilename(key);
+		Path file = directory.resolve(filename.substring(0, 2)).resolve(filename.substring(2, 4)).resolve(filename);
+		if (previousStrategy != null && !Files.exists(file)) {
+			migrate(previousStrategy.resolve(directory, key), file);
+		}
+		return file;
+	}
+
+	/**
+	 * @return whether the file is in the sharded layout, named by a SHA-256 hash, or a fallback file
+	 *         of the previous strategy not yet migrated.
+	 */
+	@Override
+	public boolean isFallbackFile(Path directory, Path file) {
+		Path relative = directory.relativize(file);
+		if (relative.getNameCount() == 3) {
+			String filename = relative.getName(2).toString();
+			return FILENAME.matcher(filename).matches()
+					&& relative.getName(0).toString().equals(filename.substring(0, 2))
+					&& relative.getName(1).toString().equals(filename.substring(2, 4));
+		}
+		return previousStrategy != null && previousStrategy.isFallbackFile(directory, file);
+	}
+
+	@Override
+	public boolean storesKey() {
+		return true;
+	}
+
+	private static void migrate(Path previousFile, Path file) {
+		if (!Files.isRegularFile(previousFile)) {
+			return;
+		}
+		try {
+			Files.createDirectories(file.getParent());
+			Files.move(previousFile, file, ATOMIC_MOVE);
+			LOG.info("Migrated fallback file {} to {}", previousFile, file);
+		} catch (NoSuchFileException e) {
+			LOG.debug("{} was moved or removed by someone else while migrating it", previousFile);
+		} catch (IOException e) {
+			LOG.warn("Unable to migrate fallback file {} to {} because {}: '{}'", previousFile, file, e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 should be supported by every Java platform", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "sharded by SHA-256 of key" + (previousStrategy != null ? ", migrating from " + previousStrategy : "");
+	}
+}
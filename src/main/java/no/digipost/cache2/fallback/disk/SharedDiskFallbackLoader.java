@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import no.digipost.cache2.fallback.FallbackKeeper;
+import no.digipost.cache2.fallback.FallbackKeeperFailedHandler;
+import no.digipost.cache2.fallback.LoaderWithFallback;
+import no.digipost.cache2.fallback.marshall.Marshaller;
+import no.digipost.cache2.latency.Latencies;
+import no.digipost.cache2.loader.Loader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+import static no.digipost.cache2.latency.Latencies.Operation.FALLBACK_KEEP;
+import static no.digipost.cache2.latency.Latencies.Operation.LOCK_WAIT;
+
+/**
+ * Uses the fallback files as a read tier shared by all processes writing to the same
+ * fallback directory. A fallback file which was written within the configured freshness
+ * bound is used as is, instead of invoking the underlying loader. Otherwise, only the process
+ * which acquires the {@link LockedFile lock} of the fallback file will load a new value and
+ * write it to the file, while other processes use the existing fallback file until it is
+ * refreshed. Only if no fallback file exists yet will the other processes also invoke the
+ * underlying loader.
+ */
+class SharedDiskFallbackLoader<K, V> implements Loader<K, V> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedDiskFallbackLoader.class);
+
+	private final FallbackFile.Resolver<K> fileResolver;
+	private final Duration freshness;
+	private final Clock clock;
+	private final Latencies latencies;
+	private final Loader<K, V> sharedFileLoader;
+	private final Loader<K, V> refreshingLoader;
+	private final Loader<K, V> loaderWithFallback;
+
+	SharedDiskFallbackLoader(
+			Loader<? super K, V> loader, FallbackFile.Resolver<K> fileResolver, Marshaller<V> marshaller, FallbackKeeper<K, V> fallbackKeeper,
+			FallbackKeeperFailedHandler<? super K, ? super V> fallbackWriteFailedHandler, Duration freshness, Clock clock, Latencies latencies) {
+
+		this.fileResolver = fileResolver;
+		this.freshness = freshness;
+		this.clock = clock;
+		this.latencies = latencies;
+		Loader<K, V> fallbackLoader = new DiskFallbackLoader<>(fileResolver, marshaller, latencies);
+		this.sharedFileLoader = new DiskFallbackLoader<>(fileResolver, marshaller);
+		this.refreshingLoader = new LoaderWithFallback<>(loader, fallbackLoader, new KeepWhileLocked<>(fileResolver, marshaller, latencies), fallbackWriteFailedHandler);
+		this.loaderWithFallback = new LoaderWithFallback<>(loader, fallbackLoader, fallbackKeeper, fallbackWriteFailedHandler);
+	}
+
+	@Override
+	public V load(K key) throws Exception {
+		FallbackFile fallbackFile = fileResolver.resolveFor(key);
+		Instant lastWritten = lastWritten(fallbackFile);
+		if (lastWritten != null && lastWritten.isAfter(clock.instant().minus(freshness))) {
+			try {
+				V sharedValue = sharedFileLoader.load(key);
+				LOG.debug("Using {}, written at {}, instead of loading value for key '{}'", fallbackFile, lastWritten, key);
+				return sharedValue;
+			} catch (Exception e) {
+				LOG.warn("Failed to read fresh {} because {}: '{}'. Loading value for key '{}' instead.",
+						fallbackFile, e.getClass().getSimpleName(), e.getMessage(), key);
+			}
+		}
+
+		if (tryLock(fallbackFile)) {
+			try {
+				return refreshingLoader.load(key);
+			} finally {
+				release(fallbackFile);
+			}
+		} else if (lastWritten != null) {
+			LOG.debug("Another process is refreshing {}. Using the existing value for key '{}' in the meantime.", fallbackFile, key);
+			try {
+				return sharedFileLoader.load(key);
+			} catch (Exception e) {
+				LOG.warn("Failed to read {} while it is being refreshed by another process, because {}: '{}'. Loading value for key '{}' instead.",
+						fallbackFile, e.getClass().getSimpleName(), e.getMessage(), key);
+			}
+		}
+		return loaderWithFallback.load(key);
+	}
+
+	/**
+	 * @return {@code true} if the lock was acquired, or {@code false} if it is held by another process,
+	 *         or could not be acquired because of an I/O error, e.g. on a network file system.
+	 */
+	private boolean tryLock(FallbackFile fallbackFile) {
+		long lockStart = System.nanoTime();
+		try {
+			return fallbackFile.lockedFile.tryLock();
+		} catch (LockedFile.UnableToAcquireLock e) {
+			LOG.warn("Unable to acquire lock of {}, continuing without it. {}", fallbackFile, e.getMessage());
+			return false;
+		} finally {
+			latencies.recordSince(LOCK_WAIT, lockStart);
+		}
+	}
+
+	private static void release(FallbackFile fallbackFile) {
+		try {
+			fallbackFile.lockedFile.release();
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to release lock of {}. {}", fallbackFile, e.getMessage());
+		}
+	}
+
+	private static Instant lastWritten(FallbackFile fallbackFile) throws IOException {
+		try {
+			return Files.getLastModifiedTime(fallbackFile.lockedFile.getPath()).toInstant();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Writes the fallback file without acquiring its lock, as it is already held
+	 * by the loading process.
+	 */
+	private static final class KeepWhileLocked<K, V> implements FallbackKeeper<K, V> {
+
+		private final FallbackFile.Resolver<K> fileResolver;
+		private final Marshaller<V> marshaller;
+		private final Latencies latencies;
+
+		KeepWhileLocked(FallbackFile.Resolver<K> fileResolver, Marshaller<V> marshaller, Latencies latencies) {
+			this.fileResolver = fileResolver;
+			this.marshaller = marshaller;
+			this.latencies = latencies;
+		}
+
+		@Override
+		public void keep(K key, V value) throws Exception {
+			long start = System.nanoTime();
+			try (OutputStream out = fileResolver.resolveFor(key).write()) {
+				marshaller.write(value, out);
+			} finally {
+				latencies.recordSince(FALLBACK_KEEP, start);
+			}
+		}
+	}
+}
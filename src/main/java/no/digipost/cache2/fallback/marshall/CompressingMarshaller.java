@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.marshall;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the content written by another {@link Marshaller} using {@link Deflater}. The compressed
+ * content is preceded by a header identifying the codec, and content without the header is read as is
+ * by the other marshaller. Content written before compression was enabled thus stays readable.
+ * <p>
+ * {@link Deflater} and {@link Inflater} instances hold native memory, and are pooled and reused
+ * instead of being created for every value.
+ */
+public class CompressingMarshaller<T> implements Marshaller<T> {
+
+	private static final byte[] HEADER = {(byte) 0xD1, 'Z', 'I', 'P'};
+	private static final int DEFLATE = 1;
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Marshaller<T> marshaller;
+	private final int level;
+	private final Queue<Deflater> deflaters;
+	private final Queue<Inflater> inflaters;
+
+
+	public CompressingMarshaller(Marshaller<T> marshaller) {
+		this(marshaller, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION},
+	 *              or {@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public CompressingMarshaller(Marshaller<T> marshaller, int level) {
+		this(marshaller, level, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param level the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION},
+	 *              or {@link Deflater#DEFAULT_COMPRESSION}.
+	 * @param poolSize the maximum number of idle {@link Deflater} and {@link Inflater} instances to keep for reuse.
+	 */
+	public CompressingMarshaller(Marshaller<T> marshaller, int level, int poolSize) {
+		if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level " + level);
+		}
+		this.marshaller = marshaller;
+		this.level = level;
+		this.deflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+		this.inflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+	}
+
+	@Override
+	public T read(InputStream input) throws Exception {
+		BufferedInputStream in = new BufferedInputStream(input, BUFFER_SIZE);
+		in.mark(HEADER.length + 1);
+		for (byte expected : HEADER) {
+			if (in.read() != (expected & 0xFF)) {
+				in.reset();
+				return marshaller.read(in);
+			}
+		}
+		int codec = in.read();
+		if (codec != DEFLATE) {
+			throw new IOException("Unsupported compression codec " + codec);
+		}
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			return marshaller.read(new InflaterInputStream(in, inflater, BUFFER_SIZE));
+		} finally {
+			inflater.reset();
+			if (!inflaters.offer(inflater)) {
+				inflater.end();
+			}
+		}
+	}
+
+	@Override
+	public void write(T toWrite, OutputStream output) throws IOException {
+		output.write(HEADER);
+		output.write(DEFLATE);
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		}
+		try {
+			DeflaterOutputStream compressed = new DeflaterOutputStream(output, deflater, BUFFER_SIZE);
+			marshaller.write(toWrite, compressed);
+			compressed.finish();
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+}
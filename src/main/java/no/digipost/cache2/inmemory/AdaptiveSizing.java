@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Adjusts the maximum size of caches created with {@link CacheConfig#adaptiveMaximumSize(long, long)}
+ * while they are in use. A cache is grown while it evicts entries, there is free heap, and growing
+ * it the last time gave a noticeable improvement of its hit rate. All adaptively sized caches are
+ * shrunk when the heap is under pressure. The size of a cache is never adjusted outside of the
+ * bounds it was created with.
+ * <p>
+ * The heap usage is the usage of the tenured heap memory pool after its latest garbage collection,
+ * as the current usage of the heap includes garbage which has yet to be collected, and routinely
+ * rises towards the maximum before each collection.
+ * <p>
+ * Every decision is logged, and may also be given to a listener, e.g. to report it as a metric.
+ */
+public final class AdaptiveSizing implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveSizing.class);
+
+	/**
+	 * Caches are only grown while less than this fraction of the tenured heap is used after garbage collection.
+	 */
+	public static final double GROW_BELOW_HEAP_USAGE = 0.70;
+
+	/**
+	 * Caches are shrunk when more than this fraction of the tenured heap is used after garbage collection.
+	 */
+	public static final double SHRINK_ABOVE_HEAP_USAGE = 0.85;
+
+	/**
+	 * The improvement of the hit rate which the previous growth of a cache must have given for it to be grown again.
+	 */
+	public static final double MINIMUM_HIT_RATE_GAIN = 0.01;
+
+	static final double GROWTH_FACTOR = 1.25;
+	static final double SHRINK_FACTOR = 0.75;
+	static final long MINIMUM_REQUESTS = 100;
+
+
+	public static AdaptiveSizing start(Duration interval) {
+		return start(interval, decision -> {});
+	}
+
+	/**
+	 * Start adjusting the sizes of all adaptively sized caches at the given interval.
+	 *
+	 * @param decisionListener is given every decision to resize a cache.
+	 */
+	public static AdaptiveSizing start(Duration interval, Consumer<? super SizingDecision> decisionListener) {
+		AdaptiveSizing adaptiveSizing = new AdaptiveSizing(CacheRegistry.getDefault(), AdaptiveSizing::heapUsage, decisionListener);
+		adaptiveSizing.schedule(interval);
+		return adaptiveSizing;
+	}
+
+
+	private final CacheRegistry registry;
+	private final DoubleSupplier heapUsage;
+	private final Consumer<? super SizingDecision> decisionListener;
+	private final Map<Cache<?, ?>, SizingState> states = new WeakHashMap<>();
+	private ScheduledExecutorService scheduler;
+
+	AdaptiveSizing(CacheRegistry registry, DoubleSupplier heapUsage, Consumer<? super SizingDecision> decisionListener) {
+		this.registry = registry;
+		this.heapUsage = heapUsage;
+		this.decisionListener = decisionListener;
+	}
+
+	/**
+	 * Adjust the size of each adaptively sized cache, based on its hit rate since the previous adjustment.
+	 * This is done regularly when {@link #start(Duration) started}, but may also be invoked explicitly.
+	 */
+	public synchronized void adjust() {
+		double heap = heapUsage.getAsDouble();
+		for (Cache<?, ?> cache : registry.getCaches()) {
+			if (cache.isAdaptivelySized()) {
+				adjust(cache, heap);
+			}
+		}
+	}
+
+	private void adjust(Cache<?, ?> cache, double heap) {
+		CacheStats stats = cache.getCacheStats();
+		SizingState state = states.computeIfAbsent(cache, c -> new SizingState());
+		long requests = stats.getRequestCount() - state.requestCount;
+		long hits = stats.getHitCount() - state.hitCount;
+		long evictions = stats.getEvictionCount() - state.evictionCount;
+		double hitRate = requests == 0 ? 1.0 : (double) hits / requests;
+		long current = cache.getMaximumSize();
+
+		if (heap > SHRINK_ABOVE_HEAP_USAGE) {
+			if (current > cache.getAdaptiveMinimumSize()) {
+				resize(cache, SizingDecision.Action.SHRINK, current, Math.max(cache.getAdaptiveMinimumSize(), (long) (current * SHRINK_FACTOR)), hitRate, heap);
+				state.hitRateBeforeGrowing = Double.NaN;
+			}
+		} else if (requests >= MINIMUM_REQUESTS) {
+			if (!Double.isNaN(state.hitRateBeforeGrowing) && hitRate - state.hitRateBeforeGrowing < MINIMUM_HIT_RATE_GAIN) {
+				LOG.debug("Growing {} from {} did not improve hit rate noticeably ({} to {}). Not growing it further for now.",
+						cache.getName(), current, state.hitRateBeforeGrowing, hitRate);
+				state.plateauHitRate = hitRate;
+				state.hitRateBeforeGrowing = Double.NaN;
+			} else if (!Double.isNaN(state.plateauHitRate) && hitRate >= state.plateauHitRate - MINIMUM_HIT_RATE_GAIN) {
+				LOG.trace("{} has a stable hit rate of {}, keeping size {}", cache.getName(), hitRate, current);
+			} else if (evictions > 0 && heap < GROW_BELOW_HEAP_USAGE && current < cache.getAdaptiveMaximumSize()) {
+				resize(cache, SizingDecision.Action.GROW, current, Math.min(cache.getAdaptiveMaximumSize(), Math.max(current + 1, (long) (current * GROWTH_FACTOR))), hitRate, heap);
+				state.hitRateBeforeGrowing = hitRate;
+				state.plateauHitRate = Double.NaN;
+			}
+		}
+		state.requestCount = stats.getRequestCount();
+		state.hitCount = stats.getHitCount();
+		state.evictionCount = stats.getEvictionCount();
+	}
+
+	private void resize(Cache<?, ?> cache, SizingDecision.Action action, long current, long newMaximumSize, double hitRate, double heap) {
+		SizingDecision decision = new SizingDecision(cache.getName(), action, current, newMaximumSize, hitRate, heap);
+		LOG.info("Adaptive sizing: {}", decision);
+		cache.setMaximumSize(newMaximumSize);
+		try {
+			decisionListener.accept(decision);
+		} catch (RuntimeException e) {
+			LOG.warn("Listener failed to handle '{}' because {}: '{}'", decision, e.getClass().getSimpleName(), e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	private void schedule(Duration interval) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "adaptive-cache-sizing");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				adjust();
+			} catch (RuntimeException e) {
+				LOG.error("Unexpected {} when adjusting cache sizes: '{}'", e.getClass().getSimpleName(), e.getMessage(), e);
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the fraction of the tenured pool in use after its latest collection, or of the whole heap
+	 *         after collection if the JVM has no distinct tenured pool which reports its collection usage.
+	 */
+	private static double heapUsage() {
+		MemoryPoolMXBean tenured = MemoryPressureTrimmer.findTenuredPool(ManagementFactory.getMemoryPoolMXBeans());
+		MemoryUsage usage = tenured != null ? tenured.getCollectionUsage() : null;
+		if (usage == null) {
+			long used = 0;
+			long max = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				MemoryUsage poolUsage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+				if (poolUsage != null) {
+					used += poolUsage.getUsed();
+					max += poolUsage.getMax() > 0 ? poolUsage.getMax() : poolUsage.getCommitted();
+				}
+			}
+			return max > 0 ? (double) used / max : 0;
+		}
+		long max = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+		return max > 0 ? (double) usage.getUsed() / max : 0;
+	}
+
+
+	private static final class SizingState {
+		long requestCount;
+		long hitCount;
+		long evictionCount;
+		double hitRateBeforeGrowing = Double.NaN;
+		double plateauHitRate = Double.NaN;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Ticker} which may be set back in time for the current thread while running
+ * an operation, in order to insert entries into a cache as if they were written earlier.
+ * This is used to preserve the remaining time to live of entries restored from a snapshot.
+ * As long as no thread is backdating, reading the ticker only costs an extra volatile read.
+ */
+final class BackdatableTicker implements Ticker {
+
+	private static final ThreadLocal<long[]> BACKDATING = ThreadLocal.withInitial(() -> new long[1]);
+	private static final AtomicInteger backdatingThreads = new AtomicInteger();
+
+	/**
+	 * Run an operation with all backdatable tickers set back the given amount of nanoseconds
+	 * for the current thread.
+	 */
+	static void backdated(long nanos, Runnable operation) {
+		long[] backdating = BACKDATING.get();
+		backdatingThreads.incrementAndGet();
+		backdating[0] = nanos;
+		try {
+			operation.run();
+		} finally {
+			backdating[0] = 0;
+			backdatingThreads.decrementAndGet();
+		}
+	}
+
+
+	private final Ticker source;
+
+	BackdatableTicker(Ticker source) {
+		this.source = source;
+	}
+
+	@Override
+	public long read() {
+		long now = source.read();
+		return backdatingThreads.get() == 0 ? now : now - BACKDATING.get()[0];
+	}
+}
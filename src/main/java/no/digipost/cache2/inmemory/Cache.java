@@ -16,19 +16,50 @@
 package no.digipost.cache2.inmemory;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Ticker;
+import no.digipost.cache2.fallback.marshall.Marshaller;
+import no.digipost.cache2.invalidation.Invalidation;
+import no.digipost.cache2.invalidation.InvalidationBus;
+import no.digipost.cache2.invalidation.KeyCodec;
+import no.digipost.cache2.latency.Latencies;
 import no.digipost.cache2.loader.Callables;
 import no.digipost.cache2.loader.Loader;
+import no.digipost.cache2.loader.ReloadingLoader;
+import no.digipost.cache2.trace.AccessTraceRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.StreamSupport;
 
 import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
 import static no.digipost.cache2.inmemory.CacheConfig.logRemoval;
 import static no.digipost.cache2.inmemory.CacheConfig.systemClockTicker;
+import static no.digipost.cache2.latency.Latencies.Operation.LOAD;
 
 /**
  * Wrapper around {@link com.github.benmanes.caffeine.cache.Cache} from the
@@ -58,26 +89,122 @@ public final class Cache<K, V> {
 
 	static final Logger LOG = LoggerFactory.getLogger(Cache.class);
 
-	private com.github.benmanes.caffeine.cache.Cache<K, V> caffeineCache;
+	private volatile com.github.benmanes.caffeine.cache.Cache<K, V> caffeineCache;
 	private String name;
+	private final AtomicReference<InvalidationBusConnection<K>> invalidationBus = new AtomicReference<>();
+	private final Latencies latencies = new Latencies();
+	private final HotKeyTracker<K> hotKeys;
+	private final AccessTraceRecorder accessTrace;
+	private final Ticker ticker;
+	private final long adaptiveMinimumSize;
+	private final long adaptiveMaximumSize;
+	private final boolean trimOnMemoryPressure;
+	private final TagIndex<K> tagIndex;
+	private final BiFunction<Object, Object, ? extends Collection<?>> tagger;
+	private volatile com.github.benmanes.caffeine.cache.Cache<K, V> expiredValues;
+	private final Caffeine<Object, Object> expiredValuesBuilder;
+	private final Caffeine<Object, Object> generationBuilder;
+	private final ValueInterner<V> interner;
+	private final boolean costAware;
+	private final Prefetcher<K> prefetcher;
+	private final Executor executor;
+	private long generation;
+	private final LongAdder uncountedHits = new LongAdder();
+	private final LongAdder uncountedMisses = new LongAdder();
+	private volatile com.github.benmanes.caffeine.cache.stats.CacheStats previousGenerationsStats = com.github.benmanes.caffeine.cache.stats.CacheStats.empty();
 
 	Cache(String name, List<CacheConfig> configurers) {
 		LOG.info("Creating new cache: {}", name);
 		Caffeine<Object, Object> cacheBuilder = Caffeine.newBuilder();
 		configurers.forEach(configurer -> configurer.configure(cacheBuilder));
+		CacheOptions options = CacheOptions.of(configurers);
+		if (options.adaptiveMaximumSize != CacheOptions.UNSET) {
+			if (options.maximumSize != CacheOptions.UNSET
+					&& (options.maximumSize < options.adaptiveMinimumSize || options.maximumSize > options.adaptiveMaximumSize)) {
+				throw new IllegalArgumentException(
+						"The maximum size " + options.maximumSize + " of the " + name + " cache is outside of its adaptive bounds, " +
+						"minimum " + options.adaptiveMinimumSize + " and maximum " + options.adaptiveMaximumSize);
+			}
+			if (options.maximumSize == CacheOptions.UNSET) {
+				cacheBuilder.maximumSize(options.adaptiveMinimumSize);
+			}
+			if (!options.recordStats) {
+				cacheBuilder.recordStats();
+			}
+		}
+
+		if (options.invalidateAllByGeneration && options.tagger != null) {
+			throw new IllegalArgumentException(
+					"The " + name + " cache can not both invalidate all entries by generation and tag entries, " +
+					"as the tags of every entry would need to be removed when invalidating all entries.");
+		}
+		this.tagIndex = options.tagger != null ? new TagIndex<>() : null;
+		this.tagger = options.tagger;
+		if (options.retainExpiredNanos != CacheOptions.UNSET) {
+			this.expiredValuesBuilder = Caffeine.newBuilder().expireAfterWrite(options.retainExpiredNanos, NANOSECONDS).ticker(options.ticker);
+			if (options.maximumSize != CacheOptions.UNSET) {
+				expiredValuesBuilder.maximumSize(options.maximumSize);
+			}
+			this.expiredValues = expiredValuesBuilder.build();
+		} else {
+			this.expiredValuesBuilder = null;
+			this.expiredValues = null;
+		}
+		if (tagIndex != null || expiredValues != null) {
+			cacheBuilder.evictionListener((key, value, cause) -> {
+				if (tagIndex != null) {
+					tagIndex.untag(castKey(key));
+				}
+				if (expiredValues != null && cause == RemovalCause.EXPIRED) {
+					expiredValues.put(castKey(key), castValue(value));
+				}
+			});
+		}
 
 		this.caffeineCache = cacheBuilder.build();
+		this.generationBuilder = options.invalidateAllByGeneration ? cacheBuilder : null;
+		this.executor = options.executor != null ? options.executor : ForkJoinPool.commonPool();
 		this.name = name;
+		this.adaptiveMinimumSize = options.adaptiveMinimumSize;
+		this.adaptiveMaximumSize = options.adaptiveMaximumSize;
+		this.trimOnMemoryPressure = options.trimOnMemoryPressure;
+		this.hotKeys = options.hotKeys > 0 ? new HotKeyTracker<>(options.hotKeys, options.maximumSize, executor) : null;
+		this.accessTrace = options.accessTrace;
+		this.ticker = options.ticker;
+		@SuppressWarnings("unchecked")
+		ToLongFunction<? super V> estimatedValueBytes = (ToLongFunction<? super V>) options.estimatedValueBytes;
+		this.costAware = options.costAware;
+		this.interner = options.deduplicateValues ? new ValueInterner<>(estimatedValueBytes) : null;
+		this.prefetcher = options.relatedKeys == null ? null : new Prefetcher<>(
+				options.relatedKeys, options.maxPrefetchesPerSecond, options.maxConcurrentPrefetches, executor,
+				options.maximumSize != CacheOptions.UNSET ? options.maximumSize : Prefetcher.DEFAULT_TRACKED_PREFETCHES);
+		CacheRegistry.getDefault().register(this);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Report the cost of loading the value which is being loaded on the current thread, for caches with a
+	 * {@link CacheConfig#costAwareMaximumSize(long, Duration) cost-aware maximum size}. This is to be invoked
+	 * by a {@link Loader} when the time it takes to load a value does not reflect its cost, e.g. when it loads
+	 * the value from a local copy, but had to compute it from a costly backend query. If not reported, the cost
+	 * is the measured time of loading the value.
+	 */
+	public static void reportLoadCost(Duration cost) {
+		CostAwareWeigher.reportCost(cost.toNanos());
 	}
 
 
 	/**
 	 * Retrieve a possibly cached value from the cache, or use the provided
 	 * {@code valueResolver} if the cache does not contain any value for the given
-	 * key.
+	 * key. As the {@code valueResolver} resolves the value of this key only, it
+	 * does not {@link CacheConfig#prefetchRelated(BiFunction, int) prefetch related keys}.
 	 */
 	public V get(final K key, final Callable<V> valueResolver) {
-		return get(key, Callables.toLoader(valueResolver));
+		return get(key, Callables.toLoader(valueResolver), false);
 	}
 
 	/**
@@ -86,19 +213,142 @@ public final class Cache<K, V> {
 	 * key.
 	 */
 	public V get(final K key, final Loader<? super K, V> valueResolver) {
+		return get(key, valueResolver, true);
+	}
+
+	private V get(K key, Loader<? super K, V> valueResolver, boolean mayPrefetch) {
+			if (hotKeys != null) {
+				hotKeys.recordAccess(key);
+			}
+			boolean traced = accessTrace != null && accessTrace.isSampled(key.hashCode());
+			boolean prefetching = mayPrefetch && prefetcher != null;
+			if (traced || prefetching) {
+				return getObserved(key, valueResolver, traced, prefetching);
+			}
+			return caffeineCache.get(key, k -> load(k, valueResolver, null));
+	}
+
+	/**
+	 * Load a new value for a key, replacing any value present in the cache. If a value is
+	 * present and the {@code valueResolver} is a {@link ReloadingLoader}, the value is reloaded
+	 * by giving the present value to {@link ReloadingLoader#reload(Object, Object)}.
+	 *
+	 * @return the new value.
+	 */
+	public V refresh(final K key, final Loader<? super K, V> valueResolver) {
+		return caffeineCache.asMap().compute(key, (k, present) -> load(k, valueResolver, present));
+	}
+
+	private V getObserved(K key, Loader<? super K, V> valueResolver, boolean traced, boolean prefetching) {
+		V value = caffeineCache.getIfPresent(key);
+		if (value != null) {
+			if (traced) {
+				accessTrace.record(key.hashCode(), ticker.read(), true);
+			}
+			if (prefetching) {
+				prefetcher.afterHit(key);
+			}
+			return value;
+		}
+		boolean[] loaded = new boolean[1];
+		try {
+			// the miss was counted by getIfPresent
+			value = getUncounted(key, valueResolver, loaded);
+		} finally {
+			if (traced) {
+				accessTrace.record(key.hashCode(), ticker.read(), !loaded[0]);
+			}
+		}
+		if (prefetching) {
+			if (loaded[0]) {
+				prefetcher.afterMiss(key, value, caffeineCache.asMap()::containsKey, related -> loadIfAbsent(related, valueResolver));
+			} else {
+				prefetcher.afterHit(key);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Load a value into the cache if absent, without prefetching any keys related to it,
+	 * and without counting it in the stats, as it was not requested.
+	 *
+	 * @return {@code true} if the value was loaded, or {@code false} if it was already present.
+	 */
+	private boolean loadIfAbsent(K key, Loader<? super K, V> valueResolver) {
+		boolean[] loaded = new boolean[1];
+		getUncounted(key, valueResolver, loaded);
+		return loaded[0];
+	}
+
+	/**
+	 * Get a value from the cache, loading it if absent, without counting the lookup as a hit or miss
+	 * in the {@link #getCacheStats() stats}. The lookups are counted by Caffeine, also through
+	 * {@link com.github.benmanes.caffeine.cache.Cache#asMap() asMap().computeIfAbsent}, and are
+	 * subtracted from its stats.
+	 */
+	private V getUncounted(K key, Loader<? super K, V> valueResolver, boolean[] loaded) {
+		try {
 			return caffeineCache.get(key, k -> {
-				LOG.debug("{} resolving value for key {}", name, k);
-				V value;
-				try {
-					value = valueResolver.load(k);
-				} catch (RuntimeException runtimeException) {
-					throw runtimeException;
-				} catch (Exception e) {
-					throw new RuntimeException(getCauseDescription(e), e);
-				}
-				LOG.info("Loaded '{}' into '{}' cache for key '{}'", value, name, k);
-				return value;
+				loaded[0] = true;
+				return load(k, valueResolver, null);
 			});
+		} finally {
+			(loaded[0] ? uncountedMisses : uncountedHits).increment();
+		}
+	}
+
+	private V load(K key, Loader<? super K, V> valueResolver, V present) {
+		LOG.debug("{} resolving value for key {}", name, key);
+		if (hotKeys != null) {
+			hotKeys.recordMiss(key);
+		}
+		V previous = present;
+		if (previous == null && expiredValues != null) {
+			previous = expiredValues.asMap().remove(key);
+		}
+		V value;
+		long costReportedByEnclosingLoad = costAware ? CostAwareWeigher.startLoading() : 0;
+		long start = System.nanoTime();
+		try {
+			if (previous != null && valueResolver instanceof ReloadingLoader) {
+				@SuppressWarnings("unchecked")
+				ReloadingLoader<? super K, V> reloadingLoader = (ReloadingLoader<? super K, V>) valueResolver;
+				value = reloadingLoader.reload(key, previous);
+			} else {
+				value = valueResolver.load(key);
+			}
+			if (costAware && value != null) {
+				CostAwareWeigher.loaded(System.nanoTime() - start);
+			}
+		} catch (RuntimeException runtimeException) {
+			throw runtimeException;
+		} catch (Exception e) {
+			throw new RuntimeException(getCauseDescription(e), e);
+		} finally {
+			latencies.recordSince(LOAD, start);
+			if (costAware) {
+				CostAwareWeigher.finishLoading(costReportedByEnclosingLoad);
+			}
+		}
+		LOG.info("Loaded '{}' into '{}' cache for key '{}'", value, name, key);
+		if (interner != null) {
+			value = interner.intern(value);
+		}
+		if (tagIndex != null && value != null) {
+			tagIndex.tag(key, tagger.apply(key, value));
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K> K castKey(Object key) {
+		return (K) key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> V castValue(Object value) {
+		return (V) value;
 	}
 
 	private String getCauseDescription(final Throwable cause) {
@@ -107,7 +357,11 @@ public final class Cache<K, V> {
 
 	public void invalidateAll() {
 		LOG.debug("Invalidating all in {} cache", name);
-		caffeineCache.invalidateAll();
+		removeAll();
+		InvalidationBusConnection<K> connection = invalidationBus.get();
+		if (connection != null) {
+			connection.bus.publish(Invalidation.ofAll(name));
+		}
 	}
 
 	@SafeVarargs
@@ -117,11 +371,301 @@ public final class Cache<K, V> {
 
 	public void invalidate(Iterable<? extends K> keys) {
 		LOG.debug("Invalidating specific keys in {} cache", name);
-		caffeineCache.invalidateAll(keys);
+		remove(keys);
+		InvalidationBusConnection<K> connection = invalidationBus.get();
+		if (connection != null) {
+			connection.bus.publish(Invalidation.ofKeys(name, StreamSupport.stream(keys.spliterator(), false).map(connection.keyCodec::encode).collect(toList())));
+		}
+	}
+
+	/**
+	 * Invalidate all entries tagged with the given tag, as resolved by the tagging function given
+	 * with {@link CacheConfig#taggedBy(BiFunction)} when the entries were loaded. This takes time
+	 * proportional to the number of entries with the tag, not the size of the cache.
+	 *
+	 * @throws IllegalStateException if the cache was not created with a tagging function.
+	 */
+	public void invalidateTag(Object tag) {
+		if (tagIndex == null) {
+			throw new IllegalStateException("The " + name + " cache does not tag its entries. Use CacheConfig.taggedBy(..) to enable tagging.");
+		}
+		LOG.debug("Invalidating entries tagged {} in {} cache", tag, name);
+		invalidate(new ArrayList<>(tagIndex.keysTaggedWith(tag)));
+	}
+
+	private void remove(Iterable<? extends K> keys) {
+		if (tagIndex == null) {
+			caffeineCache.invalidateAll(keys);
+		} else {
+			for (K key : keys) {
+				caffeineCache.asMap().computeIfPresent(key, (k, value) -> {
+					tagIndex.untag(k);
+					return null;
+				});
+			}
+		}
+		if (expiredValues != null) {
+			expiredValues.invalidateAll(keys);
+		}
+	}
+
+	private void removeAll() {
+		if (generationBuilder != null) {
+			startNewGeneration();
+			return;
+		} else if (tagIndex == null) {
+			caffeineCache.invalidateAll();
+		} else {
+			remove(new ArrayList<>(caffeineCache.asMap().keySet()));
+			// expired entries are not visible in the map, and are untagged when evicted by cleaning up
+			caffeineCache.cleanUp();
+		}
+		if (expiredValues != null) {
+			expiredValues.invalidateAll();
+		}
+	}
+
+	private synchronized void startNewGeneration() {
+		com.github.benmanes.caffeine.cache.Cache<K, V> previous = caffeineCache;
+		com.github.benmanes.caffeine.cache.Cache<K, V> next = generationBuilder.build();
+		previous.policy().eviction().ifPresent(previousEviction ->
+				next.policy().eviction().ifPresent(eviction -> eviction.setMaximum(previousEviction.getMaximum())));
+		caffeineCache = next;
+		if (expiredValuesBuilder != null) {
+			expiredValues = expiredValuesBuilder.build();
+		}
+		previousGenerationsStats = previousGenerationsStats.plus(previous.stats());
+		long started = ++generation;
+		LOG.debug("Started generation {} of {} cache, leaving about {} entries of the previous generation for garbage collection",
+				started, name, previous.estimatedSize());
+	}
+
+	/**
+	 * Connect this cache to an {@link InvalidationBus}. Invalidations of this cache are then also
+	 * published to caches with the same name in other processes, and invalidations published by
+	 * them are applied to this cache. Caches in separate processes must be created with the same
+	 * explicitly given name in order to be invalidated together.
+	 *
+	 * @param keyCodec converts keys to and from the string representation published on the bus.
+	 * @return the subscription to the bus, which disconnects this cache from the bus when closed.
+	 */
+	public InvalidationBus.Subscription connectTo(InvalidationBus bus, KeyCodec<K> keyCodec) {
+		InvalidationBusConnection<K> connection = new InvalidationBusConnection<>(bus, keyCodec);
+		if (!invalidationBus.compareAndSet(null, connection)) {
+			throw new IllegalStateException("The " + name + " cache is already connected to " + invalidationBus.get().bus);
+		}
+		InvalidationBus.Subscription subscription = bus.subscribe(name, invalidation -> {
+			LOG.debug("Applying {} published by another process", invalidation);
+			if (invalidation.isAll()) {
+				removeAll();
+			} else {
+				remove(invalidation.getKeys().stream().map(keyCodec::decode).collect(toList()));
+			}
+		});
+		return () -> {
+			subscription.close();
+			invalidationBus.compareAndSet(connection, null);
+		};
 	}
 
 	public CacheStats getCacheStats() {
-		return CacheStats.fromCaffeineStats(caffeineCache.stats());
+		CacheStats stats = CacheStats.fromCaffeineStats(caffeineCache.stats().plus(previousGenerationsStats)
+				.minus(com.github.benmanes.caffeine.cache.stats.CacheStats.of(uncountedHits.sum(), uncountedMisses.sum(), 0, 0, 0, 0, 0)));
+		if (tagIndex != null) {
+			stats = stats.withTagIndex(tagIndex.tagCount(), tagIndex.estimatedBytes());
+		}
+		if (interner != null) {
+			stats = stats.withValueDeduplication(interner.size(), interner.getDeduplicatedValues(), interner.getEstimatedBytesSaved());
+		}
+		if (prefetcher != null) {
+			stats = stats.withPrefetching(prefetcher.getPrefetched(), prefetcher.getPrefetchHits(), prefetcher.getDropped());
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the most frequently accessed and missed keys, if enabled by
+	 *         {@link CacheConfig#trackHotKeys(int)}, otherwise no keys.
+	 */
+	@SuppressWarnings("unchecked")
+	public HotKeys<K> getHotKeys() {
+		return hotKeys != null ? hotKeys.snapshot() : (HotKeys<K>) HotKeys.NOT_TRACKED;
+	}
+
+	/**
+	 * @return the latencies of loading values into this cache. Snapshots of the latencies
+	 *         may be taken at any time, and be reset per interval.
+	 */
+	public Latencies getLatencies() {
+		return latencies;
+	}
+
+	boolean isAdaptivelySized() {
+		return adaptiveMaximumSize != CacheOptions.UNSET;
+	}
+
+	long getAdaptiveMinimumSize() {
+		return adaptiveMinimumSize;
+	}
+
+	long getAdaptiveMaximumSize() {
+		return adaptiveMaximumSize;
+	}
+
+	long getMaximumSize() {
+		return caffeineCache.policy().eviction().map(eviction -> eviction.getMaximum() / weightPerEntry()).orElse(-1L);
+	}
+
+	void setMaximumSize(long maximumSize) {
+		caffeineCache.policy().eviction().ifPresent(eviction -> eviction.setMaximum(maximumSize * weightPerEntry()));
+	}
+
+	private long weightPerEntry() {
+		return costAware ? CostAwareWeigher.FULL_WEIGHT : 1;
+	}
+
+	boolean isTrimmedOnMemoryPressure() {
+		return trimOnMemoryPressure;
+	}
+
+	/**
+	 * Remove the given fraction of the entries, the coldest first according to the eviction
+	 * policy of the cache, or else the least recently accessed or written if the cache expires entries.
+	 *
+	 * @return the number of removed entries.
+	 */
+	int trim(double fraction) {
+		int count = (int) Math.min(Integer.MAX_VALUE, Math.ceil(caffeineCache.estimatedSize() * fraction));
+		if (count == 0) {
+			return 0;
+		}
+		Policy<K, V> policy = caffeineCache.policy();
+		Set<K> coldest = policy.eviction().map(eviction -> eviction.coldest(count).keySet())
+				.orElseGet(() -> policy.expireAfterAccess().map(expiry -> expiry.oldest(count).keySet())
+				.orElseGet(() -> policy.expireAfterWrite().map(expiry -> expiry.oldest(count).keySet())
+				.orElseGet(() -> caffeineCache.asMap().keySet().stream().limit(count).collect(toSet()))));
+		LOG.debug("Trimming {} entries from {} cache", coldest.size(), name);
+		remove(coldest);
+		return coldest.size();
+	}
+
+	/**
+	 * Write all entries of the cache to a snapshot file, which may be used to
+	 * {@link #restoreFrom(Path, Marshaller, Marshaller) restore} the entries into a cache
+	 * after a restart, instead of starting with an empty cache.
+	 *
+	 * @return the number of entries written to the snapshot.
+	 * @see #snapshotTo(Path, Marshaller, Marshaller, int)
+	 */
+	public int snapshotTo(Path file, Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller) throws IOException {
+		return snapshotTo(file, keyMarshaller, valueMarshaller, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Write the hottest entries of the cache to a snapshot file, which may be used to
+	 * {@link #restoreFrom(Path, Marshaller, Marshaller) restore} the entries into a cache
+	 * after a restart. The entries are selected in the order of the eviction policy of the cache,
+	 * or else by the most recently accessed or written if the cache expires entries. The remaining
+	 * time to live of each entry is kept in the snapshot, and the file is replaced atomically.
+	 *
+	 * @param hottest the maximum number of entries to include.
+	 * @return the number of entries written to the snapshot.
+	 */
+	public int snapshotTo(Path file, Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, int hottest) throws IOException {
+		Policy<K, V> policy = caffeineCache.policy();
+		Map<K, V> entries = hottest >= caffeineCache.estimatedSize() ? caffeineCache.asMap()
+				: policy.eviction().map(eviction -> eviction.hottest(hottest))
+				.orElseGet(() -> policy.expireAfterAccess().map(expiry -> expiry.youngest(hottest))
+				.orElseGet(() -> policy.expireAfterWrite().map(expiry -> expiry.youngest(hottest))
+				.orElseGet(() -> caffeineCache.asMap().entrySet().stream().limit(hottest).collect(toMap(Map.Entry::getKey, Map.Entry::getValue)))));
+		int written = EntrySnapshotFile.write(file, entries, this::remainingNanos, keyMarshaller, valueMarshaller, System.currentTimeMillis());
+		LOG.info("Wrote snapshot of {} entries in {} cache to {}", written, name, file);
+		return written;
+	}
+
+	/**
+	 * Restore entries from a snapshot file written by {@link #snapshotTo(Path, Marshaller, Marshaller) snapshotTo},
+	 * using the common {@link ForkJoinPool} to restore entries in parallel.
+	 *
+	 * @return the number of restored entries.
+	 * @see #restoreFrom(Path, Marshaller, Marshaller, Executor)
+	 */
+	public int restoreFrom(Path file, Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller) throws IOException {
+		return restoreFrom(file, keyMarshaller, valueMarshaller, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Restore entries from a snapshot file written by {@link #snapshotTo(Path, Marshaller, Marshaller) snapshotTo}.
+	 * The file is read sequentially, while the entries are unmarshalled and put into the cache using the
+	 * given executor. Entries keep the time to live they had left when the snapshot was taken, minus the time
+	 * passed since then, and expired entries are skipped. Entries already present in the cache are not replaced.
+	 * If the snapshot file does not exist, nothing is restored.
+	 *
+	 * @return the number of restored entries.
+	 */
+	public int restoreFrom(Path file, Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, Executor executor) throws IOException {
+		if (!Files.exists(file)) {
+			LOG.info("No snapshot {} to restore {} cache from", file, name);
+			return 0;
+		}
+		long shortestTimeToLive = shortestTimeToLiveNanos();
+		int restored = EntrySnapshotFile.read(file, keyMarshaller, valueMarshaller, executor, System.currentTimeMillis(), (key, value, remainingNanos) -> {
+			long age = remainingNanos == EntrySnapshotFile.NO_EXPIRY || shortestTimeToLive == EntrySnapshotFile.NO_EXPIRY ? 0 : Math.max(0, shortestTimeToLive - remainingNanos);
+			BackdatableTicker.backdated(age, () -> caffeineCache.asMap().computeIfAbsent(key, k -> {
+				V restoredValue = interner != null ? interner.intern(value) : value;
+				if (tagIndex != null) {
+					tagIndex.tag(k, tagger.apply(k, restoredValue));
+				}
+				return restoredValue;
+			}));
+		});
+		LOG.info("Restored {} entries into {} cache from {}", restored, name, file);
+		return restored;
+	}
+
+	private long remainingNanos(K key) {
+		Policy<K, V> policy = caffeineCache.policy();
+		long remaining = EntrySnapshotFile.NO_EXPIRY;
+		for (Optional<Policy.Expiration<K, V>> expiration : asList(policy.expireAfterWrite(), policy.expireAfterAccess())) {
+			if (expiration.isPresent()) {
+				OptionalLong age = expiration.get().ageOf(key, NANOSECONDS);
+				if (!age.isPresent()) {
+					return 0;
+				}
+				long remainingAfterExpiration = expiration.get().getExpiresAfter(NANOSECONDS) - age.getAsLong();
+				remaining = remaining == EntrySnapshotFile.NO_EXPIRY ? remainingAfterExpiration : Math.min(remaining, remainingAfterExpiration);
+			}
+		}
+		return remaining;
+	}
+
+	private long shortestTimeToLiveNanos() {
+		Policy<K, V> policy = caffeineCache.policy();
+		long shortest = EntrySnapshotFile.NO_EXPIRY;
+		for (Optional<Policy.Expiration<K, V>> expiration : asList(policy.expireAfterWrite(), policy.expireAfterAccess())) {
+			if (expiration.isPresent()) {
+				long timeToLive = expiration.get().getExpiresAfter(NANOSECONDS);
+				shortest = shortest == EntrySnapshotFile.NO_EXPIRY ? timeToLive : Math.min(shortest, timeToLive);
+			}
+		}
+		return shortest;
+	}
+
+	CacheSnapshot snapshot() {
+		Optional<Policy.Eviction<K, V>> eviction = caffeineCache.policy().eviction();
+		long maximumSize = getMaximumSize();
+		long weightedSize = eviction.isPresent() ? eviction.get().weightedSize().orElse(-1) : -1;
+		return new CacheSnapshot(name, caffeineCache.estimatedSize(), maximumSize, weightedSize, getCacheStats());
+	}
+
+	private static final class InvalidationBusConnection<K> {
+		final InvalidationBus bus;
+		final KeyCodec<K> keyCodec;
+
+		InvalidationBusConnection(InvalidationBus bus, KeyCodec<K> keyCodec) {
+			this.bus = bus;
+			this.keyCodec = keyCodec;
+		}
 	}
 
 }
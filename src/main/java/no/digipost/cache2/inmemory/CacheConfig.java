@@ -17,68 +17,278 @@ package no.digipost.cache2.inmemory;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Ticker;
+import no.digipost.cache2.trace.AccessTraceRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Clock;
 import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
 public abstract class CacheConfig implements ConfiguresCaffeine {
 
 	private static final Logger LOG = LoggerFactory.getLogger(CacheConfig.class);
 
 
+    /**
+     * Use soft references for values, letting the garbage collector clear them when memory is low.
+     * Consider {@link #trimOnMemoryPressure} instead, as soft references add overhead to every
+     * garbage collection, and may be cleared all at once.
+     */
     public static final CacheConfig useSoftValues = onCacheBuilder(builder -> {
 		LOG.info("Using soft references for caching. See http://docs.oracle.com/javase/1.5.0/docs/api/java/lang/ref/SoftReference.html");
 		return builder.softValues();
-	});
+	}, options -> options.softValues = true);
+
+	/**
+	 * Let a {@link MemoryPressureTrimmer} remove the coldest entries of the cache
+	 * gradually when the heap is under pressure.
+	 */
+	public static final CacheConfig trimOnMemoryPressure = onCacheBuilder(builder -> {
+		LOG.info("Trimming cache on memory pressure");
+		return builder;
+	}, options -> options.trimOnMemoryPressure = true);
+
+	/**
+	 * Make {@link Cache#invalidateAll()} take constant time, regardless of the number of entries, by
+	 * replacing all entries with a new, empty generation of the cache. The entries of the previous
+	 * generation are left for the garbage collector, and removal listeners are not notified of them.
+	 * Statistics and the maximum size of the cache carry over to the new generation, while any
+	 * {@link #retainExpiredValuesFor(Duration) retained expired values} are left behind along with the entries.
+	 * <p>
+	 * This can not be combined with {@link #taggedBy(BiFunction) tagging entries}.
+	 */
+	public static final CacheConfig invalidateAllByGeneration = onCacheBuilder(builder -> {
+		LOG.info("Invalidating all entries by generation");
+		return builder;
+	}, options -> options.invalidateAllByGeneration = true);
+
+	/**
+	 * Deduplicate equal values, so that all entries with equal values share one instance, for caches
+	 * where many keys have equal values. Loaded values are replaced by an equal value already in the
+	 * cache, if any. This relies on the values having proper {@code equals} and {@code hashCode}
+	 * implementations, and on the values not being mutated. Cache hits are not affected.
+	 */
+	public static final CacheConfig deduplicateValues = onCacheBuilder(builder -> {
+		LOG.info("Deduplicating equal values");
+		return builder;
+	}, options -> options.deduplicateValues = true);
+
+	/**
+	 * {@link #deduplicateValues Deduplicate equal values}, and report the memory saved in the
+	 * {@link CacheStats#getValueDeduplicationEstimatedBytesSaved() stats} of the cache.
+	 *
+	 * @param estimatedBytes estimates the memory used by a value.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> CacheConfig deduplicateValues(ToLongFunction<? super V> estimatedBytes) {
+		return onCacheBuilder(builder -> {
+			LOG.info("Deduplicating equal values, estimating memory saved");
+			return builder;
+		}, options -> {
+			options.deduplicateValues = true;
+			options.estimatedValueBytes = (ToLongFunction<Object>) estimatedBytes;
+		});
+	}
 
 	public static CacheConfig expireAfterAccess(final Duration expiryTime) {
 		return onCacheBuilder(builder -> {
 			LOG.info("Expires values {} ms after last access", expiryTime.toMillis());
 			return builder.expireAfterAccess(expiryTime.toMillis(), TimeUnit.MILLISECONDS);
-        });
+        }, options -> options.expireAfterAccessNanos = TimeUnit.MILLISECONDS.toNanos(expiryTime.toMillis()));
 	}
 
 	public static CacheConfig expireAfterWrite(final Duration expiryTime) {
 		return onCacheBuilder(builder -> {
 			LOG.info("Expire values {} ms after they are written to the cache", expiryTime.toMillis());
 			return builder.expireAfterWrite(expiryTime.toMillis(), TimeUnit.MILLISECONDS);
-        });
+        }, options -> options.expireAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(expiryTime.toMillis()));
+	}
+
+	/**
+	 * Keep values which have expired for a while, to give them to a
+	 * {@link no.digipost.cache2.loader.ReloadingLoader ReloadingLoader} when the value is loaded again,
+	 * allowing the loader to reload the value cheaply, e.g. by checking if it has changed.
+	 * Expired values are retained until they are reloaded, invalidated, or the given duration has passed since they were evicted.
+	 */
+	public static CacheConfig retainExpiredValuesFor(final Duration retention) {
+		return onCacheBuilder(builder -> {
+			LOG.info("Retains expired values {} ms for reloading", retention.toMillis());
+			return builder;
+		}, options -> options.retainExpiredNanos = retention.toNanos());
 	}
 
 	public static CacheConfig initialCapacity(final int initCapacity) {
 		return onCacheBuilder(builder -> {
 			LOG.info("Initial capacity = {}" , initCapacity);
 			return builder.initialCapacity(initCapacity);
-	    });
+	    }, options -> options.initialCapacity = initCapacity);
 	}
 
 	public static CacheConfig maximumSize(final long size) {
 		return onCacheBuilder(builder -> {
 			LOG.info("Maximum size = {}", size);
 			return builder.maximumSize(size);
+		}, options -> options.maximumSize = size);
+	}
+
+	/**
+	 * Limit the size of the cache, while letting entries which are costly to load survive longer than
+	 * cheap ones. The cost of an entry is the time it took to load it, or the cost reported by the loader
+	 * with {@link Cache#reportLoadCost(Duration)}. The cache holds at most {@code maximumSize} entries costing
+	 * the reference cost or less, and proportionally more entries the more costly they are, up to
+	 * {@value CostAwareWeigher#FULL_WEIGHT} times as many entries costing {@value CostAwareWeigher#FULL_WEIGHT}
+	 * times the reference cost or more.
+	 *
+	 * @param referenceCost the cost of a typical cheap entry.
+	 */
+	public static CacheConfig costAwareMaximumSize(final long maximumSize, final Duration referenceCost) {
+		return onCacheBuilder(builder -> {
+			LOG.info("Cost-aware maximum size = {}, reference cost = {}", maximumSize, referenceCost);
+			return builder.maximumWeight(maximumSize * CostAwareWeigher.FULL_WEIGHT).weigher(new CostAwareWeigher(referenceCost.toNanos()));
+		}, options -> {
+			options.maximumSize = maximumSize;
+			options.costAware = true;
+		});
+	}
+
+	/**
+	 * Let {@link AdaptiveSizing} adjust the maximum size of the cache within the given bounds.
+	 * The cache starts with the size given by {@link #maximumSize(long)}, or else the minimum size.
+	 * Stats are always recorded for adaptively sized caches, as they are needed to decide
+	 * if a cache should grow.
+	 *
+	 * @param minimumSize the size the cache will never be shrunk below.
+	 * @param maximumSize the size the cache will never be grown beyond.
+	 */
+	public static CacheConfig adaptiveMaximumSize(final long minimumSize, final long maximumSize) {
+		if (minimumSize < 0 || minimumSize > maximumSize) {
+			throw new IllegalArgumentException("Invalid bounds for adaptive size: minimum " + minimumSize + ", maximum " + maximumSize);
+		}
+		return onCacheBuilder(builder -> {
+			LOG.info("Adaptive maximum size between {} and {}", minimumSize, maximumSize);
+			return builder;
+		}, options -> {
+			options.adaptiveMinimumSize = minimumSize;
+			options.adaptiveMaximumSize = maximumSize;
 		});
 	}
 
+	/**
+	 * Run maintenance, removal notifications and asynchronous work of the cache on the given executor,
+	 * instead of the common {@link java.util.concurrent.ForkJoinPool}.
+	 *
+	 * @see no.digipost.cache2.concurrent.VirtualThreads#newExecutor(String)
+	 */
+	public static CacheConfig executor(final Executor executor) {
+		return onCacheBuilder(builder -> {
+			LOG.info("Executor = {}", executor);
+			return builder.executor(executor);
+		}, options -> options.executor = executor);
+	}
+
 	public static CacheConfig recordStats() {
 		return onCacheBuilder(builder -> {
 			LOG.info("Recording stats");
 			return builder.recordStats();
+		}, options -> options.recordStats = true);
+	}
+
+	/**
+	 * Track the keys which are most frequently accessed, and most frequently missed, available
+	 * from {@link Cache#getHotKeys()}. The frequencies are estimated using a count-min sketch,
+	 * which adds a small constant overhead to every access of the cache.
+	 *
+	 * @param topK the number of keys to keep track of, for accesses and misses each.
+	 */
+	public static CacheConfig trackHotKeys(int topK) {
+		if (topK < 1) {
+			throw new IllegalArgumentException("Number of hot keys to track must be positive, but was " + topK);
+		}
+		return onCacheBuilder(builder -> {
+			LOG.info("Tracking the {} most accessed and missed keys", topK);
+			return builder;
+		}, options -> options.hotKeys = topK);
+	}
+
+	/**
+	 * Tag the entries of the cache when they are loaded, in order to
+	 * {@link Cache#invalidateTag(Object) invalidate} all entries with a given tag,
+	 * e.g. all entries belonging to one organisation. The tags should have proper
+	 * {@code equals} and {@code hashCode} implementations.
+	 * <p>
+	 * As the types of the keys and values can not be inferred from the cache, the
+	 * parameter types of the tagging function must usually be given explicitly, e.g.
+	 * {@code taggedBy((Long key, Settings settings) -> singleton(settings.getOrganisationId()))}.
+	 *
+	 * @param tagger resolves the tags of a loaded entry from its key and value.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> CacheConfig taggedBy(BiFunction<? super K, ? super V, ? extends Collection<?>> tagger) {
+		return onCacheBuilder(builder -> {
+			LOG.info("Tagging entries");
+			return builder;
+		}, options -> options.tagger = (BiFunction<Object, Object, ? extends Collection<?>>) tagger);
+	}
+
+	/**
+	 * Prefetch the keys related to a key which is missed, e.g. the settings of the organisation of
+	 * a user which was just loaded, so that the lookups of them which are likely to follow will hit.
+	 * The related keys are loaded in the background on the {@link #executor(Executor) executor} of
+	 * the cache, using the {@link no.digipost.cache2.loader.Loader Loader} which loaded the missed key.
+	 * Prefetches beyond the given rate, or beyond 4 at the same time, are dropped.
+	 * How many prefetched entries were used is reported in the {@link CacheStats#getPrefetchHits() stats}.
+	 *
+	 * @param relatedKeys resolves the keys related to a loaded entry from its key and value.
+	 * @param maxPrefetchesPerSecond the maximum number of keys to prefetch per second.
+	 */
+	public static <K, V> CacheConfig prefetchRelated(BiFunction<? super K, ? super V, ? extends Collection<? extends K>> relatedKeys, int maxPrefetchesPerSecond) {
+		return prefetchRelated(relatedKeys, maxPrefetchesPerSecond, 4);
+	}
+
+	/**
+	 * {@link #prefetchRelated(BiFunction, int) Prefetch the keys related to a key which is missed},
+	 * running at most {@code maxConcurrentPrefetches} prefetches at the same time.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> CacheConfig prefetchRelated(
+			BiFunction<? super K, ? super V, ? extends Collection<? extends K>> relatedKeys, int maxPrefetchesPerSecond, int maxConcurrentPrefetches) {
+		if (maxPrefetchesPerSecond <= 0 || maxConcurrentPrefetches <= 0) {
+			throw new IllegalArgumentException(
+					"Invalid prefetch limits: " + maxPrefetchesPerSecond + " per second, " + maxConcurrentPrefetches + " concurrent");
+		}
+		return onCacheBuilder(builder -> {
+			LOG.info("Prefetching related keys, at most {} per second and {} concurrently", maxPrefetchesPerSecond, maxConcurrentPrefetches);
+			return builder;
+		}, options -> {
+			options.relatedKeys = (BiFunction<Object, Object, ? extends Collection<?>>) relatedKeys;
+			options.maxPrefetchesPerSecond = maxPrefetchesPerSecond;
+			options.maxConcurrentPrefetches = maxConcurrentPrefetches;
 		});
 	}
 
+	/**
+	 * Record a sample of the accesses of the cache to an access trace, which may be replayed
+	 * with {@link no.digipost.cache2.trace.TraceReplay} to evaluate other configurations of the cache.
+	 */
+	public static CacheConfig recordAccessTrace(AccessTraceRecorder recorder) {
+		return onCacheBuilder(builder -> {
+			LOG.info("Recording accesses to {}", recorder.getTraceFile());
+			return builder;
+		}, options -> options.accessTrace = recorder);
+	}
+
 	static CacheConfig clockTicker(Clock clock) {
+	    Ticker ticker = new BackdatableTicker(() -> clock.millis() * 1000000);
 	    return onCacheBuilder(builder -> {
 	        LOG.info("Using a {} as the clock source", clock.getClass().getName());
-	        return builder.ticker(new Ticker() {
-	            @Override
-	            public long read() {
-	                return clock.millis() * 1000000;
-	            }
-	        });
-	    });
+	        return builder.ticker(ticker);
+	    }, options -> options.ticker = ticker);
 	}
 
 	static final CacheConfig systemClockTicker = clockTicker(Clock.systemDefaultZone());
@@ -88,14 +298,30 @@ public abstract class CacheConfig implements ConfiguresCaffeine {
 
 
 	private static CacheConfig onCacheBuilder(ConfiguresCaffeine configurer) {
+	    return onCacheBuilder(configurer, options -> {});
+	}
+
+	private static CacheConfig onCacheBuilder(ConfiguresCaffeine configurer, Consumer<CacheOptions> optionsConfigurer) {
 	    return new CacheConfig() {
             @Override
             public Caffeine<Object, Object> configure(Caffeine<Object, Object> builder) {
                 return configurer.configure(builder);
             }
+
+            @Override
+            void configure(CacheOptions options) {
+                optionsConfigurer.accept(options);
+            }
 	    };
 	}
 
     protected CacheConfig() {
 	}
+
+	/**
+	 * Apply settings which are not expressed through Caffeine's cache builder.
+	 * Configuration which only applies to the builder does not need to override this.
+	 */
+	void configure(CacheOptions options) {
+	}
 }
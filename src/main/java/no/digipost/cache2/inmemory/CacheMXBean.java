@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+/**
+ * Management interface of a {@link Cache}, as exposed through JMX by the {@link CacheRegistry}.
+ */
+public interface CacheMXBean {
+
+	String getName();
+
+	long getEstimatedSize();
+
+	long getMaximumSize();
+
+	long getWeightedSize();
+
+	long getRequestCount();
+
+	long getHitCount();
+
+	double getHitRate();
+
+	long getMissCount();
+
+	double getMissRate();
+
+	long getEvictionCount();
+
+	void invalidateAll();
+
+	/**
+	 * Invalidate a single entry of a cache with {@code String} keys.
+	 */
+	void invalidate(String key);
+
+}
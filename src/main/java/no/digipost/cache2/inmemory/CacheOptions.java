@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import no.digipost.cache2.trace.AccessTraceRecorder;
+
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The settings given by {@link CacheConfig}s which are needed by the cache implementations
+ * in this package in addition to configuring Caffeine's cache builder.
+ */
+final class CacheOptions {
+
+	static CacheOptions of(Iterable<? extends CacheConfig> configurers) {
+		CacheOptions options = new CacheOptions();
+		configurers.forEach(configurer -> configurer.configure(options));
+		return options;
+	}
+
+	static final long UNSET = -1;
+
+	int initialCapacity = (int) UNSET;
+	long maximumSize = UNSET;
+	long expireAfterAccessNanos = UNSET;
+	long expireAfterWriteNanos = UNSET;
+	long retainExpiredNanos = UNSET;
+	boolean costAware;
+	boolean recordStats;
+	boolean softValues;
+	boolean trimOnMemoryPressure;
+	boolean invalidateAllByGeneration;
+	int hotKeys;
+	long adaptiveMinimumSize = UNSET;
+	long adaptiveMaximumSize = UNSET;
+	AccessTraceRecorder accessTrace;
+	BiFunction<Object, Object, ? extends Collection<?>> tagger;
+	Ticker ticker = Ticker.systemTicker();
+	Executor executor;
+	boolean deduplicateValues;
+	ToLongFunction<Object> estimatedValueBytes;
+	BiFunction<Object, Object, ? extends Collection<?>> relatedKeys;
+	int maxPrefetchesPerSecond;
+	int maxConcurrentPrefetches;
+
+}
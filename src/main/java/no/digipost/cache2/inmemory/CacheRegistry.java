@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps track of all {@link Cache}s, including the ones used by {@link SingleCached},
+ * as they are created. The registry only holds weak references to the caches, and
+ * does not prevent them from being garbage collected.
+ * <p>
+ * The caches can be exposed as {@link CacheMXBean}s through JMX, and a {@link #getSnapshot() snapshot}
+ * of all caches can be retrieved, either directly or through the registry's own {@link CacheRegistryMXBean}.
+ */
+public final class CacheRegistry implements CacheRegistryMXBean {
+
+	private static final CacheRegistry DEFAULT = new CacheRegistry();
+
+	/**
+	 * @return the registry which all caches are registered with when they are created.
+	 */
+	public static CacheRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	public static final String JMX_DOMAIN = "no.digipost.cache2";
+
+	private static final Logger LOG = LoggerFactory.getLogger(CacheRegistry.class);
+
+	private final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+	private final ReferenceQueue<Cache<?, ?>> collected = new ReferenceQueue<>();
+	private MBeanServer mbeanServer;
+
+	CacheRegistry() {
+	}
+
+	void register(Cache<?, ?> cache) {
+		expungeCollected();
+		Registration registration = new Registration(cache, collected);
+		registrations.add(registration);
+		synchronized (this) {
+			if (mbeanServer != null) {
+				registration.expose(mbeanServer);
+			}
+		}
+	}
+
+	/**
+	 * @return all caches which have not yet been garbage collected.
+	 */
+	public List<Cache<?, ?>> getCaches() {
+		expungeCollected();
+		List<Cache<?, ?>> caches = new ArrayList<>();
+		for (Registration registration : registrations) {
+			Cache<?, ?> cache = registration.get();
+			if (cache != null) {
+				caches.add(cache);
+			}
+		}
+		return caches;
+	}
+
+	@Override
+	public List<String> getCacheNames() {
+		return getCaches().stream().map(Cache::getName).sorted().collect(toList());
+	}
+
+	@Override
+	public List<CacheSnapshot> getSnapshot() {
+		return getCaches().stream().map(Cache::snapshot).collect(toList());
+	}
+
+	/**
+	 * Expose the registry and all caches through JMX, using the platform {@code MBeanServer}.
+	 * Caches created afterwards will also be exposed.
+	 */
+	public void exposeViaJmx() {
+		exposeViaJmx(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public synchronized void exposeViaJmx(MBeanServer server) {
+		if (mbeanServer != null) {
+			throw new IllegalStateException("Caches are already exposed through JMX");
+		}
+		try {
+			server.registerMBean(this, registryObjectName());
+		} catch (JMException e) {
+			throw new IllegalStateException("Unable to expose cache registry through JMX, because "
+					+ e.getClass().getSimpleName() + ": '" + e.getMessage() + "'", e);
+		}
+		mbeanServer = server;
+		expungeCollected();
+		registrations.forEach(registration -> registration.expose(server));
+	}
+
+	public synchronized void unexposeViaJmx() {
+		if (mbeanServer == null) {
+			return;
+		}
+		registrations.forEach(registration -> registration.unexpose(mbeanServer));
+		try {
+			mbeanServer.unregisterMBean(registryObjectName());
+		} catch (JMException e) {
+			LOG.warn("Unable to unregister cache registry from JMX, because {}: '{}'", e.getClass().getSimpleName(), e.getMessage());
+		}
+		mbeanServer = null;
+	}
+
+	private void expungeCollected() {
+		for (Reference<? extends Cache<?, ?>> reference = collected.poll(); reference != null; reference = collected.poll()) {
+			Registration registration = (Registration) reference;
+			registrations.remove(registration);
+			synchronized (this) {
+				if (mbeanServer != null) {
+					registration.unexpose(mbeanServer);
+				}
+			}
+		}
+	}
+
+	private static ObjectName registryObjectName() throws JMException {
+		return new ObjectName(JMX_DOMAIN, "type", "CacheRegistry");
+	}
+
+
+	private static final class Registration extends WeakReference<Cache<?, ?>> implements CacheMXBean {
+
+		private final String name;
+		private ObjectName objectName;
+
+		Registration(Cache<?, ?> cache, ReferenceQueue<Cache<?, ?>> queue) {
+			super(cache, queue);
+			this.name = cache.getName();
+		}
+
+		void expose(MBeanServer server) {
+			try {
+				ObjectName candidate = new ObjectName(JMX_DOMAIN + ":type=Cache,name=" + ObjectName.quote(name));
+				try {
+					server.registerMBean(this, candidate);
+				} catch (InstanceAlreadyExistsException e) {
+					candidate = new ObjectName(candidate + ",instance=" + System.identityHashCode(this));
+					server.registerMBean(this, candidate);
+				}
+				objectName = candidate;
+			} catch (JMException e) {
+				LOG.warn("Unable to expose {} cache through JMX, because {}: '{}'", name, e.getClass().getSimpleName(), e.getMessage());
+			}
+		}
+
+		void unexpose(MBeanServer server) {
+			if (objectName != null) {
+				try {
+					server.unregisterMBean(objectName);
+				} catch (InstanceNotFoundException e) {
+					LOG.debug("{} was already unregistered from JMX", objectName);
+				} catch (JMException e) {
+					LOG.warn("Unable to unregister {} from JMX, because {}: '{}'", objectName, e.getClass().getSimpleName(), e.getMessage());
+				}
+				objectName = null;
+			}
+		}
+
+		private CacheSnapshot snapshot() {
+			Cache<?, ?> cache = get();
+			return cache != null ? cache.snapshot() : new CacheSnapshot(name, 0, -1, -1, new CacheStats(0, 0, 1.0, 0, 0.0));
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public long getEstimatedSize() {
+			return snapshot().getEstimatedSize();
+		}
+
+		@Override
+		public long getMaximumSize() {
+			return snapshot().getMaximumSize();
+		}
+
+		@Override
+		public long getWeightedSize() {
+			return snapshot().getWeightedSize();
+		}
+
+		@Override
+		public long getRequestCount() {
+			return snapshot().getStats().getRequestCount();
+		}
+
+		@Override
+		public long getHitCount() {
+			return snapshot().getStats().getHitCount();
+		}
+
+		@Override
+		public double getHitRate() {
+			return snapshot().getStats().getHitRate();
+		}
+
+		@Override
+		public long getMissCount() {
+			return snapshot().getStats().getMissCount();
+		}
+
+		@Override
+		public double getMissRate() {
+			return snapshot().getStats().getMissRate();
+		}
+
+		@Override
+		public long getEvictionCount() {
+			return snapshot().getStats().getEvictionCount();
+		}
+
+		@Override
+		public void invalidateAll() {
+			Cache<?, ?> cache = get();
+			if (cache != null) {
+				cache.invalidateAll();
+			}
+		}
+
+		@Override
+		public void invalidate(String key) {
+			@SuppressWarnings("unchecked")
+			Cache<Object, ?> cache = (Cache<Object, ?>) get();
+			if (cache != null) {
+				cache.invalidate(key);
+			}
+		}
+	}
+}
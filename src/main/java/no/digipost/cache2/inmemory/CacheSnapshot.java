@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+/**
+ * A point-in-time view of a {@link Cache}'s size and stats.
+ */
+public class CacheSnapshot {
+
+	private final String name;
+	private final long estimatedSize;
+	private final long maximumSize;
+	private final long weightedSize;
+	private final CacheStats stats;
+
+	public CacheSnapshot(String name, long estimatedSize, long maximumSize, long weightedSize, CacheStats stats) {
+		this.name = name;
+		this.estimatedSize = estimatedSize;
+		this.maximumSize = maximumSize;
+		this.weightedSize = weightedSize;
+		this.stats = stats;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the approximate number of entries in the cache.
+	 */
+	public long getEstimatedSize() {
+		return estimatedSize;
+	}
+
+	/**
+	 * @return the maximum size, or weight if the cache is weighted, or {@code -1} if the cache is not bounded.
+	 */
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @return the total weight of the entries, or {@code -1} if the cache is not weighted.
+	 */
+	public long getWeightedSize() {
+		return weightedSize;
+	}
+
+	/**
+	 * @return the stats of the cache, which are only recorded if the cache is configured with
+	 *         {@link CacheConfig#recordStats()}.
+	 */
+	public CacheStats getStats() {
+		return stats;
+	}
+}
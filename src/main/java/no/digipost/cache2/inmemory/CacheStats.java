@@ -22,14 +22,63 @@ public class CacheStats {
 	private final double hitRate;
 	private final long missCount;
 	private final double missRate;
+	private final long evictionCount;
+	private final long tagCount;
+	private final long tagIndexEstimatedBytes;
+	private final long distinctValues;
+	private final long deduplicatedValues;
+	private final long valueDeduplicationEstimatedBytesSaved;
+	private final long prefetchedEntries;
+	private final long prefetchHits;
+	private final long droppedPrefetches;
 
 	public CacheStats(long requestCount, long hitCount, double hitRate, long missCount, double missRate) {
+		this(requestCount, hitCount, hitRate, missCount, missRate, 0);
+	}
+
+	public CacheStats(long requestCount, long hitCount, double hitRate, long missCount, double missRate, long evictionCount) {
+		this(requestCount, hitCount, hitRate, missCount, missRate, evictionCount, 0, 0);
+	}
+
+	public CacheStats(long requestCount, long hitCount, double hitRate, long missCount, double missRate, long evictionCount,
+			long tagCount, long tagIndexEstimatedBytes) {
+
+		this(requestCount, hitCount, hitRate, missCount, missRate, evictionCount, tagCount, tagIndexEstimatedBytes, 0, 0, 0, 0, 0, 0);
+	}
+
+	private CacheStats(long requestCount, long hitCount, double hitRate, long missCount, double missRate, long evictionCount,
+			long tagCount, long tagIndexEstimatedBytes, long distinctValues, long deduplicatedValues, long valueDeduplicationEstimatedBytesSaved,
+			long prefetchedEntries, long prefetchHits, long droppedPrefetches) {
 
 		this.requestCount = requestCount;
 		this.hitCount = hitCount;
 		this.hitRate = hitRate;
 		this.missCount = missCount;
 		this.missRate = missRate;
+		this.evictionCount = evictionCount;
+		this.tagCount = tagCount;
+		this.tagIndexEstimatedBytes = tagIndexEstimatedBytes;
+		this.distinctValues = distinctValues;
+		this.deduplicatedValues = deduplicatedValues;
+		this.valueDeduplicationEstimatedBytesSaved = valueDeduplicationEstimatedBytesSaved;
+		this.prefetchedEntries = prefetchedEntries;
+		this.prefetchHits = prefetchHits;
+		this.droppedPrefetches = droppedPrefetches;
+	}
+
+	CacheStats withTagIndex(long tagCount, long tagIndexEstimatedBytes) {
+		return new CacheStats(requestCount, hitCount, hitRate, missCount, missRate, evictionCount, tagCount, tagIndexEstimatedBytes,
+				distinctValues, deduplicatedValues, valueDeduplicationEstimatedBytesSaved, prefetchedEntries, prefetchHits, droppedPrefetches);
+	}
+
+	CacheStats withValueDeduplication(long distinctValues, long deduplicatedValues, long estimatedBytesSaved) {
+		return new CacheStats(requestCount, hitCount, hitRate, missCount, missRate, evictionCount, tagCount, tagIndexEstimatedBytes,
+				distinctValues, deduplicatedValues, estimatedBytesSaved, prefetchedEntries, prefetchHits, droppedPrefetches);
+	}
+
+	CacheStats withPrefetching(long prefetchedEntries, long prefetchHits, long droppedPrefetches) {
+		return new CacheStats(requestCount, hitCount, hitRate, missCount, missRate, evictionCount, tagCount, tagIndexEstimatedBytes,
+				distinctValues, deduplicatedValues, valueDeduplicationEstimatedBytesSaved, prefetchedEntries, prefetchHits, droppedPrefetches);
 	}
 
 	public static CacheStats fromCaffeineStats(com.github.benmanes.caffeine.cache.stats.CacheStats caffeineStats) {
@@ -38,7 +87,8 @@ public class CacheStats {
 				caffeineStats.hitCount(),
 				caffeineStats.hitRate(),
 				caffeineStats.missCount(),
-				caffeineStats.missRate());
+				caffeineStats.missRate(),
+				caffeineStats.evictionCount());
 	}
 
 	public long getRequestCount() {
@@ -60,4 +110,85 @@ public class CacheStats {
 	public double getMissRate() {
 		return missRate;
 	}
+
+	/**
+	 * @return the number of entries evicted because of the cache's size bound or expiry,
+	 *         not including explicit invalidations.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * @return the number of distinct tags of the entries, if the cache
+	 *         {@link CacheConfig#taggedBy(java.util.function.BiFunction) tags} its entries.
+	 */
+	public long getTagCount() {
+		return tagCount;
+	}
+
+	/**
+	 * @return the estimated memory used by the index of tagged entries, in bytes, if the cache
+	 *         {@link CacheConfig#taggedBy(java.util.function.BiFunction) tags} its entries.
+	 */
+	public long getTagIndexEstimatedBytes() {
+		return tagIndexEstimatedBytes;
+	}
+
+	/**
+	 * @return the number of distinct values shared by the entries of the cache, if the cache
+	 *         {@link CacheConfig#deduplicateValues deduplicates values}. This may include values
+	 *         which are no longer in the cache, but have yet to be garbage collected.
+	 */
+	public long getDistinctValues() {
+		return distinctValues;
+	}
+
+	/**
+	 * @return the number of loaded values which have been replaced by an equal value already in the cache,
+	 *         if the cache {@link CacheConfig#deduplicateValues deduplicates values}.
+	 */
+	public long getDeduplicatedValues() {
+		return deduplicatedValues;
+	}
+
+	/**
+	 * @return the estimated memory of all the loaded values which have been replaced by an equal value already
+	 *         in the cache, in bytes, if the cache {@link CacheConfig#deduplicateValues(java.util.function.ToLongFunction) deduplicates
+	 *         values and estimates their memory}.
+	 */
+	public long getValueDeduplicationEstimatedBytesSaved() {
+		return valueDeduplicationEstimatedBytesSaved;
+	}
+
+	/**
+	 * @return the number of entries loaded by prefetching, if the cache
+	 *         {@link CacheConfig#prefetchRelated(java.util.function.BiFunction, int) prefetches related keys}.
+	 */
+	public long getPrefetchedEntries() {
+		return prefetchedEntries;
+	}
+
+	/**
+	 * @return the number of prefetched entries which were later looked up, if the cache
+	 *         {@link CacheConfig#prefetchRelated(java.util.function.BiFunction, int) prefetches related keys}.
+	 */
+	public long getPrefetchHits() {
+		return prefetchHits;
+	}
+
+	/**
+	 * @return the share of the prefetched entries which were later looked up, or {@code 0} if none are prefetched.
+	 */
+	public double getPrefetchUsefulness() {
+		return prefetchedEntries == 0 ? 0 : (double) prefetchHits / prefetchedEntries;
+	}
+
+	/**
+	 * @return the number of related keys which were not prefetched, because the prefetch rate or the number
+	 *         of concurrent prefetches was at its limit.
+	 */
+	public long getDroppedPrefetches() {
+		return droppedPrefetches;
+	}
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+
+/**
+ * Weighs cache entries by how costly their values were to load, in the spirit of GreedyDual eviction.
+ * An entry which was as cheap to load as the reference cost, or cheaper, has the full weight of
+ * {@value #FULL_WEIGHT}, while an entry costing {@value #FULL_WEIGHT} times the reference cost or more
+ * has the weight of {@code 1}. A cache with a maximum weight of {@code maximumSize * FULL_WEIGHT} thus
+ * holds {@code maximumSize} cheap entries, and proportionally more entries the more costly they are,
+ * making costly entries survive longer.
+ * <p>
+ * The cost of a value is given to the weigher by the thread loading it, before the cache weighs the
+ * new entry on the same thread. Entries without a known cost, e.g. restored from a snapshot, have the
+ * weight of an entry costing the reference cost.
+ */
+final class CostAwareWeigher implements Weigher<Object, Object> {
+
+	static final int FULL_WEIGHT = 16;
+
+	private static final long UNKNOWN = -1;
+	private static final ThreadLocal<long[]> COST_OF_LOADED_VALUE = ThreadLocal.withInitial(() -> new long[] {UNKNOWN});
+	private static final ThreadLocal<long[]> REPORTED_COST = ThreadLocal.withInitial(() -> new long[] {UNKNOWN});
+
+	/**
+	 * Report the cost of the value being loaded on the current thread, instead of the measured time of loading it.
+	 */
+	static void reportCost(long nanos) {
+		REPORTED_COST.get()[0] = Math.max(0, nanos);
+	}
+
+	/**
+	 * Forget any cost reported by a previous load on the current thread.
+	 *
+	 * @return the cost reported so far by an enclosing load on the current thread, which must be given
+	 *         to {@link #finishLoading(long)} when this load is done, as loads may be nested.
+	 */
+	static long startLoading() {
+		long[] reportedCost = REPORTED_COST.get();
+		long costReportedByEnclosingLoad = reportedCost[0];
+		reportedCost[0] = UNKNOWN;
+		COST_OF_LOADED_VALUE.get()[0] = UNKNOWN;
+		return costReportedByEnclosingLoad;
+	}
+
+	/**
+	 * Give the cost of the value loaded on the current thread to the weigher, which is the cost
+	 * reported by the loader, if any, or else the given measured time of loading it.
+	 */
+	static void loaded(long measuredNanos) {
+		long reported = REPORTED_COST.get()[0];
+		COST_OF_LOADED_VALUE.get()[0] = reported != UNKNOWN ? reported : measuredNanos;
+		REPORTED_COST.get()[0] = UNKNOWN;
+	}
+
+	/**
+	 * Restore the cost reported by an enclosing load on the current thread, as returned by {@link #startLoading()}.
+	 */
+	static void finishLoading(long costReportedByEnclosingLoad) {
+		REPORTED_COST.get()[0] = costReportedByEnclosingLoad;
+	}
+
+
+	private final long referenceCostNanos;
+
+	CostAwareWeigher(long referenceCostNanos) {
+		if (referenceCostNanos <= 0) {
+			throw new IllegalArgumentException("Reference cost must be positive, but was " + referenceCostNanos + " ns");
+		}
+		this.referenceCostNanos = referenceCostNanos;
+	}
+
+	@Override
+	public int weigh(Object key, Object value) {
+		long[] costOfLoadedValue = COST_OF_LOADED_VALUE.get();
+		long cost = costOfLoadedValue[0];
+		costOfLoadedValue[0] = UNKNOWN;
+		return weightOf(cost != UNKNOWN ? cost : referenceCostNanos);
+	}
+
+	int weightOf(long costNanos) {
+		if (costNanos <= referenceCostNanos) {
+			return FULL_WEIGHT;
+		}
+		return (int) Math.max(1, Math.min(FULL_WEIGHT, FULL_WEIGHT * referenceCostNanos / costNanos));
+	}
+}
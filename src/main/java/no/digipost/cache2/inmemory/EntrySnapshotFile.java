@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.fallback.marshall.Marshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * The file format of {@link Cache#snapshotTo(Path, Marshaller, Marshaller) cache snapshots}.
+ * After a header with the time the snapshot was taken, each entry is written sequentially as
+ * its remaining time to live in nanoseconds, or {@value #NO_EXPIRY} if it does not expire,
+ * followed by the length-prefixed marshalled key and value.
+ */
+final class EntrySnapshotFile {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EntrySnapshotFile.class);
+
+	static final int MAGIC = 0xCAC4E5A9;
+	static final int VERSION = 1;
+	static final long NO_EXPIRY = -1;
+
+	/**
+	 * The number of entries which may be read from the file while waiting to be put into the cache.
+	 */
+	static final int MAX_PENDING_ENTRIES = 1024;
+
+	@FunctionalInterface
+	interface Restorer<K, V> {
+		void restore(K key, V value, long remainingNanos);
+	}
+
+
+	static <K, V> int write(Path file, Map<K, V> entries, ToLongFunction<K> remainingNanos,
+			Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, long takenAtMillis) throws IOException {
+
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		int written = 0;
+		try (OutputStream fileOut = Files.newOutputStream(tempFile); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(takenAtMillis);
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			for (Map.Entry<K, V> entry : entries.entrySet()) {
+				long remaining = remainingNanos.applyAsLong(entry.getKey());
+				if (remaining != NO_EXPIRY && remaining <= 0) {
+					continue;
+				}
+				out.writeLong(remaining);
+				buffer.reset();
+				keyMarshaller.write(entry.getKey(), buffer);
+				out.writeInt(buffer.size());
+				buffer.writeTo(out);
+				buffer.reset();
+				valueMarshaller.write(entry.getValue(), buffer);
+				out.writeInt(buffer.size());
+				buffer.writeTo(out);
+				written++;
+			}
+		}
+		Files.move(tempFile, file, ATOMIC_MOVE, REPLACE_EXISTING);
+		return written;
+	}
+
+	/**
+	 * Read the entries of a snapshot file sequentially, and unmarshal and restore them using the
+	 * given executor, while reading the next entries.
+	 *
+	 * @return the number of restored entries.
+	 */
+	static <K, V> int read(Path file, Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller,
+			Executor executor, long nowMillis, Restorer<K, V> restorer) throws IOException {
+
+		Semaphore pending = new Semaphore(MAX_PENDING_ENTRIES);
+		AtomicInteger restored = new AtomicInteger();
+		try (InputStream fileIn = Files.newInputStream(file); DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a cache snapshot of version " + VERSION);
+			}
+			long elapsedNanos = Math.max(0, nowMillis - in.readLong()) * 1_000_000;
+			while (true) {
+				long remaining;
+				try {
+					remaining = in.readLong();
+				} catch (EOFException endOfSnapshot) {
+					break;
+				}
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				long remainingNow = remaining == NO_EXPIRY ? NO_EXPIRY : remaining - elapsedNanos;
+				if (remainingNow != NO_EXPIRY && remainingNow <= 0) {
+					continue;
+				}
+				pending.acquireUninterruptibly();
+				try {
+					executor.execute(() -> {
+						try {
+							restorer.restore(keyMarshaller.read(new ByteArrayInputStream(key)), valueMarshaller.read(new ByteArrayInputStream(value)), remainingNow);
+							restored.incrementAndGet();
+						} catch (Exception e) {
+							LOG.warn("Failed to restore entry from {} because {}: '{}'", file, e.getClass().getSimpleName(), e.getMessage());
+						} finally {
+							pending.release();
+						}
+					});
+				} catch (RuntimeException e) {
+					pending.release();
+					throw e;
+				}
+			}
+		} finally {
+			pending.acquireUninterruptibly(MAX_PENDING_ENTRIES);
+		}
+		return restored.get();
+	}
+
+	private EntrySnapshotFile() {
+	}
+}
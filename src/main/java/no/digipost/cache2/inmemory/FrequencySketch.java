@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+/**
+ * A count-min sketch estimating how often keys occur. Each key increments one counter
+ * in each of {@value #DEPTH} rows, and the estimated frequency of the key is the lowest
+ * of its counters. All counters are halved when the number of recorded occurrences reaches
+ * ten times the width of the sketch, so that the estimates reflect recent traffic.
+ * <p>
+ * The sketch is not thread-safe, and occurrences are recorded by one thread at a time,
+ * after being buffered by the threads accessing the cache. See {@link HotKeyTracker}.
+ */
+final class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	private final long[] counters;
+	private final int mask;
+	private final int sampleSize;
+	private int samples;
+	private int halvings;
+
+	FrequencySketch(int minimumWidth) {
+		int width = Integer.highestOneBit(Math.max(minimumWidth - 1, 1)) << 1;
+		this.counters = new long[width * DEPTH];
+		this.mask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	/**
+	 * Record an occurrence of the key with the given hash code.
+	 *
+	 * @return the estimated frequency of the key, including this occurrence.
+	 */
+	long increment(int hashCode) {
+		int hash = spread(hashCode);
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, ++counters[indexOf(hash, row)]);
+		}
+		if (++samples == sampleSize) {
+			halve();
+			halvings++;
+			samples = 0;
+		}
+		return estimate;
+	}
+
+	long frequency(int hashCode) {
+		int hash = spread(hashCode);
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counters[indexOf(hash, row)]);
+		}
+		return estimate;
+	}
+
+	/**
+	 * @return the number of times the counters have been halved, which changes
+	 *         whenever previously estimated frequencies may have become lower.
+	 */
+	int halvings() {
+		return halvings;
+	}
+
+	private void halve() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] >>>= 1;
+		}
+	}
+
+	private int indexOf(int hash, int row) {
+		long seeded = (hash + SEEDS[row]) * SEEDS[row];
+		seeded += seeded >>> 32;
+		return row * (mask + 1) + ((int) seeded & mask);
+	}
+
+	private static int spread(int hashCode) {
+		int hash = hashCode * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Tracks the most frequently accessed and missed keys of a {@link Cache}, as enabled
+ * by {@link CacheConfig#trackHotKeys(int)}.
+ * <p>
+ * The threads accessing the cache only put the keys into buffers, striped by thread so that
+ * they seldom contend. The buffers are drained into the frequency sketches by one thread at a
+ * time on the executor of the cache, which also periodically halves the sketches, keeping
+ * the counting off the threads accessing the cache. Keys are dropped if a buffer is full,
+ * so under heavy load the frequencies are estimated from a sample of the keys.
+ */
+final class HotKeyTracker<K> {
+
+	private final TopKeys<K> accesses;
+	private final TopKeys<K> misses;
+
+	HotKeyTracker(int topK, long expectedKeys, Executor executor) {
+		int sketchWidth = (int) Math.min(Math.max(expectedKeys, 1024), 1 << 20);
+		this.accesses = new TopKeys<>(topK, sketchWidth, executor);
+		this.misses = new TopKeys<>(topK, sketchWidth, executor);
+	}
+
+	void recordAccess(K key) {
+		accesses.record(key);
+	}
+
+	void recordMiss(K key) {
+		misses.record(key);
+	}
+
+	HotKeys<K> snapshot() {
+		return new HotKeys<>(accesses.snapshot(), misses.snapshot());
+	}
+
+
+	/**
+	 * The keys with the highest estimated frequency, kept in a min-heap of fixed size. The heap
+	 * is only touched when the estimated frequency of a key exceeds the lowest frequency in the
+	 * heap. The sketch and the heap are only accessed while holding the lock.
+	 */
+	private static final class TopKeys<K> {
+
+		private final FrequencySketch sketch;
+		private final KeyBuffer buffer = new KeyBuffer();
+		private final Executor executor;
+		private final AtomicBoolean drainScheduled = new AtomicBoolean();
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Object[] keys;
+		private final long[] counts;
+		private int size;
+		private int halvings;
+		private long threshold;
+
+		TopKeys(int topK, int sketchWidth, Executor executor) {
+			this.sketch = new FrequencySketch(sketchWidth);
+			this.executor = executor;
+			this.keys = new Object[topK];
+			this.counts = new long[topK];
+		}
+
+		void record(K key) {
+			if (buffer.offer(key) >= KeyBuffer.DRAIN_THRESHOLD) {
+				scheduleDrain();
+			}
+		}
+
+		private void scheduleDrain() {
+			if (drainScheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this::drain);
+				} catch (RejectedExecutionException e) {
+					drainScheduled.set(false);
+				}
+			}
+		}
+
+		private void drain() {
+			lock.lock();
+			try {
+				drainScheduled.set(false);
+				buffer.drainTo(this::count);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void count(Object key) {
+			long estimate = sketch.increment(key.hashCode());
+			if (estimate > threshold || sketch.halvings() != halvings) {
+				@SuppressWarnings("unchecked")
+				K recorded = (K) key;
+				offer(recorded, estimate);
+			}
+		}
+
+		private void offer(K key, long estimate) {
+			if (sketch.halvings() != halvings) {
+				halvings = sketch.halvings();
+				for (int i = 0; i < size; i++) {
+					counts[i] = sketch.frequency(keys[i].hashCode());
+				}
+				for (int i = size / 2 - 1; i >= 0; i--) {
+					siftDown(i);
+				}
+			}
+			for (int i = 0; i < size; i++) {
+				if (keys[i].equals(key)) {
+					long previous = counts[i];
+					counts[i] = estimate;
+					if (estimate > previous) {
+						siftDown(i);
+					} else {
+						siftUp(i);
+					}
+					updateThreshold();
+					return;
+				}
+			}
+			if (size < keys.length) {
+				keys[size] = key;
+				counts[size] = estimate;
+				siftUp(size++);
+			} else if (estimate > counts[0]) {
+				keys[0] = key;
+				counts[0] = estimate;
+				siftDown(0);
+			}
+			updateThreshold();
+		}
+
+		private void updateThreshold() {
+			threshold = size < keys.length ? 0 : counts[0];
+		}
+
+		private void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (counts[parent] <= counts[i]) {
+					return;
+				}
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int smallest = i;
+				int left = 2 * i + 1;
+				int right = left + 1;
+				if (left < size && counts[left] < counts[smallest]) {
+					smallest = left;
+				}
+				if (right < size && counts[right] < counts[smallest]) {
+					smallest = right;
+				}
+				if (smallest == i) {
+					return;
+				}
+				swap(i, smallest);
+				i = smallest;
+			}
+		}
+
+		private void swap(int i, int j) {
+			Object key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+			long count = counts[i];
+			counts[i] = counts[j];
+			counts[j] = count;
+		}
+
+		List<HotKeys.HotKey<K>> snapshot() {
+			List<HotKeys.HotKey<K>> hotKeys = new ArrayList<>();
+			lock.lock();
+			try {
+				buffer.drainTo(this::count);
+				for (int i = 0; i < size; i++) {
+					@SuppressWarnings("unchecked")
+					K key = (K) keys[i];
+					hotKeys.add(new HotKeys.HotKey<>(key, sketch.frequency(key.hashCode())));
+				}
+			} finally {
+				lock.unlock();
+			}
+			hotKeys.sort(Comparator.comparingLong(HotKeys.HotKey<K>::getEstimatedCount).reversed());
+			return hotKeys;
+		}
+	}
+
+
+	/**
+	 * Lossy buffer of recorded keys, striped by thread. Each stripe is a ring buffer with many
+	 * writers and a single reader, which drops keys when it is full or contended.
+	 */
+	private static final class KeyBuffer {
+
+		static final int STRIPE_SIZE = 32;
+		static final int DRAIN_THRESHOLD = STRIPE_SIZE / 2;
+		private static final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+		private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(STRIPES * STRIPE_SIZE);
+		private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+		private final AtomicLongArray reads = new AtomicLongArray(STRIPES);
+
+		/**
+		 * @return the number of keys in the stripe of the current thread, including the given key if it was
+		 *         added, or {@link #STRIPE_SIZE} if the key was dropped.
+		 */
+		int offer(Object key) {
+			int stripe = (int) (Thread.currentThread().getId() * 0x9e3779b9L >>> 16) & (STRIPES - 1);
+			long write = writes.get(stripe);
+			long pending = write - reads.get(stripe);
+			if (pending >= STRIPE_SIZE || !writes.compareAndSet(stripe, write, write + 1)) {
+				return STRIPE_SIZE;
+			}
+			slots.lazySet(stripe * STRIPE_SIZE + (int) (write & (STRIPE_SIZE - 1)), key);
+			return (int) pending + 1;
+		}
+
+		/**
+		 * Remove the buffered keys, giving each to the consumer. Must only be invoked by one thread at a time.
+		 */
+		void drainTo(Consumer<Object> consumer) {
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				long read = reads.get(stripe);
+				long written = writes.get(stripe);
+				for (; read < written; read++) {
+					int slot = stripe * STRIPE_SIZE + (int) (read & (STRIPE_SIZE - 1));
+					Object key = slots.get(slot);
+					if (key == null) {
+						break;
+					}
+					slots.lazySet(slot, null);
+					consumer.accept(key);
+				}
+				reads.lazySet(stripe, read);
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * The keys of a {@link Cache} which were most frequently accessed and missed,
+ * as tracked when enabled with {@link CacheConfig#trackHotKeys(int)}. The counts are
+ * estimates, and reflect recent traffic, as older occurrences are gradually discounted.
+ */
+public final class HotKeys<K> {
+
+	static final HotKeys<?> NOT_TRACKED = new HotKeys<>(Collections.emptyList(), Collections.emptyList());
+
+	private final List<HotKey<K>> mostAccessed;
+	private final List<HotKey<K>> mostMissed;
+
+	HotKeys(List<HotKey<K>> mostAccessed, List<HotKey<K>> mostMissed) {
+		this.mostAccessed = unmodifiableList(mostAccessed);
+		this.mostMissed = unmodifiableList(mostMissed);
+	}
+
+	/**
+	 * @return the most frequently accessed keys, the most frequent first.
+	 */
+	public List<HotKey<K>> getMostAccessed() {
+		return mostAccessed;
+	}
+
+	/**
+	 * @return the keys which most frequently were not present in the cache, and needed to be loaded,
+	 *         the most frequent first.
+	 */
+	public List<HotKey<K>> getMostMissed() {
+		return mostMissed;
+	}
+
+	@Override
+	public String toString() {
+		return "most accessed: " + mostAccessed + ", most missed: " + mostMissed;
+	}
+
+
+	public static final class HotKey<K> {
+
+		private final K key;
+		private final long estimatedCount;
+
+		HotKey(K key, long estimatedCount) {
+			this.key = key;
+			this.estimatedCount = estimatedCount;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public long getEstimatedCount() {
+			return estimatedCount;
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + estimatedCount;
+		}
+	}
+}
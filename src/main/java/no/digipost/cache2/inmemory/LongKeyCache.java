@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Ticker;
+import no.digipost.cache2.loader.LongLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import static java.util.Arrays.asList;
+import static no.digipost.cache2.inmemory.CacheConfig.systemClockTicker;
+import static no.digipost.cache2.inmemory.CacheOptions.UNSET;
+
+/**
+ * A cache specialized for primitive {@code long} keys, which does not box the key when
+ * retrieving an already cached value. The entries are kept in segmented open-addressing
+ * hash tables, instead of as nodes referring to boxed keys as {@link Cache} does.
+ * <p>
+ * The cache is configured with the same {@link CacheConfig}s as {@link Cache}, and honors
+ * {@link CacheConfig#maximumSize(long) maximum size}, {@link CacheConfig#expireAfterAccess(java.time.Duration) expiry after access},
+ * {@link CacheConfig#expireAfterWrite(java.time.Duration) expiry after write},
+ * {@link CacheConfig#initialCapacity(int) initial capacity}, and {@link CacheConfig#recordStats() recording stats}.
+ * {@link CacheConfig#useSoftValues Soft values} are not supported. When the maximum size is reached, the least
+ * recently accessed entry among a small sample of entries is evicted, which approximates the eviction
+ * of a size bounded {@code Cache}.
+ *
+ * @param <V> The cached value's type.
+ */
+public final class LongKeyCache<V> {
+
+	public static <V> LongKeyCache<V> create(CacheConfig ... configurers) {
+		return create(asList(configurers));
+	}
+
+	public static <V> LongKeyCache<V> create(String name, CacheConfig ... configurers) {
+		return create(name, asList(configurers));
+	}
+
+	public static <V> LongKeyCache<V> create(List<CacheConfig> configurers) {
+		return create("long-key-cache-" + UUID.randomUUID(), configurers);
+	}
+
+	public static <V> LongKeyCache<V> create(String name, List<CacheConfig> configurers) {
+		List<CacheConfig> allConfigurers = new ArrayList<>();
+		allConfigurers.add(systemClockTicker);
+		allConfigurers.addAll(configurers);
+		return new LongKeyCache<>(name, CacheOptions.of(allConfigurers));
+	}
+
+	static final Logger LOG = LoggerFactory.getLogger(LongKeyCache.class);
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_ENTRIES_PER_SEGMENT = 4;
+
+	private final String name;
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final Ticker ticker;
+	private final long expireAfterAccessNanos;
+	private final long expireAfterWriteNanos;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final ConcurrentMap<Long, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+	LongKeyCache(String name, CacheOptions options) {
+		if (options.softValues) {
+			throw new IllegalArgumentException("Soft values are not supported by " + LongKeyCache.class.getSimpleName() + " " + name);
+		}
+		LOG.info("Creating new long-keyed cache: {}", name);
+		this.name = name;
+		this.ticker = options.ticker;
+		this.expireAfterAccessNanos = options.expireAfterAccessNanos;
+		this.expireAfterWriteNanos = options.expireAfterWriteNanos;
+		this.hits = options.recordStats ? new LongAdder() : null;
+		this.misses = options.recordStats ? new LongAdder() : null;
+
+		long maximumSize = options.maximumSize == UNSET ? Long.MAX_VALUE : options.maximumSize;
+		int segmentCount = (int) Math.max(1, Math.min(MAX_SEGMENTS, Long.highestOneBit(maximumSize / MIN_ENTRIES_PER_SEGMENT)));
+		int initialCapacity = options.initialCapacity == UNSET ? 16 : options.initialCapacity;
+		this.segmentMask = segmentCount - 1;
+		@SuppressWarnings("unchecked")
+		Segment[] segments = (Segment[]) new LongKeyCache<?>.Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			long segmentMaximum = maximumSize == Long.MAX_VALUE ? Long.MAX_VALUE : maximumSize / segmentCount + (i < maximumSize % segmentCount ? 1 : 0);
+			segments[i] = new Segment(segmentMaximum, Math.max(1, initialCapacity / segmentCount));
+		}
+		this.segments = segments;
+	}
+
+
+	/**
+	 * Retrieve a possibly cached value from the cache, or use the provided
+	 * {@link LongLoader valueResolver} if the cache does not contain any value for the given
+	 * key.
+	 */
+	public V get(long key, LongLoader<V> valueResolver) {
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		V value = segment.getIfPresent(key, hash, ticker.read());
+		if (value != null) {
+			if (hits != null) {
+				hits.increment();
+			}
+			return value;
+		}
+		if (misses != null) {
+			misses.increment();
+		}
+		return load(segment, key, hash, valueResolver);
+	}
+
+	private V load(Segment segment, long key, int hash, LongLoader<V> valueResolver) {
+		CompletableFuture<V> loadingValue = new CompletableFuture<>();
+		CompletableFuture<V> alreadyLoading = loading.putIfAbsent(key, loadingValue);
+		if (alreadyLoading != null) {
+			return awaitLoadedBy(alreadyLoading);
+		}
+		try {
+			V value = segment.getIfPresent(key, hash, ticker.read());
+			if (value == null) {
+				LOG.debug("{} resolving value for key {}", name, key);
+				value = valueResolver.load(key);
+				if (value != null) {
+					segment.put(key, hash, value, ticker.read());
+					LOG.info("Loaded '{}' into '{}' cache for key '{}'", value, name, key);
+				}
+			}
+			loadingValue.complete(value);
+			return value;
+		} catch (RuntimeException | Error e) {
+			loadingValue.completeExceptionally(e);
+			throw e;
+		} catch (Exception e) {
+			RuntimeException wrapped = new RuntimeException(e.getClass().getSimpleName() + ": " + e.getMessage(), e);
+			loadingValue.completeExceptionally(wrapped);
+			throw wrapped;
+		} finally {
+			loading.remove(key, loadingValue);
+		}
+	}
+
+	private V awaitLoadedBy(CompletableFuture<V> loadingValue) {
+		try {
+			return loadingValue.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	public void invalidateAll() {
+		LOG.debug("Invalidating all in {} cache", name);
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	public void invalidate(long ... keys) {
+		LOG.debug("Invalidating specific keys in {} cache", name);
+		for (long key : keys) {
+			int hash = hash(key);
+			segmentFor(hash).remove(key, hash);
+		}
+	}
+
+	public CacheStats getCacheStats() {
+		if (hits == null) {
+			return new CacheStats(0, 0, 1.0, 0, 0.0);
+		}
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		long requestCount = hitCount + missCount;
+		return new CacheStats(requestCount, hitCount, requestCount == 0 ? 1.0 : (double) hitCount / requestCount,
+				missCount, requestCount == 0 ? 0.0 : (double) missCount / requestCount);
+	}
+
+	long estimatedSize() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments[(hash >>> 28) & segmentMask];
+	}
+
+	static int hash(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+
+	/**
+	 * Open-addressing table with linear probing. Readers first attempt an optimistic read,
+	 * which is validated against any concurrent modification before the value is returned.
+	 */
+	private final class Segment {
+
+		private static final int EVICTION_SAMPLE_SIZE = 8;
+		private static final int EXPIRY_CLEANUP_PROBES = 4;
+		private static final float LOAD_FACTOR = 0.75f;
+
+		private final StampedLock lock = new StampedLock();
+		private final long maximumSize;
+		private final int initialCapacity;
+		private volatile Table table;
+		private volatile int size;
+		private int evictionCursor;
+		private int cleanupCursor;
+
+		Segment(long maximumSize, int expectedEntries) {
+			this.maximumSize = maximumSize;
+			this.initialCapacity = Math.max(4, Integer.highestOneBit((int) Math.min(1 << 30, (expectedEntries / LOAD_FACTOR) + 1)) << 1);
+			this.table = newTable(initialCapacity);
+		}
+
+		V getIfPresent(long key, int hash, long now) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				Table current = table;
+				int index = indexOfLive(current, key, hash, now);
+				Object value = index >= 0 ? current.values[index] : null;
+				if (value == null || current.accessTimes == null) {
+					if (lock.validate(stamp)) {
+						return castValue(value);
+					}
+				} else {
+					// the access time must not be written while a removal may be moving entries
+					long readStamp = lock.tryConvertToReadLock(stamp);
+					if (readStamp != 0) {
+						try {
+							current.accessTimes[index] = now;
+						} finally {
+							lock.unlockRead(readStamp);
+						}
+						return castValue(value);
+					}
+				}
+			}
+			stamp = lock.readLock();
+			try {
+				Table current = table;
+				int index = indexOfLive(current, key, hash, now);
+				Object value = index >= 0 ? current.values[index] : null;
+				if (value != null && current.accessTimes != null) {
+					current.accessTimes[index] = now;
+				}
+				return castValue(value);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private V castValue(Object value) {
+			return (V) value;
+		}
+
+		void put(long key, int hash, V value, long now) {
+			long stamp = lock.writeLock();
+			try {
+				Table current = table;
+				int index = hash & current.mask;
+				while (current.values[index] != null && current.keys[index] != key) {
+					index = (index + 1) & current.mask;
+				}
+				Object replaced = current.values[index];
+				RemovalCause replacedCause = replaced != null && hasExpired(current, index, now) ? RemovalCause.EXPIRED : RemovalCause.REPLACED;
+				current.keys[index] = key;
+				current.values[index] = value;
+				if (current.writeTimes != null) {
+					current.writeTimes[index] = now;
+				}
+				if (current.accessTimes != null) {
+					current.accessTimes[index] = now;
+				}
+				if (replaced != null) {
+					logRemoval(key, replaced, replacedCause);
+					return;
+				}
+				size++;
+				removeSomeExpired(current, now);
+				while (size > maximumSize) {
+					evictOne(key, now);
+				}
+				if (size > (current.mask + 1) * LOAD_FACTOR) {
+					resize(current);
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		void remove(long key, int hash) {
+			long stamp = lock.writeLock();
+			try {
+				Table current = table;
+				int index = indexOf(current, key, hash);
+				if (index >= 0) {
+					removeAt(current, index, RemovalCause.EXPLICIT);
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		void clear() {
+			long stamp = lock.writeLock();
+			try {
+				Table current = table;
+				for (int i = 0; i <= current.mask; i++) {
+					if (current.values[i] != null) {
+						logRemoval(current.keys[i], current.values[i], RemovalCause.EXPLICIT);
+					}
+				}
+				table = newTable(initialCapacity);
+				size = 0;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		private int indexOf(Table current, long key, int hash) {
+			int index = hash & current.mask;
+			for (int probes = 0; probes <= current.mask; probes++) {
+				if (current.values[index] == null) {
+					return -1;
+				} else if (current.keys[index] == key) {
+					return index;
+				}
+				index = (index + 1) & current.mask;
+			}
+			return -1;
+		}
+
+		private int indexOfLive(Table current, long key, int hash, long now) {
+			int index = indexOf(current, key, hash);
+			return index >= 0 && !hasExpired(current, index, now) ? index : -1;
+		}
+
+		private boolean hasExpired(Table current, int index, long now) {
+			return (expireAfterWriteNanos != UNSET && now - current.writeTimes[index] >= expireAfterWriteNanos)
+				|| (expireAfterAccessNanos != UNSET && now - current.accessTimes[index] >= expireAfterAccessNanos);
+		}
+
+		private void removeSomeExpired(Table current, long now) {
+			if (expireAfterWriteNanos == UNSET && expireAfterAccessNanos == UNSET) {
+				return;
+			}
+			for (int probes = 0; probes < EXPIRY_CLEANUP_PROBES; probes++) {
+				int index = cleanupCursor;
+				cleanupCursor = (cleanupCursor + 1) & current.mask;
+				if (current.values[index] != null && hasExpired(current, index, now)) {
+					removeAt(current, index, RemovalCause.EXPIRED);
+				}
+			}
+		}
+
+		private void evictOne(long justAdded, long now) {
+			Table current = table;
+			int victim = -1;
+			long victimAccessTime = Long.MAX_VALUE;
+			for (int probes = 0, sampled = 0; probes <= current.mask && sampled < EVICTION_SAMPLE_SIZE; probes++) {
+				int index = evictionCursor;
+				evictionCursor = (evictionCursor + 1) & current.mask;
+				if (current.values[index] == null || current.keys[index] == justAdded) {
+					continue;
+				}
+				sampled++;
+				if (hasExpired(current, index, now)) {
+					removeAt(current, index, RemovalCause.EXPIRED);
+					return;
+				} else if (current.accessTimes[index] < victimAccessTime) {
+					victim = index;
+					victimAccessTime = current.accessTimes[index];
+				}
+			}
+			removeAt(current, victim >= 0 ? victim : indexOf(current, justAdded, hash(justAdded)), RemovalCause.SIZE);
+		}
+
+		/**
+		 * Removes the entry at the given index, and shifts any following entries in the same
+		 * probe sequence backwards, so that lookups never need to skip removed entries.
+		 */
+		private void removeAt(Table current, int index, RemovalCause cause) {
+			logRemoval(current.keys[index], current.values[index], cause);
+			current.values[index] = null;
+			size--;
+			int mask = current.mask;
+			for (int next = (index + 1) & mask; current.values[next] != null; next = (next + 1) & mask) {
+				int home = hash(current.keys[next]) & mask;
+				boolean homeIsBetweenRemovedAndNext = index <= next ? (index < home && home <= next) : (index < home || home <= next);
+				if (!homeIsBetweenRemovedAndNext) {
+					current.keys[index] = current.keys[next];
+					current.values[index] = current.values[next];
+					if (current.writeTimes != null) {
+						current.writeTimes[index] = current.writeTimes[next];
+					}
+					if (current.accessTimes != null) {
+						current.accessTimes[index] = current.accessTimes[next];
+					}
+					current.values[next] = null;
+					index = next;
+				}
+			}
+		}
+
+		private void resize(Table current) {
+			Table resized = newTable((current.mask + 1) << 1);
+			for (int i = 0; i <= current.mask; i++) {
+				if (current.values[i] != null) {
+					int index = hash(current.keys[i]) & resized.mask;
+					while (resized.values[index] != null) {
+						index = (index + 1) & resized.mask;
+					}
+					resized.keys[index] = current.keys[i];
+					resized.values[index] = current.values[i];
+					if (resized.writeTimes != null) {
+						resized.writeTimes[index] = current.writeTimes[i];
+					}
+					if (resized.accessTimes != null) {
+						resized.accessTimes[index] = current.accessTimes[i];
+					}
+				}
+			}
+			evictionCursor = 0;
+			cleanupCursor = 0;
+			table = resized;
+		}
+
+		private Table newTable(int capacity) {
+			boolean needsAccessTimes = maximumSize != Long.MAX_VALUE || expireAfterAccessNanos != UNSET;
+			return new Table(capacity, expireAfterWriteNanos != UNSET, needsAccessTimes);
+		}
+
+		private void logRemoval(long key, Object value, RemovalCause cause) {
+			LOG.info("Removing '{}' from {} cache (key={}). Cause: {}.", value, name, key, cause);
+		}
+	}
+
+	private static final class Table {
+		final int mask;
+		final long[] keys;
+		final Object[] values;
+		final long[] writeTimes;
+		final long[] accessTimes;
+
+		Table(int capacity, boolean withWriteTimes, boolean withAccessTimes) {
+			this.mask = capacity - 1;
+			this.keys = new long[capacity];
+			this.values = new Object[capacity];
+			this.writeTimes = withWriteTimes ? new long[capacity] : null;
+			this.accessTimes = withAccessTimes ? new long[capacity] : null;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalDouble;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Trims caches created with {@link CacheConfig#trimOnMemoryPressure} when the heap is under
+ * pressure, as a more predictable alternative to {@link CacheConfig#useSoftValues soft values}.
+ * <p>
+ * The trimmer sets the collection usage threshold of the tenured heap memory pool, and listens
+ * for the JVM's notifications of the threshold being exceeded, as well as for notifications of
+ * completed garbage collections. Whenever a collection of the tenured pool leaves its usage
+ * above the threshold, every opted-in cache is trimmed by a fraction of its entries
+ * proportional to how far above the threshold the usage is, removing the coldest entries
+ * according to the cache's eviction or expiry policy first. Memory is thus released gradually,
+ * once per collection of the tenured pool, as long as the pressure persists. Collections of the
+ * young generation only are ignored, as they leave the usage of the tenured pool unknown.
+ * <p>
+ * Note that the collection usage threshold is a JVM-wide setting, and the previous threshold
+ * is restored when the trimmer is closed.
+ */
+public final class MemoryPressureTrimmer implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MemoryPressureTrimmer.class);
+
+	public static final double DEFAULT_USAGE_THRESHOLD = 0.80;
+
+	static final double MINIMUM_TRIM_FRACTION = 0.05;
+	static final double MAXIMUM_TRIM_FRACTION = 0.50;
+
+	private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+
+	public static MemoryPressureTrimmer start() {
+		return start(DEFAULT_USAGE_THRESHOLD);
+	}
+
+	/**
+	 * @param usageThreshold the fraction of the tenured heap memory pool which must be in use after a
+	 *                       garbage collection to start trimming caches.
+	 */
+	public static MemoryPressureTrimmer start(double usageThreshold) {
+		if (usageThreshold <= 0 || usageThreshold >= 1) {
+			throw new IllegalArgumentException("Usage threshold must be between 0 and 1, but was " + usageThreshold);
+		}
+		MemoryPressureTrimmer trimmer = new MemoryPressureTrimmer(CacheRegistry.getDefault(), usageThreshold);
+		trimmer.listenForMemoryPressure();
+		return trimmer;
+	}
+
+
+	private final CacheRegistry registry;
+	private final double usageThreshold;
+	private final NotificationListener listener = this::handle;
+	private final List<NotificationEmitter> emitters = new ArrayList<>();
+	private final AtomicBoolean trimming = new AtomicBoolean();
+	private final List<GarbageCollectorMXBean> tenuredCollectors = new ArrayList<>();
+	private MemoryPoolMXBean tenuredPool;
+	private long previousThreshold;
+	private long tenuredCollections;
+	private MemoryUsage lastCollectionUsage;
+
+	MemoryPressureTrimmer(CacheRegistry registry, double usageThreshold) {
+		this.registry = registry;
+		this.usageThreshold = usageThreshold;
+	}
+
+	/**
+	 * Trim the caches according to the given heap usage.
+	 *
+	 * @param usage the fraction of the tenured heap memory pool in use after garbage collection.
+	 * @return the number of entries removed from the caches.
+	 */
+	long onPressure(double usage) {
+		if (usage < usageThreshold || !trimming.compareAndSet(false, true)) {
+			return 0;
+		}
+		try {
+			double overshoot = (usage - usageThreshold) / (1 - usageThreshold);
+			double fraction = Math.min(MAXIMUM_TRIM_FRACTION, Math.max(MINIMUM_TRIM_FRACTION, overshoot * MAXIMUM_TRIM_FRACTION));
+			long trimmed = 0;
+			for (Cache<?, ?> cache : registry.getCaches()) {
+				if (cache.isTrimmedOnMemoryPressure()) {
+					trimmed += cache.trim(fraction);
+				}
+			}
+			LOG.info("Heap usage {} after garbage collection is above threshold {}. Trimmed {} entries ({}% of each cache).",
+					String.format("%.2f", usage), usageThreshold, trimmed, Math.round(fraction * 100));
+			return trimmed;
+		} finally {
+			trimming.set(false);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		for (NotificationEmitter emitter : emitters) {
+			try {
+				emitter.removeNotificationListener(listener);
+			} catch (ListenerNotFoundException e) {
+				LOG.debug("Listener was already removed from {}", emitter);
+			}
+		}
+		emitters.clear();
+		if (tenuredPool != null) {
+			tenuredPool.setCollectionUsageThreshold(previousThreshold);
+			tenuredPool = null;
+		}
+		tenuredCollectors.clear();
+	}
+
+	/**
+	 * The tenured pool is the heap pool which supports usage thresholds. The pools of the young
+	 * generation do not, as their usage is expected to be high until they are collected.
+	 */
+	static MemoryPoolMXBean findTenuredPool(List<MemoryPoolMXBean> pools) {
+		MemoryPoolMXBean tenured = null;
+		for (MemoryPoolMXBean pool : pools) {
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()
+					&& pool.getUsage().getMax() > 0 && (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax())) {
+				tenured = pool;
+			}
+		}
+		return tenured;
+	}
+
+	private synchronized void listenForMemoryPressure() {
+		tenuredPool = findTenuredPool(ManagementFactory.getMemoryPoolMXBeans());
+		if (tenuredPool == null) {
+			LOG.warn("Found no tenured heap memory pool supporting collection usage thresholds. Caches will not be trimmed on memory pressure.");
+			return;
+		}
+		previousThreshold = tenuredPool.getCollectionUsageThreshold();
+		tenuredPool.setCollectionUsageThreshold((long) (tenuredPool.getUsage().getMax() * usageThreshold));
+		LOG.debug("Trimming caches when usage of {} exceeds {} bytes after garbage collection", tenuredPool.getName(), tenuredPool.getCollectionUsageThreshold());
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (asList(collector.getMemoryPoolNames()).contains(tenuredPool.getName())) {
+				tenuredCollectors.add(collector);
+			}
+		}
+		tenuredCollections = collectionCount(tenuredCollectors);
+		lastCollectionUsage = tenuredPool.getCollectionUsage();
+		addListenerTo(ManagementFactory.getMemoryMXBean());
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			addListenerTo(collector);
+		}
+	}
+
+	private void addListenerTo(Object bean) {
+		if (bean instanceof NotificationEmitter) {
+			NotificationEmitter emitter = (NotificationEmitter) bean;
+			emitter.addNotificationListener(listener, null, null);
+			emitters.add(emitter);
+		}
+	}
+
+	private void handle(Notification notification, Object handback) {
+		String type = notification.getType();
+		if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type) || GC_NOTIFICATION.equals(type)) {
+			try {
+				OptionalDouble usage = usageAfterNewTenuredCollection();
+				if (usage.isPresent()) {
+					onPressure(usage.getAsDouble());
+				}
+			} catch (RuntimeException e) {
+				LOG.warn("Failed to trim caches because {}: '{}'", e.getClass().getSimpleName(), e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the usage of the tenured pool after garbage collection, if there has been a collection of
+	 *         the tenured pool since the last time, or empty if the collection usage has not been updated.
+	 *         The usage is compared as well as the collection count, as some collectors, e.g. G1's young
+	 *         collector, manage the tenured pool without updating its collection usage on every collection.
+	 */
+	private synchronized OptionalDouble usageAfterNewTenuredCollection() {
+		if (tenuredPool == null) {
+			return OptionalDouble.empty();
+		}
+		long collections = collectionCount(tenuredCollectors);
+		if (collections <= tenuredCollections) {
+			return OptionalDouble.empty();
+		}
+		tenuredCollections = collections;
+		MemoryUsage usage = tenuredPool.getCollectionUsage();
+		MemoryUsage last = lastCollectionUsage;
+		lastCollectionUsage = usage;
+		if (usage == null || usage.getMax() <= 0
+				|| last != null && usage.getUsed() == last.getUsed() && usage.getCommitted() == last.getCommitted()) {
+			return OptionalDouble.empty();
+		}
+		return OptionalDouble.of((double) usage.getUsed() / usage.getMax());
+	}
+
+	private static long collectionCount(List<GarbageCollectorMXBean> collectors) {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+}
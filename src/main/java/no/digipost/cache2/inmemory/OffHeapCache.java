@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy.Eviction;
+import no.digipost.cache2.fallback.marshall.Marshaller;
+import no.digipost.cache2.inmemory.SlabAllocator.Chunk;
+import no.digipost.cache2.io.ByteBufferInputStream;
+import no.digipost.cache2.loader.Callables;
+import no.digipost.cache2.loader.Loader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import static java.util.Arrays.asList;
+import static no.digipost.cache2.inmemory.CacheConfig.systemClockTicker;
+
+/**
+ * A cache which keeps its values outside of the Java heap, encoded by a {@link Marshaller}
+ * into slabs of direct {@link ByteBuffer}s. The cache itself only holds small handles to
+ * the encoded values on the heap, and values are decoded each time they are retrieved.
+ * <p>
+ * This is appropriate for large caches of values which are cheap to decode compared to
+ * the cost of keeping them as long-lived objects on the heap. The amount of direct memory
+ * used by the cache is bounded by the {@code maximumBytes} given when creating it, and this
+ * bound replaces {@link CacheConfig#maximumSize(long)}, which must not be given as
+ * configuration for an {@code OffHeapCache}. When all available memory is in use, the coldest
+ * entries are evicted to make room for a loaded value, preferring entries of the same size.
+ * Values which are too large to fit in a slab, or which can not be stored even so, are returned
+ * to the caller without being cached, and are counted by {@link OffHeapStats#getAllocationFailures()}.
+ */
+public final class OffHeapCache<K, V> {
+
+	/**
+	 * The default size of each slab of direct memory, 1 MiB, which is also the
+	 * maximum size of a value to be stored in the cache.
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+	public static <K, V> OffHeapCache<K, V> create(Marshaller<V> marshaller, long maximumBytes, CacheConfig ... configurers) {
+		return create("off-heap-cache-" + UUID.randomUUID(), marshaller, maximumBytes, asList(configurers));
+	}
+
+	public static <K, V> OffHeapCache<K, V> create(String name, Marshaller<V> marshaller, long maximumBytes, CacheConfig ... configurers) {
+		return create(name, marshaller, maximumBytes, asList(configurers));
+	}
+
+	public static <K, V> OffHeapCache<K, V> create(String name, Marshaller<V> marshaller, long maximumBytes, List<CacheConfig> configurers) {
+		return create(name, marshaller, maximumBytes, DEFAULT_SLAB_SIZE, configurers);
+	}
+
+	public static <K, V> OffHeapCache<K, V> create(String name, Marshaller<V> marshaller, long maximumBytes, int slabSize, List<CacheConfig> configurers) {
+		List<CacheConfig> allConfigurers = new ArrayList<>();
+		allConfigurers.add(systemClockTicker);
+		allConfigurers.addAll(configurers);
+		return new OffHeapCache<>(name, marshaller, new SlabAllocator(slabSize, maximumBytes), allConfigurers);
+	}
+
+	private static final Logger LOG = LoggerFactory.getLogger(OffHeapCache.class);
+
+	private static final int COLD_ENTRIES_OF_SAME_SIZE_TO_EVICT = 64;
+	private static final int COLD_ENTRIES_PER_EVICTION_BATCH = 64;
+	private static final int MAXIMUM_EVICTION_BATCHES = 16;
+
+	private final com.github.benmanes.caffeine.cache.Cache<K, Chunk> caffeineCache;
+	private final String name;
+	private final Marshaller<V> marshaller;
+	private final SlabAllocator allocator;
+	private final LongAdder allocationFailures = new LongAdder();
+
+	OffHeapCache(String name, Marshaller<V> marshaller, SlabAllocator allocator, List<CacheConfig> configurers) {
+		LOG.info("Creating new off-heap cache: {}, using at most {} bytes of direct memory in slabs of {} bytes",
+				name, allocator.getMaximumBytes(), allocator.getSlabSize());
+		Caffeine<Object, Object> cacheBuilder = Caffeine.newBuilder();
+		configurers.forEach(configurer -> configurer.configure(cacheBuilder));
+
+		this.caffeineCache = cacheBuilder
+				.maximumWeight(allocator.getMaximumBytes())
+				.weigher((K key, Chunk chunk) -> chunk.capacity())
+				.removalListener((K key, Chunk chunk, com.github.benmanes.caffeine.cache.RemovalCause reason) -> {
+					LOG.debug("Removing {} bytes from off-heap cache {} (key={}). Cause: {}.", chunk.length(), name, key, reason);
+					chunk.release();
+				})
+				.build();
+		this.name = name;
+		this.marshaller = marshaller;
+		this.allocator = allocator;
+	}
+
+
+	/**
+	 * Retrieve a possibly cached value from the cache, or use the provided
+	 * {@code valueResolver} if the cache does not contain any value for the given
+	 * key.
+	 */
+	public V get(K key, Callable<V> valueResolver) {
+		return get(key, Callables.toLoader(valueResolver));
+	}
+
+	/**
+	 * Retrieve a possibly cached value from the cache, or use the provided
+	 * {@link Loader valueResolver} if the cache does not contain any value for the given
+	 * key.
+	 */
+	public V get(K key, Loader<? super K, V> valueResolver) {
+		while (true) {
+			@SuppressWarnings("unchecked")
+			V[] loaded = (V[]) new Object[1];
+			EncodedValue[] notStored = new EncodedValue[1];
+			Chunk chunk = caffeineCache.get(key, k -> {
+				LOG.debug("{} resolving value for key {}", name, k);
+				try {
+					loaded[0] = valueResolver.load(k);
+				} catch (RuntimeException runtimeException) {
+					throw runtimeException;
+				} catch (Exception e) {
+					throw new RuntimeException(e.getClass().getSimpleName() + ": " + e.getMessage(), e);
+				}
+				if (loaded[0] == null) {
+					return null;
+				}
+				EncodedValue encoded = encode(k, loaded[0]);
+				Chunk stored = store(k, encoded);
+				notStored[0] = stored == null ? encoded : null;
+				return stored;
+			});
+			if (notStored[0] != null) {
+				storeMakingRoom(key, notStored[0]);
+			}
+			if (loaded[0] != null || chunk == null) {
+				return loaded[0];
+			}
+			if (chunk.pin()) {
+				try {
+					return decode(chunk);
+				} finally {
+					chunk.unpin();
+				}
+			}
+			// the chunk was released by a concurrent removal, retry as a cache miss
+		}
+	}
+
+	private EncodedValue encode(K key, V value) {
+		EncodedValue encoded = new EncodedValue();
+		try {
+			marshaller.write(value, encoded);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to encode value for key '" + key + "' in off-heap cache " + name + ", because "
+					+ e.getClass().getSimpleName() + ": '" + e.getMessage() + "'", e);
+		}
+		return encoded;
+	}
+
+	private Chunk store(K key, EncodedValue encoded) {
+		Chunk chunk = allocator.allocate(encoded.size());
+		if (chunk != null) {
+			encoded.writeTo(chunk.buffer());
+			LOG.info("Loaded {} bytes into '{}' off-heap cache for key '{}'", chunk.length(), name, key);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Store a value which did not fit in the available memory, by evicting the coldest entries
+	 * until it fits. Entries of the same size are evicted first, as their chunks may be reused
+	 * right away. Otherwise, cold entries of any size are evicted until a slab becomes empty and
+	 * may be reassigned, which gives the size class of the value a whole slab of chunks. The cold
+	 * entries are evicted in batches, and at most {@value #MAXIMUM_EVICTION_BATCHES} batches
+	 * for one value, so that a miss does not evict an unbounded number of entries.
+	 * <p>
+	 * This is done after the value has been loaded, and not while loading it, as the cache does
+	 * not allow removing other entries while computing an entry.
+	 */
+	private void storeMakingRoom(K key, EncodedValue encoded) {
+		Chunk chunk = null;
+		if (encoded.size() <= allocator.getSlabSize()) {
+			int chunkSize = SlabAllocator.chunkSizeFor(encoded.size());
+			Eviction<K, Chunk> eviction = caffeineCache.policy().eviction().get();
+			chunk = evictUntilStored(eviction.coldest(COLD_ENTRIES_OF_SAME_SIZE_TO_EVICT), cold -> cold.capacity() == chunkSize, key, encoded);
+			for (int batch = 0; chunk == null && batch < MAXIMUM_EVICTION_BATCHES; batch++) {
+				Map<K, Chunk> coldest = eviction.coldest(COLD_ENTRIES_PER_EVICTION_BATCH);
+				if (coldest.isEmpty()) {
+					break;
+				}
+				chunk = evictUntilStored(coldest, cold -> true, key, encoded);
+			}
+		}
+		if (chunk == null) {
+			allocationFailures.increment();
+			LOG.debug("No off-heap memory available for {} bytes in {} cache. Value for key '{}' will not be cached.", encoded.size(), name, key);
+		} else if (caffeineCache.asMap().putIfAbsent(key, chunk) != null) {
+			chunk.release();
+		}
+	}
+
+	private Chunk evictUntilStored(Map<K, Chunk> coldest, Predicate<Chunk> evictable, K key, EncodedValue encoded) {
+		for (Map.Entry<K, Chunk> cold : coldest.entrySet()) {
+			if (evictable.test(cold.getValue()) && caffeineCache.asMap().remove(cold.getKey(), cold.getValue())) {
+				cold.getValue().release();
+				Chunk chunk = store(key, encoded);
+				if (chunk != null) {
+					return chunk;
+				}
+			}
+		}
+		return null;
+	}
+
+	private V decode(Chunk chunk) {
+		try (InputStream encoded = new ByteBufferInputStream(chunk.buffer())) {
+			return marshaller.read(encoded);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to decode value from off-heap cache " + name + ", because "
+					+ e.getClass().getSimpleName() + ": '" + e.getMessage() + "'", e);
+		}
+	}
+
+	public void invalidateAll() {
+		LOG.debug("Invalidating all in {} off-heap cache", name);
+		caffeineCache.invalidateAll();
+	}
+
+	@SafeVarargs
+	public final void invalidate(K ... keys) {
+		invalidate(asList(keys));
+	}
+
+	public void invalidate(Iterable<? extends K> keys) {
+		LOG.debug("Invalidating specific keys in {} off-heap cache", name);
+		caffeineCache.invalidateAll(keys);
+	}
+
+	public CacheStats getCacheStats() {
+		return CacheStats.fromCaffeineStats(caffeineCache.stats());
+	}
+
+	public OffHeapStats getOffHeapStats() {
+		return new OffHeapStats(caffeineCache.estimatedSize(), allocator.getMaximumBytes(), allocator.getAllocatedBytes(), allocator.getUsedBytes(),
+				allocationFailures.sum());
+	}
+
+
+	/**
+	 * The encoded bytes of a value, which are written into a slab from the encoding buffer
+	 * without copying them to an intermediate array.
+	 */
+	private static final class EncodedValue extends ByteArrayOutputStream {
+		void writeTo(ByteBuffer slab) {
+			slab.put(buf, 0, count);
+		}
+	}
+
+}
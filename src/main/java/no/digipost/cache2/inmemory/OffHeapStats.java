@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+/**
+ * Memory usage of an {@link OffHeapCache}.
+ */
+public class OffHeapStats {
+
+	private final long entryCount;
+	private final long maximumBytes;
+	private final long allocatedBytes;
+	private final long usedBytes;
+	private final long allocationFailures;
+
+	public OffHeapStats(long entryCount, long maximumBytes, long allocatedBytes, long usedBytes) {
+		this(entryCount, maximumBytes, allocatedBytes, usedBytes, 0);
+	}
+
+	public OffHeapStats(long entryCount, long maximumBytes, long allocatedBytes, long usedBytes, long allocationFailures) {
+		this.entryCount = entryCount;
+		this.maximumBytes = maximumBytes;
+		this.allocatedBytes = allocatedBytes;
+		this.usedBytes = usedBytes;
+		this.allocationFailures = allocationFailures;
+	}
+
+	/**
+	 * @return the approximate number of values stored off-heap.
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return the maximum amount of direct memory the cache may allocate.
+	 */
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	/**
+	 * @return the amount of direct memory allocated as slabs.
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return the amount of slab memory currently holding values, including
+	 *         the unused tail of each value's chunk.
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return the number of loaded values which were not cached, because they were too large
+	 *         for a slab, or because no memory could be made available for them.
+	 */
+	public long getAllocationFailures() {
+		return allocationFailures;
+	}
+
+	@Override
+	public String toString() {
+		return "entries=" + entryCount + ", used=" + usedBytes + " bytes, allocated=" + allocatedBytes + " of maximum " + maximumBytes + " bytes"
+				+ ", allocation failures=" + allocationFailures;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Loads the keys related to a missed key in the background, so that the lookups of them which
+ * are likely to follow will hit. The number of prefetches is limited both per second and by how
+ * many may run at the same time. Prefetches beyond the limits are dropped.
+ * <p>
+ * Prefetched keys are remembered until they are looked up, to count how many prefetches were useful.
+ */
+final class Prefetcher<K> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Prefetcher.class);
+
+	static final long DEFAULT_TRACKED_PREFETCHES = 10_000;
+	private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final BiFunction<Object, Object, ? extends Collection<?>> relatedKeys;
+	private final long nanosPerPrefetch;
+	private final Semaphore concurrentPrefetches;
+	private final Executor executor;
+	private final AtomicLong nextPrefetchNanos = new AtomicLong(System.nanoTime() - BURST_NANOS);
+	private final com.github.benmanes.caffeine.cache.Cache<K, Boolean> unusedPrefetches;
+	private final LongAdder prefetched = new LongAdder();
+	private final LongAdder prefetchHits = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	Prefetcher(BiFunction<Object, Object, ? extends Collection<?>> relatedKeys, int maxPrefetchesPerSecond,
+			int maxConcurrentPrefetches, Executor executor, long trackedPrefetches) {
+		this.relatedKeys = relatedKeys;
+		this.nanosPerPrefetch = TimeUnit.SECONDS.toNanos(1) / maxPrefetchesPerSecond;
+		this.concurrentPrefetches = new Semaphore(maxConcurrentPrefetches);
+		this.executor = executor;
+		this.unusedPrefetches = Caffeine.newBuilder().maximumSize(trackedPrefetches).executor(Runnable::run).build();
+	}
+
+	/**
+	 * Prefetch the keys related to a key which was just loaded.
+	 *
+	 * @param isCached tells if a key is already cached, and need not be prefetched.
+	 * @param load loads a key into the cache, telling if it was loaded, or already present.
+	 */
+	void afterMiss(K key, Object value, Predicate<? super K> isCached, Predicate<? super K> load) {
+		Collection<?> related;
+		try {
+			related = value != null ? relatedKeys.apply(key, value) : null;
+		} catch (RuntimeException e) {
+			LOG.warn("Unable to resolve keys related to '{}' because {}: '{}'", key, e.getClass().getSimpleName(), e.getMessage());
+			return;
+		}
+		if (related == null) {
+			return;
+		}
+		for (Object relatedKeyObject : related) {
+			@SuppressWarnings("unchecked")
+			K relatedKey = (K) relatedKeyObject;
+			if (relatedKey == null || relatedKey.equals(key) || isCached.test(relatedKey)) {
+				continue;
+			}
+			if (!concurrentPrefetches.tryAcquire()) {
+				dropPrefetch(relatedKey, key);
+				continue;
+			} else if (!tryAcquireRate()) {
+				concurrentPrefetches.release();
+				dropPrefetch(relatedKey, key);
+				continue;
+			}
+			try {
+				executor.execute(() -> prefetch(relatedKey, load));
+			} catch (RejectedExecutionException e) {
+				concurrentPrefetches.release();
+				dropped.increment();
+			}
+		}
+	}
+
+	/**
+	 * Record a lookup of a key which hit the cache.
+	 */
+	void afterHit(K key) {
+		Map<K, Boolean> unused = unusedPrefetches.asMap();
+		if (!unused.isEmpty() && unused.containsKey(key) && unused.remove(key) != null) {
+			prefetchHits.increment();
+		}
+	}
+
+	long getPrefetched() {
+		return prefetched.sum();
+	}
+
+	long getPrefetchHits() {
+		return prefetchHits.sum();
+	}
+
+	long getDropped() {
+		return dropped.sum();
+	}
+
+	private void dropPrefetch(Object relatedKey, K key) {
+		dropped.increment();
+		LOG.trace("Dropping prefetch of '{}' related to '{}', as the prefetch limits are reached", relatedKey, key);
+	}
+
+	private void prefetch(K key, Predicate<? super K> load) {
+		try {
+			if (load.test(key)) {
+				prefetched.increment();
+				unusedPrefetches.put(key, Boolean.TRUE);
+			}
+		} catch (RuntimeException e) {
+			LOG.debug("Failed to prefetch '{}' because {}: '{}'", key, e.getClass().getSimpleName(), e.getMessage());
+		} finally {
+			concurrentPrefetches.release();
+		}
+	}
+
+	private boolean tryAcquireRate() {
+		long now = System.nanoTime();
+		while (true) {
+			long next = nextPrefetchNanos.get();
+			long earliest = now - BURST_NANOS + nanosPerPrefetch;
+			long available = next - earliest > 0 ? next : earliest;
+			if (available - now > 0) {
+				return false;
+			} else if (nextPrefetchNanos.compareAndSet(next, available + nanosPerPrefetch)) {
+				return true;
+			}
+		}
+	}
+}
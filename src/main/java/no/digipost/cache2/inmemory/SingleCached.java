@@ -15,12 +15,26 @@
  */
 package no.digipost.cache2.inmemory;
 
+import no.digipost.cache2.invalidation.InvalidationBus;
+import no.digipost.cache2.invalidation.KeyCodec;
 import no.digipost.cache2.loader.Callables;
 import no.digipost.cache2.loader.Loader;
+import no.digipost.cache2.loader.ReloadingLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
@@ -36,8 +50,15 @@ import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
  */
 public final class SingleCached<V> {
 
+	private static final Logger LOG = LoggerFactory.getLogger(SingleCached.class);
+
+	private static final Object NOT_LOADED = new Object();
+
 	private final Cache<String, V> cache;
 	private final Loader<? super String, V> resolver;
+	private final AtomicReference<Object> lastLoaded = new AtomicReference<>(NOT_LOADED);
+	private final List<ChangeSubscriber<V>> subscribers = new CopyOnWriteArrayList<>();
+	private final Queue<V> changes = new ConcurrentLinkedQueue<>();
 
 	private String key;
 
@@ -75,16 +96,138 @@ public final class SingleCached<V> {
 
 	SingleCached(String cacheKey, Loader<? super String, V> resolver, Cache<String, V> underlyingCache) {
 	    this.cache = underlyingCache;
-	    this.resolver = resolver;
+	    this.resolver = resolver instanceof ReloadingLoader ? new ChangeRecordingReloader<>(resolver, this::loaded) : k -> loaded(resolver.load(k));
 	    this.key = cacheKey;
 	}
 
 	public V get() {
-        return cache.get(key, resolver);
+		V value = cache.get(key, resolver);
+		if (!changes.isEmpty()) {
+			notifyChanges();
+		}
+		return value;
 	}
 
 	public void invalidate() {
 		cache.invalidateAll();
 	}
 
+	/**
+	 * Subscribe to changes of the value, running the consumer on the thread which loads
+	 * the changed value.
+	 *
+	 * @see #onChange(Consumer, Executor)
+	 */
+	public Subscription onChange(Consumer<? super V> consumer) {
+		return onChange(consumer, Runnable::run);
+	}
+
+	/**
+	 * Subscribe to changes of the value. The consumer is given the value each time it is loaded
+	 * and is not {@link Object#equals(Object) equal} to the previously loaded value, allowing
+	 * state derived from the value to be computed once per change instead of on every
+	 * {@link #get()}. If a value has already been loaded, the consumer is given it right away.
+	 * <p>
+	 * Note that values are loaded by {@link #get()} when the cached value has expired or been
+	 * invalidated, so changes are only detected as long as the value is being accessed.
+	 *
+	 * @param executor runs the consumer. Use an executor running tasks in order, e.g. a single
+	 *                 thread, if the consumer must be given changes in the order they were loaded.
+	 * @return the subscription, which stops notifying the consumer when closed.
+	 */
+	public Subscription onChange(Consumer<? super V> consumer, Executor executor) {
+		ChangeSubscriber<V> subscriber = new ChangeSubscriber<>(consumer, executor);
+		subscribers.add(subscriber);
+		Object current = lastLoaded.get();
+		if (current != NOT_LOADED) {
+			@SuppressWarnings("unchecked")
+			V currentValue = (V) current;
+			subscriber.changed(currentValue);
+		}
+		return () -> subscribers.remove(subscriber);
+	}
+
+	/**
+	 * Record a loaded value while the cache computes the entry, leaving it to
+	 * {@link #notifyChanges()} to notify the subscribers after the computation, so
+	 * that consumers do not run while the entry is locked.
+	 */
+	private V loaded(V value) {
+		Object previous = lastLoaded.getAndSet(value);
+		if (value != null && (previous == NOT_LOADED || !Objects.equals(previous, value))) {
+			changes.add(value);
+		}
+		return value;
+	}
+
+	private synchronized void notifyChanges() {
+		for (V changed = changes.poll(); changed != null; changed = changes.poll()) {
+			for (ChangeSubscriber<V> subscriber : subscribers) {
+				subscriber.changed(changed);
+			}
+		}
+	}
+
+	/**
+	 * Connect to an {@link InvalidationBus}, in order to invalidate together with
+	 * {@code SingleCached} values of the same name in other processes.
+	 *
+	 * @see Cache#connectTo(InvalidationBus, KeyCodec)
+	 */
+	public InvalidationBus.Subscription connectTo(InvalidationBus bus) {
+		return cache.connectTo(bus, KeyCodec.STRING_KEYS);
+	}
+
+
+	@FunctionalInterface
+	public interface Subscription extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	private static final class ChangeRecordingReloader<V> implements ReloadingLoader<String, V> {
+		final Loader<? super String, V> resolver;
+		final UnaryOperator<V> loaded;
+
+		ChangeRecordingReloader(Loader<? super String, V> resolver, UnaryOperator<V> loaded) {
+			this.resolver = resolver;
+			this.loaded = loaded;
+		}
+
+		@Override
+		public V load(String key) throws Exception {
+			return loaded.apply(resolver.load(key));
+		}
+
+		@Override
+		public V reload(String key, V previous) throws Exception {
+			@SuppressWarnings("unchecked")
+			ReloadingLoader<? super String, V> reloadingLoader = (ReloadingLoader<? super String, V>) resolver;
+			return loaded.apply(reloadingLoader.reload(key, previous));
+		}
+	}
+
+	private static final class ChangeSubscriber<V> {
+		final Consumer<? super V> consumer;
+		final Executor executor;
+
+		ChangeSubscriber(Consumer<? super V> consumer, Executor executor) {
+			this.consumer = consumer;
+			this.executor = executor;
+		}
+
+		void changed(V value) {
+			try {
+				executor.execute(() -> {
+					try {
+						consumer.accept(value);
+					} catch (RuntimeException e) {
+						LOG.warn("Subscriber failed to handle changed value '{}' because {}: '{}'", value, e.getClass().getSimpleName(), e.getMessage(), e);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOG.warn("Unable to notify subscriber of changed value '{}' because {}: '{}'", value, e.getClass().getSimpleName(), e.getMessage());
+			}
+		}
+	}
 }
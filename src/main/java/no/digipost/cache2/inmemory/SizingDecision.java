@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+/**
+ * A change of a cache's maximum size made by {@link AdaptiveSizing}.
+ */
+public final class SizingDecision {
+
+	public enum Action {
+		/**
+		 * The cache was growing, as its hit rate improved when it was last grown,
+		 * and there was enough free heap.
+		 */
+		GROW,
+
+		/**
+		 * The cache was shrunk, as the heap was under pressure.
+		 */
+		SHRINK
+	}
+
+	private final String cacheName;
+	private final Action action;
+	private final long previousMaximumSize;
+	private final long newMaximumSize;
+	private final double hitRate;
+	private final double heapUsage;
+
+	SizingDecision(String cacheName, Action action, long previousMaximumSize, long newMaximumSize, double hitRate, double heapUsage) {
+		this.cacheName = cacheName;
+		this.action = action;
+		this.previousMaximumSize = previousMaximumSize;
+		this.newMaximumSize = newMaximumSize;
+		this.hitRate = hitRate;
+		this.heapUsage = heapUsage;
+	}
+
+	public String getCacheName() {
+		return cacheName;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public long getPreviousMaximumSize() {
+		return previousMaximumSize;
+	}
+
+	public long getNewMaximumSize() {
+		return newMaximumSize;
+	}
+
+	/**
+	 * @return the hit rate of the cache since the previous adjustment, which the decision was based on.
+	 */
+	public double getHitRate() {
+		return hitRate;
+	}
+
+	/**
+	 * @return the fraction of the maximum heap which was used when the decision was made.
+	 */
+	public double getHeapUsage() {
+		return heapUsage;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s from %d to %d (hit rate %.3f, heap usage %.2f)",
+				action, cacheName, previousMaximumSize, newMaximumSize, hitRate, heapUsage);
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages chunks of memory carved out of direct {@link ByteBuffer} slabs.
+ * <p>
+ * Chunks come in power-of-two size classes, from {@value #MIN_CHUNK_SIZE} bytes up to the
+ * size of a slab. A slab is assigned to a size class when it is added to it. New slabs are
+ * only allocated as long as the total amount of slab memory is within the configured maximum.
+ * When a size class has no free chunks and no more slabs may be allocated, slabs which have
+ * become empty in other size classes are handed back and reassigned, so that the slabs follow
+ * the sizes of the values stored over time.
+ */
+final class SlabAllocator {
+
+	static final int MIN_CHUNK_SIZE = 64;
+
+	private final int slabSize;
+	private final long maximumBytes;
+	private final SizeClass[] sizeClasses;
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final Queue<ByteBuffer> emptySlabs = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger emptySlabsInSizeClasses = new AtomicInteger();
+
+	SlabAllocator(int slabSize, long maximumBytes) {
+		if (Integer.bitCount(slabSize) != 1 || slabSize < MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("Slab size must be a power of two, and at least " + MIN_CHUNK_SIZE + " bytes, but was " + slabSize);
+		}
+		if (maximumBytes < slabSize) {
+			throw new IllegalArgumentException("Maximum bytes (" + maximumBytes + ") must be able to hold at least one slab of " + slabSize + " bytes");
+		}
+		this.slabSize = slabSize;
+		this.maximumBytes = maximumBytes;
+		int classCount = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+		this.sizeClasses = new SizeClass[classCount];
+		for (int i = 0; i < classCount; i++) {
+			sizeClasses[i] = new SizeClass(MIN_CHUNK_SIZE << i);
+		}
+	}
+
+	/**
+	 * Allocate a chunk able to hold the given amount of bytes.
+	 *
+	 * @return the allocated chunk, or {@code null} if the length exceeds the slab size,
+	 *         or if all memory available to the chunk's size class is in use.
+	 */
+	Chunk allocate(int length) {
+		if (length > slabSize) {
+			return null;
+		}
+		int chunkSize = chunkSizeFor(length);
+		SizeClass sizeClass = sizeClasses[Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE)];
+		int index = sizeClass.take();
+		for (int i = 0; index < 0 && i < sizeClasses.length && emptySlabsInSizeClasses.get() > 0; i++) {
+			ByteBuffer emptySlab = sizeClasses[i] != sizeClass ? sizeClasses[i].handBackEmptySlab() : null;
+			if (emptySlab != null) {
+				emptySlabs.add(emptySlab);
+				index = sizeClass.take();
+			}
+		}
+		if (index < 0) {
+			return null;
+		}
+		usedBytes.addAndGet(chunkSize);
+		return new Chunk(sizeClass, index, length);
+	}
+
+	/**
+	 * @return the size of the chunk which would be allocated for the given amount of bytes.
+	 */
+	static int chunkSizeFor(int length) {
+		return Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+	}
+
+	int getSlabSize() {
+		return slabSize;
+	}
+
+	long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+
+	/**
+	 * A handle to a chunk of memory in a slab. Reading the chunk must be guarded by
+	 * {@link #pin()} and {@link #unpin()}, which ensures the chunk is not reused while
+	 * being read, even if it is concurrently {@link #release() released}.
+	 */
+	static final class Chunk {
+
+		private static final int RELEASED = 1 << 31;
+		private static final AtomicIntegerFieldUpdater<Chunk> STATE = AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "state");
+
+		private final SizeClass sizeClass;
+		private final int index;
+		private final int length;
+		private volatile int state;
+
+		private Chunk(SizeClass sizeClass, int index, int length) {
+			this.sizeClass = sizeClass;
+			this.index = index;
+			this.length = length;
+		}
+
+		int length() {
+			return length;
+		}
+
+		int capacity() {
+			return sizeClass.chunkSize;
+		}
+
+		/**
+		 * @return a buffer positioned and limited to the contents of this chunk.
+		 */
+		ByteBuffer buffer() {
+			ByteBuffer buffer = sizeClass.slabFor(index).duplicate();
+			int offset = sizeClass.offsetOf(index);
+			buffer.limit(offset + length).position(offset);
+			return buffer;
+		}
+
+		/**
+		 * @return {@code true} if the chunk was pinned, and must be {@link #unpin() unpinned}
+		 *         after use, or {@code false} if it has already been released.
+		 */
+		boolean pin() {
+			for (int current = state; (current & RELEASED) == 0; current = state) {
+				if (STATE.compareAndSet(this, current, current + 1)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void unpin() {
+			if (STATE.decrementAndGet(this) == RELEASED) {
+				reclaim();
+			}
+		}
+
+		void release() {
+			int current;
+			do {
+				current = state;
+				if ((current & RELEASED) != 0) {
+					return;
+				}
+			} while (!STATE.compareAndSet(this, current, current | RELEASED));
+			if (current == 0) {
+				reclaim();
+			}
+		}
+
+		private void reclaim() {
+			sizeClass.giveBack(index);
+		}
+	}
+
+
+	private final class SizeClass {
+
+		final int chunkSize;
+		final int chunksPerSlab;
+		private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+		private int[] chunksInUse = new int[0];
+		private int[] free = new int[0];
+		private int freeCount;
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+			this.chunksPerSlab = slabSize / chunkSize;
+		}
+
+		ByteBuffer slabFor(int index) {
+			return slabs[index / chunksPerSlab];
+		}
+
+		int offsetOf(int index) {
+			return (index % chunksPerSlab) * chunkSize;
+		}
+
+		synchronized int take() {
+			if (freeCount == 0 && !addSlab()) {
+				return -1;
+			}
+			int index = free[--freeCount];
+			if (chunksInUse[index / chunksPerSlab]++ == 0) {
+				emptySlabsInSizeClasses.decrementAndGet();
+			}
+			return index;
+		}
+
+		synchronized void giveBack(int index) {
+			free[freeCount++] = index;
+			if (--chunksInUse[index / chunksPerSlab] == 0) {
+				emptySlabsInSizeClasses.incrementAndGet();
+			}
+			usedBytes.addAndGet(-chunkSize);
+		}
+
+		/**
+		 * Remove a slab with no chunks in use from this size class, so that it may be
+		 * added to another.
+		 *
+		 * @return the removed slab, or {@code null} if every slab has chunks in use.
+		 */
+		synchronized ByteBuffer handBackEmptySlab() {
+			for (int slab = 0; slab < slabs.length; slab++) {
+				if (slabs[slab] != null && chunksInUse[slab] == 0) {
+					int firstIndex = slab * chunksPerSlab;
+					int remaining = 0;
+					for (int i = 0; i < freeCount; i++) {
+						if (free[i] < firstIndex || free[i] >= firstIndex + chunksPerSlab) {
+							free[remaining++] = free[i];
+						}
+					}
+					freeCount = remaining;
+					ByteBuffer[] shrunk = slabs.clone();
+					ByteBuffer emptySlab = shrunk[slab];
+					shrunk[slab] = null;
+					slabs = shrunk;
+					emptySlabsInSizeClasses.decrementAndGet();
+					return emptySlab;
+				}
+			}
+			return null;
+		}
+
+		private boolean addSlab() {
+			ByteBuffer slab = emptySlabs.poll();
+			if (slab == null) {
+				long allocated;
+				do {
+					allocated = allocatedBytes.get();
+					if (allocated + slabSize > maximumBytes) {
+						return false;
+					}
+				} while (!allocatedBytes.compareAndSet(allocated, allocated + slabSize));
+				slab = ByteBuffer.allocateDirect(slabSize);
+			}
+
+			int position = Arrays.asList(slabs).indexOf(null);
+			ByteBuffer[] grown = position >= 0 ? slabs.clone() : Arrays.copyOf(slabs, slabs.length + 1);
+			if (position < 0) {
+				position = slabs.length;
+				chunksInUse = Arrays.copyOf(chunksInUse, grown.length);
+				free = Arrays.copyOf(free, grown.length * chunksPerSlab);
+			}
+			grown[position] = slab;
+			emptySlabsInSizeClasses.incrementAndGet();
+			int firstIndex = position * chunksPerSlab;
+			for (int i = chunksPerSlab - 1; i >= 0; i--) {
+				free[freeCount++] = firstIndex + i;
+			}
+			slabs = grown;
+			return true;
+		}
+	}
+}
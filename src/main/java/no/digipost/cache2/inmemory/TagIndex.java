@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index from tags to the keys of the entries tagged with them, and back, for a
+ * {@link Cache} created with {@link CacheConfig#taggedBy(java.util.function.BiFunction)}.
+ * The index is updated while the cache holds the lock of the affected entry, so that it
+ * stays consistent with the entries of the cache.
+ */
+final class TagIndex<K> {
+
+	/**
+	 * Rough estimates of the bytes used per tag, per tagged key and per link between them,
+	 * counting hash table nodes, sets and arrays of the index on a 64-bit JVM with compressed oops.
+	 */
+	private static final long BYTES_PER_TAG = 120;
+	private static final long BYTES_PER_KEY = 56;
+	private static final long BYTES_PER_LINK = 36;
+
+	private final ConcurrentHashMap<Object, Set<K>> keysByTag = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<K, Object[]> tagsByKey = new ConcurrentHashMap<>();
+	private final AtomicLong links = new AtomicLong();
+
+	void tag(K key, Collection<?> tags) {
+		untag(key);
+		if (tags == null || tags.isEmpty()) {
+			return;
+		}
+		Object[] keyTags = tags.toArray();
+		tagsByKey.put(key, keyTags);
+		for (Object tag : keyTags) {
+			keysByTag.compute(tag, (t, keys) -> {
+				Set<K> taggedKeys = keys != null ? keys : ConcurrentHashMap.newKeySet();
+				taggedKeys.add(key);
+				return taggedKeys;
+			});
+		}
+		links.addAndGet(keyTags.length);
+	}
+
+	void untag(K key) {
+		Object[] keyTags = tagsByKey.remove(key);
+		if (keyTags == null) {
+			return;
+		}
+		for (Object tag : keyTags) {
+			keysByTag.computeIfPresent(tag, (t, keys) -> {
+				keys.remove(key);
+				return keys.isEmpty() ? null : keys;
+			});
+		}
+		links.addAndGet(-keyTags.length);
+	}
+
+	Set<K> keysTaggedWith(Object tag) {
+		return keysByTag.getOrDefault(tag, Collections.emptySet());
+	}
+
+	void clear() {
+		keysByTag.clear();
+		tagsByKey.clear();
+		links.set(0);
+	}
+
+	long tagCount() {
+		return keysByTag.size();
+	}
+
+	long estimatedBytes() {
+		return keysByTag.size() * BYTES_PER_TAG + tagsByKey.size() * BYTES_PER_KEY + links.get() * BYTES_PER_LINK;
+	}
+}
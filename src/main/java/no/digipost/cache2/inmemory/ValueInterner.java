@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Canonicalizes equal values to one instance, using a concurrent table of weak references to the
+ * canonical instances. A canonical instance is removed from the table when it is no longer referenced
+ * from anywhere else, e.g. when all cache entries having it as value are removed.
+ * <p>
+ * Interning a value looks up the table without locking. Only adding a new canonical instance
+ * locks, and only the bin of the table it is added to.
+ */
+final class ValueInterner<V> {
+
+	private final ConcurrentHashMap<Object, CanonicalValue<V>> table = new ConcurrentHashMap<>();
+	private final ReferenceQueue<V> cleared = new ReferenceQueue<>();
+	private final ToLongFunction<? super V> estimatedBytes;
+	private final LongAdder deduplicatedValues = new LongAdder();
+	private final LongAdder estimatedBytesSaved = new LongAdder();
+
+	/**
+	 * @param estimatedBytes estimates the memory used by a value, to report the memory saved
+	 *                       by deduplication, or {@code null} to not estimate it.
+	 */
+	ValueInterner(ToLongFunction<? super V> estimatedBytes) {
+		this.estimatedBytes = estimatedBytes;
+	}
+
+	/**
+	 * @return the canonical instance equal to the given value, which is the given value itself
+	 *         if there is no canonical instance yet.
+	 */
+	V intern(V value) {
+		if (value == null) {
+			return null;
+		}
+		expungeCleared();
+		int hash = value.hashCode();
+		CanonicalValue<V> candidate = null;
+		while (true) {
+			CanonicalValue<V> existing = table.get(new Lookup(value, hash));
+			if (existing == null) {
+				if (candidate == null) {
+					candidate = new CanonicalValue<>(value, hash, cleared);
+				}
+				existing = table.putIfAbsent(candidate, candidate);
+				if (existing == null) {
+					return value;
+				}
+			}
+			V canonical = existing.get();
+			if (canonical != null) {
+				if (canonical != value) {
+					deduplicatedValues.increment();
+					if (estimatedBytes != null) {
+						estimatedBytesSaved.add(estimatedBytes.applyAsLong(value));
+					}
+				}
+				return canonical;
+			}
+			table.remove(existing, existing);
+		}
+	}
+
+	/**
+	 * @return the number of interned values which were replaced by an equal canonical instance.
+	 */
+	long getDeduplicatedValues() {
+		return deduplicatedValues.sum();
+	}
+
+	/**
+	 * @return the estimated memory of the values which were replaced by an equal canonical instance,
+	 *         or {@code 0} if not estimated.
+	 */
+	long getEstimatedBytesSaved() {
+		return estimatedBytesSaved.sum();
+	}
+
+	/**
+	 * @return the number of canonical instances, including any which have not yet been removed
+	 *         after being garbage collected.
+	 */
+	int size() {
+		return table.size();
+	}
+
+	private void expungeCleared() {
+		for (Reference<? extends V> reference; (reference = cleared.poll()) != null; ) {
+			table.remove(reference, reference);
+		}
+	}
+
+
+	private static final class CanonicalValue<V> extends WeakReference<V> {
+		private final int hash;
+
+		CanonicalValue(V value, int hash, ReferenceQueue<V> queue) {
+			super(value, queue);
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other == this) {
+				return true;
+			} else if (other instanceof Lookup) {
+				return other.equals(this);
+			} else if (other instanceof CanonicalValue) {
+				Object value = get();
+				Object otherValue = ((CanonicalValue<?>) other).get();
+				return value != null && otherValue != null && hash == other.hashCode() && value.equals(otherValue);
+			}
+			return false;
+		}
+	}
+
+	private static final class Lookup {
+		private final Object value;
+		private final int hash;
+
+		Lookup(Object value, int hash) {
+			this.value = value;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof CanonicalValue) {
+				Object canonical = ((CanonicalValue<?>) other).get();
+				return canonical != null && hash == other.hashCode() && value.equals(canonical);
+			}
+			return false;
+		}
+	}
+}
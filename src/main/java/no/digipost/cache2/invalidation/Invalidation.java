@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.invalidation;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * An invalidation of either specific keys, or all entries, of a named cache.
+ * Keys are represented as strings, as given by a {@link KeyCodec}.
+ */
+public final class Invalidation {
+
+	public static Invalidation ofAll(String cacheName) {
+		return new Invalidation(cacheName, true, emptySet());
+	}
+
+	public static Invalidation ofKeys(String cacheName, Collection<String> keys) {
+		return new Invalidation(cacheName, false, unmodifiableSet(new LinkedHashSet<>(keys)));
+	}
+
+	/**
+	 * Merge several invalidations of the same cache into one. If any of them invalidates
+	 * all entries, so does the merged invalidation.
+	 */
+	public static Invalidation merge(String cacheName, Iterable<Invalidation> invalidations) {
+		Set<String> keys = new LinkedHashSet<>();
+		for (Invalidation invalidation : invalidations) {
+			if (!invalidation.cacheName.equals(cacheName)) {
+				throw new IllegalArgumentException("Can not merge invalidation of " + invalidation.cacheName + " into invalidation of " + cacheName);
+			} else if (invalidation.all) {
+				return ofAll(cacheName);
+			}
+			keys.addAll(invalidation.keys);
+		}
+		return new Invalidation(cacheName, false, unmodifiableSet(keys));
+	}
+
+
+	private final String cacheName;
+	private final boolean all;
+	private final Set<String> keys;
+
+	private Invalidation(String cacheName, boolean all, Set<String> keys) {
+		this.cacheName = cacheName;
+		this.all = all;
+		this.keys = keys;
+	}
+
+	public String getCacheName() {
+		return cacheName;
+	}
+
+	/**
+	 * @return {@code true} if all entries of the cache are invalidated, in which case
+	 *         {@link #getKeys()} is empty.
+	 */
+	public boolean isAll() {
+		return all;
+	}
+
+	public Set<String> getKeys() {
+		return keys;
+	}
+
+	@Override
+	public String toString() {
+		return "invalidation of " + (all ? "all entries" : keys.size() + " keys") + " in " + cacheName;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.invalidation;
+
+import java.util.function.Consumer;
+
+/**
+ * Distributes invalidations of caches between processes, typically running on separate nodes,
+ * which each keep their own instances of caches with the same names.
+ *
+ * @see no.digipost.cache2.inmemory.Cache#connectTo(InvalidationBus, KeyCodec)
+ */
+public interface InvalidationBus {
+
+	/**
+	 * Publish an invalidation to other subscribers of the same cache name. An implementation
+	 * may defer publishing in order to publish several invalidations together, and will not
+	 * deliver the invalidation back to subscribers in the publishing process.
+	 */
+	void publish(Invalidation invalidation);
+
+	/**
+	 * Subscribe to invalidations of the cache with the given name published by other processes.
+	 * Several invalidations may be delivered to the subscriber merged together as one.
+	 *
+	 * @return the subscription, which must be closed to stop receiving invalidations.
+	 */
+	Subscription subscribe(String cacheName, Consumer<Invalidation> subscriber);
+
+
+	interface Subscription extends AutoCloseable {
+		@Override
+		void close();
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.invalidation;
+
+import java.util.function.Function;
+
+/**
+ * Converts cache keys to and from strings, in order to publish invalidations
+ * of the keys to other processes through an {@link InvalidationBus}.
+ */
+public interface KeyCodec<K> {
+
+	/**
+	 * Uses string keys as they are.
+	 */
+	KeyCodec<String> STRING_KEYS = of(Function.identity(), Function.identity());
+
+	/**
+	 * Uses the decimal representation of {@code Long} keys.
+	 */
+	KeyCodec<Long> LONG_KEYS = of(String::valueOf, Long::valueOf);
+
+	static <K> KeyCodec<K> of(Function<? super K, String> encoder, Function<String, ? extends K> decoder) {
+		return new KeyCodec<K>() {
+			@Override
+			public String encode(K key) {
+				return encoder.apply(key);
+			}
+
+			@Override
+			public K decode(String encodedKey) {
+				return decoder.apply(encodedKey);
+			}
+		};
+	}
+
+	String encode(K key);
+
+	K decode(String encodedKey);
+}
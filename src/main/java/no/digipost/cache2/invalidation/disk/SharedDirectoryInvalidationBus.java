@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.invalidation.disk;
+
+import no.digipost.cache2.fallback.disk.LockedFile;
+import no.digipost.cache2.invalidation.Invalidation;
+import no.digipost.cache2.invalidation.InvalidationBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Collections.emptyList;
+
+/**
+ * {@link InvalidationBus} which exchanges invalidations through append-only journal files
+ * in a directory shared by all processes, e.g. on a network file system. This is suitable
+ * to place next to a directory of fallback files, as it relies on the same kind of
+ * coordination through {@link LockedFile lock-files}.
+ * <p>
+ * Published invalidations are collected and appended to the journal together at a fixed
+ * interval, and at the same interval the journal is polled for invalidations appended by
+ * other processes since the last read offset. All invalidations of the same cache read
+ * in one poll are delivered to its subscribers as one merged invalidation.
+ * <p>
+ * The journal is split into numbered segments. A new segment is started when the newest
+ * one has reached a maximum size, and segments which have not been written to for the
+ * configured retention time are deleted. Should a process lag so far behind that the
+ * segment it is reading has been deleted, all its subscribers are told to invalidate
+ * all their entries, as some invalidations may have been missed.
+ * <p>
+ * Keys and cache names are limited to 65535 bytes of modified UTF-8,
+ * and the keys of one cache flushed together to 16 MiB. An
+ * invalidation of keys beyond these limits is published as an invalidation of all entries
+ * of the cache instead.
+ */
+public final class SharedDirectoryInvalidationBus implements InvalidationBus, Closeable {
+
+	public static final Duration DEFAULT_INTERVAL = Duration.ofSeconds(1);
+	public static final long DEFAULT_MAXIMUM_SEGMENT_BYTES = 16 * 1024 * 1024;
+	public static final Duration DEFAULT_SEGMENT_RETENTION = Duration.ofDays(1);
+
+	/**
+	 * Glob pattern matching the names of the journal files in the directory of the bus, e.g. to have a
+	 * {@link no.digipost.cache2.fallback.disk.FallbackDirectoryHousekeeper#skipping(String...) housekeeper}
+	 * of a fallback directory shared with the bus leave them alone.
+	 */
+	public static final String JOURNAL_FILENAMES = "invalidations*.journal";
+
+	/**
+	 * Start exchanging invalidations through the given directory, writing and polling
+	 * the journal each {@link #DEFAULT_INTERVAL default interval}.
+	 */
+	public static SharedDirectoryInvalidationBus start(Path directory) {
+		return start(directory, DEFAULT_INTERVAL);
+	}
+
+	public static SharedDirectoryInvalidationBus start(Path directory, Duration interval) {
+		return start(directory, interval, DEFAULT_MAXIMUM_SEGMENT_BYTES, DEFAULT_SEGMENT_RETENTION, Clock.systemDefaultZone());
+	}
+
+	public static SharedDirectoryInvalidationBus start(Path directory, Duration interval, long maximumSegmentBytes, Duration segmentRetention, Clock clock) {
+		SharedDirectoryInvalidationBus bus = new SharedDirectoryInvalidationBus(directory, maximumSegmentBytes, segmentRetention, clock);
+		bus.scheduleFlushAndPoll(interval);
+		return bus;
+	}
+
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedDirectoryInvalidationBus.class);
+
+	private static final int RECORD_MAGIC = 0x44504956;
+	private static final int RECORD_OVERHEAD = 3 * Integer.BYTES;
+	private static final int MAXIMUM_RECORD_BYTES = 16 * 1024 * 1024;
+	private static final int MAXIMUM_STRING_BYTES = 65535;
+	private static final int READ_CHUNK_BYTES = 1024 * 1024;
+	private static final Duration MAXIMUM_LOCKING_DURATION = Duration.ofMinutes(1);
+	private static final Pattern SEGMENT_NAME = Pattern.compile("invalidations\\.(\\d+)\\.journal");
+
+	private final Path directory;
+	private final long maximumSegmentBytes;
+	private final Duration segmentRetention;
+	private final Clock clock;
+	private final LockedFile journalLock;
+	private final String nodeId = UUID.randomUUID().toString();
+	private final Queue<Invalidation> published = new ConcurrentLinkedQueue<>();
+	private final List<Invalidation> unflushed = new ArrayList<>();
+	private final ConcurrentMap<String, List<Consumer<Invalidation>>> subscribers = new ConcurrentHashMap<>();
+	private volatile ScheduledExecutorService scheduler;
+
+	private long readingSegment;
+	private long readOffset;
+
+	SharedDirectoryInvalidationBus(Path directory, long maximumSegmentBytes, Duration segmentRetention, Clock clock) {
+		try {
+			Files.createDirectories(directory);
+			this.readingSegment = newestSegment(directory);
+			Path segment = segmentPath(directory, readingSegment);
+			this.readOffset = Files.exists(segment) ? Files.size(segment) : 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to prepare the directory for invalidation journal: "
+					+ e.getClass().getSimpleName() + " '" + e.getMessage() + "'", e);
+		}
+		this.directory = directory;
+		this.maximumSegmentBytes = maximumSegmentBytes;
+		this.segmentRetention = segmentRetention;
+		this.clock = clock;
+		this.journalLock = new LockedFile(directory.resolve("invalidations.journal"), MAXIMUM_LOCKING_DURATION, clock);
+	}
+
+
+	@Override
+	public void publish(Invalidation invalidation) {
+		if (utfBytes(invalidation.getCacheName()) > MAXIMUM_STRING_BYTES) {
+			LOG.warn("Unable to publish {}, as the cache name is longer than {} bytes", invalidation, MAXIMUM_STRING_BYTES);
+			return;
+		}
+		published.add(withinRecordLimits(invalidation));
+	}
+
+	@Override
+	public Subscription subscribe(String cacheName, Consumer<Invalidation> subscriber) {
+		if (utfBytes(cacheName) > MAXIMUM_STRING_BYTES) {
+			throw new IllegalArgumentException("Cache name is longer than " + MAXIMUM_STRING_BYTES + " bytes: " + cacheName.substring(0, 100) + "...");
+		}
+		subscribers.computeIfAbsent(cacheName, name -> new CopyOnWriteArrayList<>()).add(subscriber);
+		return () -> subscribers.getOrDefault(cacheName, emptyList()).remove(subscriber);
+	}
+
+	/**
+	 * Append all invalidations published since last time to the journal. If another process
+	 * is currently appending to the journal, the invalidations are kept until next time.
+	 *
+	 * @return {@code true} if all published invalidations have been appended to the journal.
+	 */
+	public synchronized boolean flush() {
+		for (Invalidation invalidation = published.poll(); invalidation != null; invalidation = published.poll()) {
+			unflushed.add(invalidation);
+		}
+		if (unflushed.isEmpty()) {
+			return true;
+		}
+		try {
+			ByteBuffer records = encode(unflushed);
+			if (journalLock.runIfLock(() -> append(records))) {
+				LOG.debug("Appended {} invalidations to journal in {}", unflushed.size(), directory);
+				unflushed.clear();
+				return true;
+			} else {
+				LOG.debug("Journal in {} is locked by another process. Will retry appending {} invalidations.", directory, unflushed.size());
+				return false;
+			}
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Failed to append {} invalidations to journal in {} because {}: '{}'. Will retry.",
+					unflushed.size(), directory, e.getClass().getSimpleName(), e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Read invalidations appended to the journal by other processes since last time,
+	 * and deliver them to subscribers.
+	 */
+	public synchronized void poll() {
+		Map<String, List<Invalidation>> received = new LinkedHashMap<>();
+		try {
+			long newestSegment = newestSegment(directory);
+			while (true) {
+				Path segment = segmentPath(directory, readingSegment);
+				if (Files.exists(segment)) {
+					readFrom(segment, received);
+				} else if (readingSegment < newestSegment) {
+					LOG.warn("Journal segment {} no longer exists, and some invalidations may have been missed. " +
+							 "Invalidating all entries of subscribing caches.", segment);
+					subscribers.keySet().forEach(cacheName -> received.computeIfAbsent(cacheName, name -> new ArrayList<>()).add(Invalidation.ofAll(cacheName)));
+				}
+				if (readingSegment >= newestSegment) {
+					break;
+				}
+				readingSegment++;
+				readOffset = 0;
+			}
+		} catch (IOException e) {
+			LOG.warn("Failed to read invalidation journal in {} because {}: '{}'. Will retry.", directory, e.getClass().getSimpleName(), e.getMessage());
+		}
+		received.forEach((cacheName, invalidations) -> deliver(Invalidation.merge(cacheName, invalidations)));
+	}
+
+	@Override
+	public void close() {
+		ScheduledExecutorService scheduler = this.scheduler;
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!flush()) {
+			LOG.warn("Unable to append the last {} invalidations to journal in {} when closing.", unflushed.size(), directory);
+		}
+	}
+
+
+	private void scheduleFlushAndPoll(Duration interval) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "invalidation-journal-" + directory.getFileName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+				poll();
+			} catch (RuntimeException e) {
+				LOG.error("Unexpected {} when exchanging invalidations through {}: '{}'", e.getClass().getSimpleName(), directory, e.getMessage(), e);
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private void deliver(Invalidation invalidation) {
+		for (Consumer<Invalidation> subscriber : subscribers.getOrDefault(invalidation.getCacheName(), emptyList())) {
+			try {
+				subscriber.accept(invalidation);
+			} catch (RuntimeException e) {
+				LOG.warn("Subscriber failed to apply {} because {}: '{}'", invalidation, e.getClass().getSimpleName(), e.getMessage(), e);
+			}
+		}
+	}
+
+	private void append(ByteBuffer records) throws IOException {
+		long newestSegment = newestSegment(directory);
+		Path segment = segmentPath(directory, newestSegment);
+		if (Files.exists(segment) && Files.size(segment) >= maximumSegmentBytes) {
+			segment = segmentPath(directory, ++newestSegment);
+		}
+		try (FileChannel channel = FileChannel.open(segment, CREATE, WRITE, APPEND)) {
+			while (records.hasRemaining()) {
+				channel.write(records);
+			}
+		}
+		deleteExpiredSegmentsOlderThan(newestSegment);
+	}
+
+	private void deleteExpiredSegmentsOlderThan(long newestSegment) throws IOException {
+		Instant expiredBefore = clock.instant().minus(segmentRetention);
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+			for (Path segment : segments) {
+				Matcher segmentName = SEGMENT_NAME.matcher(segment.getFileName().toString());
+				if (segmentName.matches() && Long.parseLong(segmentName.group(1)) < newestSegment
+						&& Files.getLastModifiedTime(segment).toInstant().isBefore(expiredBefore)) {
+					LOG.info("Deleting expired invalidation journal segment {}", segment);
+					Files.deleteIfExists(segment);
+				}
+			}
+		}
+	}
+
+	private void readFrom(Path segment, Map<String, List<Invalidation>> received) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment, READ)) {
+			long size = channel.size();
+			int chunkSize = READ_CHUNK_BYTES;
+			while (readOffset + RECORD_OVERHEAD <= size) {
+				ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, size - readOffset));
+				while (chunk.hasRemaining() && channel.read(chunk, readOffset + chunk.position()) >= 0);
+				chunk.flip();
+				int consumed = decode(chunk, segment, received);
+				if (consumed > 0) {
+					readOffset += consumed;
+					chunkSize = READ_CHUNK_BYTES;
+				} else if (chunk.limit() < size - readOffset && chunkSize < MAXIMUM_RECORD_BYTES + RECORD_OVERHEAD) {
+					chunkSize = MAXIMUM_RECORD_BYTES + RECORD_OVERHEAD;
+				} else {
+					return;
+				}
+			}
+		} catch (NoSuchFileException e) {
+			LOG.debug("Journal segment {} was deleted while reading it.", segment);
+		}
+	}
+
+	/**
+	 * Decode the complete records in the buffer.
+	 *
+	 * @return the number of bytes consumed from the buffer
+	 */
+	private int decode(ByteBuffer records, Path segment, Map<String, List<Invalidation>> received) throws IOException {
+		int skipped = 0;
+		while (records.remaining() >= RECORD_OVERHEAD) {
+			int start = records.position();
+			int magic = records.getInt();
+			int length = records.getInt();
+			if (magic != RECORD_MAGIC || length < 0 || length > MAXIMUM_RECORD_BYTES) {
+				records.position(start + 1);
+				skipped++;
+				continue;
+			} else if (records.remaining() < length + Integer.BYTES) {
+				records.position(start);
+				break;
+			}
+			byte[] payload = new byte[length];
+			records.get(payload);
+			CRC32 checksum = new CRC32();
+			checksum.update(payload);
+			if ((int) checksum.getValue() != records.getInt()) {
+				records.position(start + 1);
+				skipped++;
+				continue;
+			}
+			if (skipped > 0) {
+				LOG.warn("Skipped {} bytes of incomplete or corrupt invalidation records in {}", skipped, segment);
+				skipped = 0;
+			}
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+				String publishedBy = in.readUTF();
+				String cacheName = in.readUTF();
+				boolean all = in.readBoolean();
+				int keyCount = in.readInt();
+				List<String> keys = new ArrayList<>(keyCount);
+				for (int i = 0; i < keyCount; i++) {
+					keys.add(in.readUTF());
+				}
+				if (!nodeId.equals(publishedBy)) {
+					received.computeIfAbsent(cacheName, name -> new ArrayList<>()).add(all ? Invalidation.ofAll(cacheName) : Invalidation.ofKeys(cacheName, keys));
+				}
+			}
+		}
+		return records.position();
+	}
+
+	private ByteBuffer encode(List<Invalidation> invalidations) throws IOException {
+		Map<String, List<Invalidation>> byCache = new LinkedHashMap<>();
+		invalidations.forEach(invalidation -> byCache.computeIfAbsent(invalidation.getCacheName(), name -> new ArrayList<>()).add(invalidation));
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(records);
+		for (Map.Entry<String, List<Invalidation>> cacheInvalidations : byCache.entrySet()) {
+			Invalidation merged = withinRecordLimits(Invalidation.merge(cacheInvalidations.getKey(), cacheInvalidations.getValue()));
+			ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+			try (DataOutputStream payload = new DataOutputStream(payloadBytes)) {
+				payload.writeUTF(nodeId);
+				payload.writeUTF(merged.getCacheName());
+				payload.writeBoolean(merged.isAll());
+				payload.writeInt(merged.getKeys().size());
+				for (String key : merged.getKeys()) {
+					payload.writeUTF(key);
+				}
+			}
+			CRC32 checksum = new CRC32();
+			checksum.update(payloadBytes.toByteArray());
+			out.writeInt(RECORD_MAGIC);
+			out.writeInt(payloadBytes.size());
+			payloadBytes.writeTo(out);
+			out.writeInt((int) checksum.getValue());
+		}
+		out.flush();
+		return ByteBuffer.wrap(records.toByteArray());
+	}
+
+	/**
+	 * @return the invalidation, or an invalidation of all entries of the cache if its keys
+	 *         are too long to be written to the journal.
+	 */
+	private Invalidation withinRecordLimits(Invalidation invalidation) {
+		if (invalidation.isAll()) {
+			return invalidation;
+		}
+		long payloadBytes = 2 + utfBytes(nodeId) + 2 + utfBytes(invalidation.getCacheName()) + 1 + Integer.BYTES;
+		for (String key : invalidation.getKeys()) {
+			int keyBytes = utfBytes(key);
+			payloadBytes += 2 + keyBytes;
+			if (keyBytes > MAXIMUM_STRING_BYTES || payloadBytes > MAXIMUM_RECORD_BYTES) {
+				LOG.warn("Publishing {} as invalidation of all entries, as {}", invalidation,
+						keyBytes > MAXIMUM_STRING_BYTES ? "a key is longer than " + MAXIMUM_STRING_BYTES + " bytes" : "the keys are more than " + MAXIMUM_RECORD_BYTES + " bytes");
+				return Invalidation.ofAll(invalidation.getCacheName());
+			}
+		}
+		return invalidation;
+	}
+
+	/**
+	 * @return the length of the string as written by {@link DataOutputStream#writeUTF(String)}, without the length prefix.
+	 */
+	private static int utfBytes(String string) {
+		int bytes = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+			if (bytes > MAXIMUM_RECORD_BYTES) {
+				break;
+			}
+		}
+		return bytes;
+	}
+
+	private static long newestSegment(Path directory) throws IOException {
+		long newest = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "invalidations.*.journal")) {
+			for (Path file : files) {
+				Matcher segmentName = SEGMENT_NAME.matcher(file.getFileName().toString());
+				if (segmentName.matches()) {
+					newest = Math.max(newest, Long.parseLong(segmentName.group(1)));
+				}
+			}
+		}
+		return newest;
+	}
+
+	private static Path segmentPath(Path directory, long segment) {
+		return directory.resolve("invalidations." + segment + ".journal");
+	}
+}
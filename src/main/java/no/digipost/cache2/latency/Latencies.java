@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.latency;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A {@link LatencyHistogram} for each {@link Operation} involved in resolving values for a cache.
+ * Every {@link no.digipost.cache2.inmemory.Cache Cache} records the latency of its loads, and the
+ * same instance may be given to
+ * {@link no.digipost.cache2.fallback.disk.LoaderWithDiskFallbackDecorator#withLatenciesRecordedTo(Latencies) the disk fallback}
+ * to also record the latency of reading and writing fallback files.
+ */
+public final class Latencies {
+
+	public enum Operation {
+		/**
+		 * Resolving a value not present in the cache, using the loader given to the cache,
+		 * including any fallback.
+		 */
+		LOAD,
+
+		/**
+		 * Reading a fallback value, because loading failed.
+		 */
+		FALLBACK_LOAD,
+
+		/**
+		 * Writing a successfully loaded value to be used as fallback.
+		 */
+		FALLBACK_KEEP,
+
+		/**
+		 * Trying to acquire the lock of a fallback file.
+		 */
+		LOCK_WAIT
+	}
+
+	/**
+	 * Discards everything recorded to it.
+	 */
+	public static final Latencies NOT_RECORDED = new Latencies(false);
+
+	private final Map<Operation, LatencyHistogram> histograms;
+
+	public Latencies() {
+		this(true);
+	}
+
+	private Latencies(boolean recorded) {
+		histograms = new EnumMap<>(Operation.class);
+		if (recorded) {
+			for (Operation operation : Operation.values()) {
+				histograms.put(operation, new LatencyHistogram());
+			}
+		}
+	}
+
+	public void record(Operation operation, long nanos) {
+		LatencyHistogram histogram = histograms.get(operation);
+		if (histogram != null) {
+			histogram.record(nanos);
+		}
+	}
+
+	/**
+	 * @param startNanos a value previously obtained from {@link System#nanoTime()}.
+	 */
+	public void recordSince(Operation operation, long startNanos) {
+		LatencyHistogram histogram = histograms.get(operation);
+		if (histogram != null) {
+			histogram.recordSince(startNanos);
+		}
+	}
+
+	public LatencySnapshot snapshot(Operation operation) {
+		return histogramFor(operation).snapshot();
+	}
+
+	public Map<Operation, LatencySnapshot> snapshot() {
+		return snapshotAll(LatencyHistogram::snapshot);
+	}
+
+	/**
+	 * Take snapshots of all operations and start over with empty histograms.
+	 *
+	 * @see LatencyHistogram#snapshotAndReset()
+	 */
+	public Map<Operation, LatencySnapshot> snapshotAndReset() {
+		return snapshotAll(LatencyHistogram::snapshotAndReset);
+	}
+
+	private Map<Operation, LatencySnapshot> snapshotAll(Function<LatencyHistogram, LatencySnapshot> takeSnapshot) {
+		Map<Operation, LatencySnapshot> snapshots = new EnumMap<>(Operation.class);
+		for (Operation operation : Operation.values()) {
+			snapshots.put(operation, takeSnapshot.apply(histogramFor(operation)));
+		}
+		return snapshots;
+	}
+
+	private LatencyHistogram histogramFor(Operation operation) {
+		LatencyHistogram histogram = histograms.get(operation);
+		return histogram != null ? histogram : new LatencyHistogram();
+	}
+}
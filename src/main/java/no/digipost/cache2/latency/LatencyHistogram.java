@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.latency;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds. Values are counted in logarithmic
+ * buckets, each power of two divided into {@value #SUB_BUCKETS} linear sub-buckets, which gives
+ * a relative error below 7% for any recorded value. Recording a value does not allocate
+ * and does not block, and may happen concurrently with taking {@link #snapshot() snapshots}.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		counts.incrementAndGet(bucketOf(value));
+		totalNanos.addAndGet(value);
+		long max;
+		while (value > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, value));
+	}
+
+	/**
+	 * Record the time elapsed since the given start time.
+	 *
+	 * @param startNanos a value previously obtained from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public LatencySnapshot snapshot() {
+		long[] snapshotCounts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshotCounts[i] = counts.get(i);
+		}
+		return new LatencySnapshot(snapshotCounts, totalNanos.get(), maxNanos.get());
+	}
+
+	/**
+	 * Take a snapshot and start over with an empty histogram, e.g. to report the
+	 * latencies of an interval. Values recorded while the snapshot is taken are included
+	 * in either this or the next snapshot.
+	 */
+	public LatencySnapshot snapshotAndReset() {
+		long[] snapshotCounts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshotCounts[i] = counts.getAndSet(i, 0);
+		}
+		return new LatencySnapshot(snapshotCounts, totalNanos.getAndSet(0), maxNanos.getAndSet(0));
+	}
+
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long highestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
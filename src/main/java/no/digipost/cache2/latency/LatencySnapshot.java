@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.latency;
+
+import java.time.Duration;
+
+/**
+ * Percentiles and other aggregates of the latencies recorded by a {@link LatencyHistogram}
+ * at the time the snapshot was taken.
+ */
+public final class LatencySnapshot {
+
+	private final long[] counts;
+	private final long count;
+	private final long totalNanos;
+	private final long maxNanos;
+
+	LatencySnapshot(long[] counts, long totalNanos, long maxNanos) {
+		long count = 0;
+		for (long bucketCount : counts) {
+			count += bucketCount;
+		}
+		this.counts = counts;
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public Duration getMean() {
+		return count == 0 ? Duration.ZERO : Duration.ofNanos(totalNanos / count);
+	}
+
+	public Duration getMax() {
+		return Duration.ofNanos(maxNanos);
+	}
+
+	/**
+	 * @param percentile the percentile, between 0 and 100, e.g. {@code 99.9}.
+	 * @return the latency which the given percentage of the recorded latencies are
+	 *         equal to or below, or {@link Duration#ZERO} if nothing was recorded.
+	 */
+	public Duration getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100, but was " + percentile);
+		}
+		if (count == 0) {
+			return Duration.ZERO;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank) {
+				return Duration.ofNanos(Math.min(LatencyHistogram.highestValueIn(bucket), maxNanos));
+			}
+		}
+		return getMax();
+	}
+
+	public Duration getMedian() {
+		return getPercentile(50);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + ", mean=" + getMean() + ", p50=" + getMedian() + ", p99=" + getPercentile(99) +
+				", p99.9=" + getPercentile(99.9) + ", max=" + getMax();
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.loader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of concurrent invocations of the loaders it decorates, to not overwhelm a backend
+ * when many distinct keys are loaded at once, e.g. on a cold start or after many entries expired at
+ * the same time. Loads beyond the limit wait for a bounded time to be let through, and then fail
+ * with {@link BulkheadFull}.
+ * <p>
+ * Use one bulkhead per cache, or share one bulkhead between the loaders of all caches using the same
+ * backend. Decorate the loader before decorating it with a fallback, e.g. with
+ * {@link no.digipost.cache2.fallback.disk.LoaderWithDiskFallbackDecorator LoaderWithDiskFallbackDecorator},
+ * to have the fallback answer the loads which are rejected by the bulkhead.
+ */
+public final class Bulkhead<K, V> implements LoaderDecorator<K, V> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Bulkhead.class);
+
+	private final String name;
+	private final int maxConcurrentLoads;
+	private final Duration maxWait;
+	private final Semaphore permits;
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param name identifies the bulkhead in logs and exceptions, e.g. the name of the backend.
+	 * @param maxConcurrentLoads the maximum number of loads to run at the same time.
+	 * @param maxWait the maximum time a load waits for other loads to complete before being rejected.
+	 */
+	public Bulkhead(String name, int maxConcurrentLoads, Duration maxWait) {
+		if (maxConcurrentLoads <= 0) {
+			throw new IllegalArgumentException("Maximum concurrent loads must be positive, but was " + maxConcurrentLoads);
+		}
+		this.name = name;
+		this.maxConcurrentLoads = maxConcurrentLoads;
+		this.maxWait = maxWait;
+		this.permits = new Semaphore(maxConcurrentLoads, true);
+	}
+
+	@Override
+	public Loader<K, V> decorate(Loader<? super K, V> underlyingLoader) {
+		return new ReloadingLoader<K, V>() {
+			@Override
+			public V load(K key) throws Exception {
+				acquire(key);
+				try {
+					return underlyingLoader.load(key);
+				} finally {
+					permits.release();
+				}
+			}
+
+			@Override
+			public V reload(K key, V previous) throws Exception {
+				if (!(underlyingLoader instanceof ReloadingLoader)) {
+					return load(key);
+				}
+				@SuppressWarnings("unchecked")
+				ReloadingLoader<? super K, V> reloadingLoader = (ReloadingLoader<? super K, V>) underlyingLoader;
+				acquire(key);
+				try {
+					return reloadingLoader.reload(key, previous);
+				} finally {
+					permits.release();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the number of loads currently running through this bulkhead.
+	 */
+	public int getConcurrentLoads() {
+		return maxConcurrentLoads - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of loads currently waiting to be let through this bulkhead.
+	 */
+	public int getWaitingLoads() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * @return the number of loads rejected by this bulkhead.
+	 */
+	public long getRejectedLoads() {
+		return rejected.sum();
+	}
+
+	private void acquire(K key) throws InterruptedException {
+		if (!permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+			rejected.increment();
+			LOG.debug("Rejecting load of '{}' after waiting {} for one of {} concurrent loads through the {} bulkhead to complete",
+					key, maxWait, maxConcurrentLoads, name);
+			throw new BulkheadFull(name, maxConcurrentLoads, maxWait);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Bulkhead " + name + " of " + maxConcurrentLoads + " concurrent loads, waiting at most " + maxWait;
+	}
+
+
+	public static class BulkheadFull extends RuntimeException {
+		private BulkheadFull(String name, int maxConcurrentLoads, Duration maxWait) {
+			super("All " + maxConcurrentLoads + " concurrent loads through the " + name + " bulkhead were still running after waiting " + maxWait);
+		}
+	}
+}
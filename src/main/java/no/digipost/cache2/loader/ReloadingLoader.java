@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.loader;
+
+/**
+ * A {@link Loader} which is able to reload a value cheaply when given the previously loaded
+ * value, e.g. by asking the backend whether it has changed using {@code If-None-Match} or a version
+ * the value carries. The {@link no.digipost.cache2.inmemory.Cache Cache} uses {@link #reload(Object, Object)}
+ * when a previous value exists, i.e. when {@link no.digipost.cache2.inmemory.Cache#refresh(Object, Loader) refreshing}
+ * an entry, or when an entry has expired and the cache
+ * {@link no.digipost.cache2.inmemory.CacheConfig#retainExpiredValuesFor(java.time.Duration) retains expired values}.
+ *
+ * @param <K> The key's type.
+ * @param <V> The cached value's type.
+ */
+public interface ReloadingLoader<K, V> extends Loader<K, V> {
+
+	/**
+	 * Reload the value of a key which has previously been loaded.
+	 *
+	 * @param previous the value previously loaded for the key.
+	 * @return the new value, or the {@code previous} instance if it has not changed.
+	 */
+	V reload(K key, V previous) throws Exception;
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The binary format of access traces written by {@link AccessTraceRecorder}. A trace starts with
+ * the {@value #MAGIC} magic number, a format version and the fraction of keys sampled, followed by
+ * a {@value #RECORD_SIZE} bytes record for each access: the timestamp in nanoseconds of the cache's ticker, the hash code of the
+ * key, and whether the access was a hit.
+ */
+public final class AccessTrace {
+
+	static final int MAGIC = 0xCAC4E7AC;
+	static final int VERSION = 2;
+	static final int RECORD_SIZE = Long.BYTES + Integer.BYTES + 1;
+
+	@FunctionalInterface
+	public interface Visitor {
+		void access(long timestampNanos, int keyHash, boolean hit);
+	}
+
+	/**
+	 * @return the fraction, between 0 and 1, of the keys whose accesses are recorded in a trace file.
+	 */
+	public static double readSampleRate(Path traceFile) throws IOException {
+		try (InputStream in = Files.newInputStream(traceFile); DataInputStream trace = new DataInputStream(in)) {
+			return readHeader(traceFile, trace);
+		}
+	}
+
+	/**
+	 * Read all accesses of a trace file, in the order they were recorded.
+	 */
+	public static void read(Path traceFile, Visitor visitor) throws IOException {
+		try (InputStream in = Files.newInputStream(traceFile); DataInputStream trace = new DataInputStream(new BufferedInputStream(in, 1 << 16))) {
+			readHeader(traceFile, trace);
+			while (true) {
+				long timestampNanos;
+				try {
+					timestampNanos = trace.readLong();
+				} catch (EOFException endOfTrace) {
+					return;
+				}
+				visitor.access(timestampNanos, trace.readInt(), trace.readBoolean());
+			}
+		}
+	}
+
+	/**
+	 * @return the sample rate of the trace.
+	 */
+	private static double readHeader(Path traceFile, DataInputStream trace) throws IOException {
+		int magic = trace.readInt();
+		int version = trace.readInt();
+		if (magic != MAGIC || version != VERSION) {
+			throw new IOException(traceFile + " is not an access trace of version " + VERSION);
+		}
+		return trace.readDouble();
+	}
+
+	private AccessTrace() {
+	}
+}
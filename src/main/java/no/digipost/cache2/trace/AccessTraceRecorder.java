@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records a sample of the accesses of a cache to a trace file, which may be replayed with
+ * {@link TraceReplay} to see how other configurations of the cache would perform. Enable recording
+ * for a cache with {@link no.digipost.cache2.inmemory.CacheConfig#recordAccessTrace(AccessTraceRecorder)}.
+ * <p>
+ * Keys are sampled by their hash code, so that every access of a sampled key is recorded.
+ * Accesses are put in a lock-free ring buffer, which is written to the trace file by a
+ * background thread. If the buffer is full, accesses are dropped instead of blocking the
+ * cache, and counted as {@link #getDroppedCount() dropped}.
+ */
+public final class AccessTraceRecorder implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AccessTraceRecorder.class);
+
+	public static final int DEFAULT_BUFFER_CAPACITY = 1 << 16;
+
+	/**
+	 * Record all accesses to the given file.
+	 */
+	public static AccessTraceRecorder start(Path traceFile) {
+		return start(traceFile, 1.0);
+	}
+
+	/**
+	 * @param sampleRate the fraction, between 0 and 1, of the keys to record accesses of.
+	 */
+	public static AccessTraceRecorder start(Path traceFile, double sampleRate) {
+		return start(traceFile, sampleRate, DEFAULT_BUFFER_CAPACITY);
+	}
+
+	/**
+	 * @param sampleRate the fraction, between 0 and 1, of the keys to record accesses of.
+	 * @param bufferCapacity the number of accesses which may be buffered before being written to the trace file.
+	 */
+	public static AccessTraceRecorder start(Path traceFile, double sampleRate, int bufferCapacity) {
+		if (sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1, but was " + sampleRate);
+		}
+		try {
+			AccessTraceRecorder recorder = new AccessTraceRecorder(traceFile, sampleRate, bufferCapacity);
+			recorder.scheduleWrites();
+			return recorder;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to create access trace " + traceFile + ", because " + e.getClass().getSimpleName() + ": '" + e.getMessage() + "'", e);
+		}
+	}
+
+
+	private final Path traceFile;
+	private final int sampleThreshold;
+	private final int mask;
+	private final long[] timestamps;
+	private final int[] keyHashes;
+	private final boolean[] hits;
+	private final AtomicLongArray published;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+	private final AtomicLong dropped = new AtomicLong();
+	private final DataOutputStream out;
+	private ScheduledExecutorService writer;
+	private volatile boolean closed;
+	private boolean outClosed;
+
+	private AccessTraceRecorder(Path traceFile, double sampleRate, int bufferCapacity) throws IOException {
+		int capacity = Integer.highestOneBit(Math.max(bufferCapacity - 1, 1)) << 1;
+		this.traceFile = traceFile;
+		this.sampleThreshold = (int) Math.round(sampleRate * (1 << 16));
+		this.mask = capacity - 1;
+		this.timestamps = new long[capacity];
+		this.keyHashes = new int[capacity];
+		this.hits = new boolean[capacity];
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(traceFile), 1 << 16));
+		out.writeInt(AccessTrace.MAGIC);
+		out.writeInt(AccessTrace.VERSION);
+		out.writeDouble(sampleThreshold / (double) (1 << 16));
+	}
+
+	/**
+	 * @return whether accesses of keys with the given hash code are recorded.
+	 */
+	public boolean isSampled(int keyHash) {
+		int hash = keyHash * 0x9e3779b9;
+		return !closed && ((hash ^ (hash >>> 16)) & 0xffff) < sampleThreshold;
+	}
+
+	/**
+	 * Record an access of a {@link #isSampled(int) sampled} key. This never blocks, and does not allocate.
+	 *
+	 * @param timestampNanos the time of the access, as given by the ticker of the cache.
+	 */
+	public void record(int keyHash, long timestampNanos, boolean hit) {
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence - head > mask) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(sequence, sequence + 1));
+		int slot = (int) sequence & mask;
+		timestamps[slot] = timestampNanos;
+		keyHashes[slot] = keyHash;
+		hits[slot] = hit;
+		published.set(slot, sequence);
+	}
+
+	/**
+	 * @return the number of accesses which were not recorded because the buffer was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public Path getTraceFile() {
+		return traceFile;
+	}
+
+	/**
+	 * Write all buffered accesses to the trace file.
+	 */
+	public synchronized void flush() {
+		if (outClosed) {
+			return;
+		}
+		try {
+			long sequence = head;
+			int slot;
+			while (published.get(slot = (int) sequence & mask) == sequence) {
+				out.writeLong(timestamps[slot]);
+				out.writeInt(keyHashes[slot]);
+				out.writeBoolean(hits[slot]);
+				head = ++sequence;
+			}
+			out.flush();
+		} catch (IOException e) {
+			LOG.warn("Failed to write access trace {} because {}: '{}'", traceFile, e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop recording, and write the remaining buffered accesses to the trace file.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		writer.shutdown();
+		flush();
+		outClosed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			LOG.warn("Failed to close access trace {} because {}: '{}'", traceFile, e.getClass().getSimpleName(), e.getMessage());
+		}
+		if (dropped.get() > 0) {
+			LOG.info("{} accesses were dropped from access trace {} because the buffer was full", dropped.get(), traceFile);
+		}
+	}
+
+	private void scheduleWrites() {
+		writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "access-trace-" + traceFile.getFileName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		writer.scheduleWithFixedDelay(this::flush, 100, 100, TimeUnit.MILLISECONDS);
+	}
+}
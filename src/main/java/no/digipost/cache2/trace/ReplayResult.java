@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.trace;
+
+/**
+ * The outcome of replaying an access trace against one candidate configuration.
+ */
+public final class ReplayResult {
+
+	private final String candidate;
+	private final long requestCount;
+	private final long hitCount;
+	private final long loadCount;
+
+	ReplayResult(String candidate, long requestCount, long hitCount, long loadCount) {
+		this.candidate = candidate;
+		this.requestCount = requestCount;
+		this.hitCount = hitCount;
+		this.loadCount = loadCount;
+	}
+
+	public String getCandidate() {
+		return candidate;
+	}
+
+	public long getRequestCount() {
+		return requestCount;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public double getHitRate() {
+		return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+	}
+
+	/**
+	 * @return the number of times a value would have been loaded.
+	 */
+	public long getLoadCount() {
+		return loadCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: hit rate %.2f%%, %d loads of %d requests", candidate, getHitRate() * 100, loadCount, requestCount);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.trace;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import no.digipost.cache2.inmemory.CacheConfig;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Replays an access trace recorded by {@link AccessTraceRecorder} against candidate
+ * {@link CacheConfig configurations}, to find the size and expiry giving the hit rate one
+ * needs, without guesswork. Each candidate is simulated by a Caffeine cache driven by the
+ * timestamps of the trace instead of the system clock, and which does its maintenance
+ * synchronously, so that the results are deterministic.
+ *
+ * <pre>{@code
+ * List<ReplayResult> results = TraceReplay.of(traceFile)
+ *     .candidate("10k", maximumSize(10_000))
+ *     .candidate("10k, 5 minutes", maximumSize(10_000), expireAfterWrite(Duration.ofMinutes(5)))
+ *     .run();
+ * }</pre>
+ *
+ * The trace only holds the hash codes of keys, not the values, so candidates bounded
+ * by weight can not be simulated. If only a sample of the keys was recorded, the maximum size
+ * of each candidate is scaled by the sample rate, so that the simulated cache holds the same
+ * fraction of the sampled keys as the candidate would of all keys.
+ */
+public final class TraceReplay {
+
+	/**
+	 * Replay a trace file against caches with the maximum sizes given as arguments,
+	 * and print the results.
+	 *
+	 * <pre>java no.digipost.cache2.trace.TraceReplay trace-file maximum-size...</pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: " + TraceReplay.class.getName() + " <trace-file> <maximum-size>...");
+			System.exit(1);
+		}
+		TraceReplay replay = of(Paths.get(args[0]));
+		for (int i = 1; i < args.length; i++) {
+			replay.candidate("maximumSize=" + args[i], CacheConfig.maximumSize(Long.parseLong(args[i])));
+		}
+		replay.run().forEach(System.out::println);
+	}
+
+	public static TraceReplay of(Path traceFile) {
+		return new TraceReplay(traceFile);
+	}
+
+
+	private final Path traceFile;
+	private final Map<String, List<CacheConfig>> candidates = new LinkedHashMap<>();
+
+	private TraceReplay(Path traceFile) {
+		this.traceFile = traceFile;
+	}
+
+	public TraceReplay candidate(String name, CacheConfig ... configurers) {
+		candidates.put(name, asList(configurers));
+		return this;
+	}
+
+	/**
+	 * Replay the trace against each candidate, in addition to reporting the hit rate
+	 * which was actually recorded in the trace as the first result.
+	 */
+	public List<ReplayResult> run() throws IOException {
+		double sampleRate = AccessTrace.readSampleRate(traceFile);
+		List<SimulatedCache> caches = new ArrayList<>();
+		candidates.forEach((name, configurers) -> caches.add(new SimulatedCache(name, configurers, sampleRate)));
+		long[] recorded = new long[2];
+		AccessTrace.read(traceFile, (timestampNanos, keyHash, hit) -> {
+			recorded[0]++;
+			if (hit) {
+				recorded[1]++;
+			}
+			for (SimulatedCache cache : caches) {
+				cache.access(timestampNanos, keyHash);
+			}
+		});
+
+		List<ReplayResult> results = new ArrayList<>();
+		results.add(new ReplayResult("recorded", recorded[0], recorded[1], recorded[0] - recorded[1]));
+		for (SimulatedCache cache : caches) {
+			results.add(cache.result());
+		}
+		return results;
+	}
+
+
+	private static final class SimulatedCache implements Ticker {
+
+		private final String name;
+		private final com.github.benmanes.caffeine.cache.Cache<Integer, Boolean> cache;
+		private long nanos;
+		private long requests;
+		private long loads;
+
+		SimulatedCache(String name, List<CacheConfig> configurers, double sampleRate) {
+			Caffeine<Object, Object> builder = Caffeine.newBuilder();
+			for (CacheConfig configurer : configurers) {
+				builder = configurer.configure(builder);
+			}
+			this.name = name;
+			this.cache = builder.ticker(this).executor(Runnable::run).build();
+			cache.policy().eviction().ifPresent(eviction -> {
+				long maximum = eviction.getMaximum();
+				eviction.setMaximum(maximum > 0 ? Math.max(1, Math.round(maximum * sampleRate)) : 0);
+			});
+		}
+
+		void access(long timestampNanos, int keyHash) {
+			nanos = timestampNanos;
+			requests++;
+			cache.get(keyHash, key -> {
+				loads++;
+				return Boolean.TRUE;
+			});
+		}
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+		ReplayResult result() {
+			return new ReplayResult(name, requests, requests - loads, loads);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.concurrent;
+
+import no.digipost.cache2.fallback.disk.LoaderWithDiskFallbackDecorator;
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import no.digipost.cache2.inmemory.Cache;
+import no.digipost.cache2.loader.Loader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static no.digipost.cache2.fallback.disk.FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME;
+import static no.digipost.cache2.inmemory.CacheConfig.executor;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+class VirtualThreadsTest {
+
+	@TempDir
+	Path fallbackDirectory;
+
+	private final ExecutorService executor = VirtualThreads.newExecutor("test-loader");
+
+	@Test
+	void runsManyBlockingTasksConcurrently() throws InterruptedException {
+		int tasks = 1000;
+		CountDownLatch allStarted = new CountDownLatch(tasks);
+		CountDownLatch release = new CountDownLatch(1);
+		for (int i = 0; i < tasks; i++) {
+			executor.execute(() -> {
+				allStarted.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		assertThat(allStarted.await(10, TimeUnit.SECONDS), is(true));
+		release.countDown();
+		executor.shutdown();
+		assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test
+	void namesThreads() throws Exception {
+		assertThat(executor.submit(() -> Thread.currentThread().getName()).get(), startsWith("test-loader-"));
+		executor.shutdown();
+	}
+
+	@Test
+	void writesFallbackFilesAndRunsCacheMaintenanceOnExecutor() throws Exception {
+		Cache<String, String> cache = Cache.create(executor(executor));
+		Loader<String, String> loader = new LoaderWithDiskFallbackDecorator<String, String>(fallbackDirectory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>())
+				.withFallbackWritesOn(executor)
+				.decorate(key -> "value");
+
+		assertThat(cache.get("key", loader), is("value"));
+		executor.shutdown();
+		assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+		assertThat(Files.exists(fallbackDirectory.resolve("key")), is(true));
+	}
+}
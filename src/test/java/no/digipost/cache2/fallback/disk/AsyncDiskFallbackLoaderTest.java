@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+import static java.util.Collections.nCopies;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AsyncDiskFallbackLoaderTest {
+
+	@TempDir
+	Path directory;
+
+	private final AtomicReference<Thread> decodingThread = new AtomicReference<>();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "decoding");
+		decodingThread.set(thread);
+		return thread;
+	});
+
+	@AfterEach
+	void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void loadsFallbackValuesWithoutBlocking() throws Exception {
+		LoaderWithDiskFallbackDecorator<String, ArrayList<String>> decorator = new LoaderWithDiskFallbackDecorator<>(
+				directory, new ShardedFallbackFileNamingStrategy<>(), new SerializingMarshaller<>());
+		ArrayList<String> small = new ArrayList<>(nCopies(10, "value"));
+		ArrayList<String> large = new ArrayList<>();
+		for (int i = 0; i < 20_000; i++) {
+			large.add("value " + i);
+		}
+		decorator.decorate(key -> key.equals("small") ? small : large).load("small");
+		decorator.decorate(key -> key.equals("small") ? small : large).load("large");
+
+		AsyncDiskFallbackLoader<String, ArrayList<String>> asyncLoader = decorator.asyncFallbackLoader(executor);
+		for (int i = 0; i < 3; i++) {
+			assertThat(asyncLoader.loadAsync("small").get(), is(small));
+			assertThat(asyncLoader.loadAsync("large").get(), is(large));
+		}
+		assertThat(decodingThread.get().getName(), is("decoding"));
+	}
+
+	@Test
+	void loadsCompressedFallbackValues() throws Exception {
+		LoaderWithDiskFallbackDecorator<String, String> decorator = new LoaderWithDiskFallbackDecorator<String, String>(
+				directory, FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>()).withCompression(Deflater.BEST_SPEED);
+		decorator.decorate(key -> "value of " + key).load("key");
+
+		assertThat(decorator.asyncFallbackLoader(executor).load("key"), is("value of key"));
+	}
+
+	@Test
+	void completesExceptionallyWhenThereIsNoFallbackValue() {
+		CompletableFuture<String> value = new LoaderWithDiskFallbackDecorator<String, String>(
+				directory, FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>())
+				.asyncFallbackLoader(executor).loadAsync("missing");
+
+		ExecutionException failure = assertThrows(ExecutionException.class, value::get);
+		assertThat(failure.getCause(), instanceOf(FallbackFile.FallbackFileNotYetCreated.class));
+	}
+}
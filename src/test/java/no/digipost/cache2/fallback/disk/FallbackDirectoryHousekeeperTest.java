@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import no.digipost.cache2.invalidation.disk.SharedDirectoryInvalidationBus;
+import no.digipost.cache2.loader.Loader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+import static no.digipost.cache2.fallback.disk.FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FallbackDirectoryHousekeeperTest {
+
+	@TempDir
+	Path directory;
+
+	private final Clock clock = Clock.systemDefaultZone();
+
+	@Test
+	void removesTempFilesAndLockFilesLeftBehind() throws Exception {
+		FallbackFile fallbackFile = new FallbackFile.Resolver<>(directory, USE_KEY_TOSTRING_AS_FILENAME, clock).resolveFor("key");
+		writeTo(fallbackFile, 10);
+		Path oldTempfile = createFile("key." + System.currentTimeMillis() + ".abcdefghij", 100, Duration.ofHours(1));
+		Path newTempfile = createFile("key." + System.currentTimeMillis() + ".klmnopqrst", 100, Duration.ZERO);
+		assertTrue(fallbackFile.lockedFile.tryLock());
+		setAge(directory.resolve("key" + LockedFile.LOCK_FILE_POSTFIX), Duration.ofHours(1));
+
+		FallbackDirectoryHousekeeper.Result result = new FallbackDirectoryHousekeeper(directory, FallbackDirectoryHousekeeper.UNLIMITED).clean();
+
+		assertThat(result.getRemovedTempFiles(), is(1));
+		assertThat(result.getRemovedLockFiles(), is(1));
+		assertThat(result.getEvictedFallbackFiles(), is(0));
+		assertThat(result.getReclaimedBytes(), is(100L));
+		assertThat(result.getRemainingBytes(), is(110L));
+		assertFalse(Files.exists(oldTempfile));
+		assertTrue(Files.exists(newTempfile));
+		assertFalse(fallbackFile.lockedFile.isLocked());
+		assertTrue(Files.exists(fallbackFile.lockedFile.getPath()));
+	}
+
+	@Test
+	void evictsLeastRecentlyWrittenFallbackFilesToStayWithinDiskBudget() throws Exception {
+		Path oldest = createFile("a", 100, Duration.ofMinutes(3));
+		Path older = createFile("b", 100, Duration.ofMinutes(2));
+		Path newest = createFile("c", 100, Duration.ofMinutes(1));
+
+		FallbackDirectoryHousekeeper.Result result = new FallbackDirectoryHousekeeper(directory, 150).clean();
+
+		assertThat(result.getEvictedFallbackFiles(), is(2));
+		assertThat(result.getReclaimedBytes(), is(200L));
+		assertFalse(Files.exists(oldest));
+		assertFalse(Files.exists(older));
+		assertTrue(Files.exists(newest));
+	}
+
+	@Test
+	void doesNotEvictLockedFallbackFiles() throws Exception {
+		Path locked = createFile("a", 100, Duration.ofMinutes(2));
+		Path unlocked = createFile("b", 100, Duration.ofMinutes(1));
+		LockedFile lock = new LockedFile(locked, clock);
+		assertTrue(lock.tryLock());
+		try {
+			FallbackDirectoryHousekeeper.Result result = new FallbackDirectoryHousekeeper(directory, 150).clean();
+			assertThat(result.getEvictedFallbackFiles(), is(1));
+			assertTrue(Files.exists(locked));
+			assertFalse(Files.exists(unlocked));
+		} finally {
+			lock.release();
+		}
+	}
+
+	@Test
+	void leavesOtherFilesAlone() throws Exception {
+		Path journal = createFile("invalidations.0.journal", 1000, Duration.ofHours(1));
+		Files.createDirectories(directory.resolve("other"));
+		Path fileInSubdirectory = createFile("other/file", 1000, Duration.ofHours(1));
+		Path oldest = createFile("a", 100, Duration.ofMinutes(2));
+		Path newest = createFile("b", 100, Duration.ofMinutes(1));
+
+		FallbackDirectoryHousekeeper.Result result = new FallbackDirectoryHousekeeper(directory, 150)
+				.skipping(SharedDirectoryInvalidationBus.JOURNAL_FILENAMES)
+				.clean();
+
+		assertThat(result.getEvictedFallbackFiles(), is(1));
+		assertThat(result.getRemainingBytes(), is(100L));
+		assertFalse(Files.exists(oldest));
+		assertTrue(Files.exists(newest));
+		assertTrue(Files.exists(journal));
+		assertTrue(Files.exists(fileInSubdirectory));
+	}
+
+	@Test
+	void keepsFallbackFilesOfKeysLookingLikeTempFiles() throws Exception {
+		LoaderWithDiskFallbackDecorator<String, String> decorator =
+				new LoaderWithDiskFallbackDecorator<>(directory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>());
+		Loader<String, String> loader = decorator.decorate(key -> key);
+		loader.load("user.1.abcdefghij");
+		Path fallbackFile = directory.resolve("user.1.abcdefghij");
+		setAge(fallbackFile, Duration.ofHours(1));
+		Path tempfile = createFile("user.tmp-" + System.currentTimeMillis() + ".abcdefghij", 100, Duration.ofHours(1));
+
+		FallbackDirectoryHousekeeper.Result result = decorator.housekeeper(FallbackDirectoryHousekeeper.UNLIMITED).clean();
+
+		assertThat(result.getRemovedTempFiles(), is(1));
+		assertFalse(Files.exists(tempfile));
+		assertTrue(Files.exists(fallbackFile));
+		assertThat(loader.load("user.1.abcdefghij"), is("user.1.abcdefghij"));
+	}
+
+	@Test
+	void onlyEvictsFilesInTheShardedLayout() throws Exception {
+		LoaderWithDiskFallbackDecorator<String, String> decorator =
+				new LoaderWithDiskFallbackDecorator<>(directory, new ShardedFallbackFileNamingStrategy<>(), new SerializingMarshaller<>());
+		Loader<String, String> loader = decorator.decorate(key -> key);
+		loader.load("a");
+		Path a = new ShardedFallbackFileNamingStrategy<String>().resolve(directory, "a");
+		setAge(a, Duration.ofMinutes(1));
+		Path otherFile = createFile("other", 1000, Duration.ofHours(1));
+		Path otherFileInShard = createFile(directory.relativize(a.resolveSibling("other")).toString(), 1000, Duration.ofHours(1));
+
+		FallbackDirectoryHousekeeper.Result result = decorator.housekeeper(0).clean();
+
+		assertThat(result.getEvictedFallbackFiles(), is(1));
+		assertThat(result.getRemainingBytes(), is(0L));
+		assertFalse(Files.exists(a));
+		assertTrue(Files.exists(otherFile));
+		assertTrue(Files.exists(otherFileInShard));
+	}
+
+	@Test
+	void housekeeperOfDecoratorCleansItsFallbackDirectory() throws Exception {
+		LoaderWithDiskFallbackDecorator<String, String> decorator =
+				new LoaderWithDiskFallbackDecorator<>(directory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>());
+		Loader<String, String> loader = decorator.decorate(key -> key);
+		loader.load("a");
+		setAge(directory.resolve("a"), Duration.ofMinutes(1));
+		loader.load("b");
+
+		FallbackDirectoryHousekeeper.Result result = decorator.housekeeper(Files.size(directory.resolve("b"))).clean();
+
+		assertThat(result.getEvictedFallbackFiles(), is(1));
+		assertFalse(Files.exists(directory.resolve("a")));
+		assertThat(loader.load("b"), is("b"));
+	}
+
+	private Path createFile(String name, int size, Duration age) throws Exception {
+		Path file = Files.write(directory.resolve(name), new byte[size]);
+		setAge(file, age);
+		return file;
+	}
+
+	private static void setAge(Path file, Duration age) throws Exception {
+		Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(age)));
+	}
+
+	private static void writeTo(FallbackFile fallbackFile, int size) throws Exception {
+		try (OutputStream out = fallbackFile.write()) {
+			out.write(new byte[size]);
+		}
+	}
+}
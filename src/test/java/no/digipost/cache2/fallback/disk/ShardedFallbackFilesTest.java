@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import no.digipost.cache2.fallback.testharness.SimulatedLoaderFailure;
+import no.digipost.cache2.loader.Loader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static java.util.Collections.nCopies;
+import static no.digipost.cache2.fallback.disk.FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedFallbackFilesTest {
+
+	private static final String KEY = "org/1234/settings?" + String.join("", nCopies(50, "long"));
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void hashesKeysIntoTwoLevelsOfSubdirectories() throws Exception {
+		ShardedFallbackFileNamingStrategy<String> strategy = new ShardedFallbackFileNamingStrategy<>();
+		String filename = strategy.toFilename(KEY);
+		assertThat(filename.length(), is(64));
+		assertThat(strategy.resolve(directory, KEY), is(directory.resolve(filename.substring(0, 2)).resolve(filename.substring(2, 4)).resolve(filename)));
+	}
+
+	@Test
+	void storesValueAndOriginalKeyInShardedFile() throws Exception {
+		ShardedFallbackFileNamingStrategy<String> strategy = new ShardedFallbackFileNamingStrategy<>();
+		assertThat(loader(strategy, "value").load(KEY), is("value"));
+
+		assertThat(loader(strategy, null).load(KEY), is("value"));
+		Path file = strategy.resolve(directory, KEY);
+		assertTrue(Files.isRegularFile(file));
+		assertThat(FallbackFile.readStoredKey(file), is(Optional.of(KEY)));
+	}
+
+	@Test
+	void migratesFallbackFilesInFlatLayoutWhenResolved() throws Exception {
+		loader(USE_KEY_TOSTRING_AS_FILENAME, "flat value").load("key");
+		ShardedFallbackFileNamingStrategy<String> strategy = new ShardedFallbackFileNamingStrategy<>(USE_KEY_TOSTRING_AS_FILENAME);
+
+		assertThat(loader(strategy, null).load("key"), is("flat value"));
+		assertFalse(Files.exists(directory.resolve("key")));
+		assertThat(FallbackFile.readStoredKey(strategy.resolve(directory, "key")), is(Optional.empty()));
+
+		loader(strategy, "new value").load("key");
+		assertThat(loader(strategy, null).load("key"), is("new value"));
+		assertThat(FallbackFile.readStoredKey(strategy.resolve(directory, "key")), is(Optional.of("key")));
+	}
+
+	/**
+	 * @param backendValue the value of the underlying loader, or {@code null} to have it fail.
+	 */
+	private Loader<String, String> loader(FallbackFileNamingStrategy<? super String> strategy, String backendValue) {
+		return new LoaderWithDiskFallbackDecorator<String, String>(directory, strategy, new SerializingMarshaller<>())
+				.decorate(key -> {
+					if (backendValue == null) {
+						throw new SimulatedLoaderFailure();
+					}
+					return backendValue;
+				});
+	}
+}
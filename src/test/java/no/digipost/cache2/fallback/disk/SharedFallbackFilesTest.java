@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.disk;
+
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import no.digipost.cache2.loader.Loader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static no.digipost.cache2.fallback.disk.FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SharedFallbackFilesTest {
+
+	private static final String KEY = "shared";
+
+	@TempDir
+	Path directory;
+
+	private final Clock clock = Clock.systemDefaultZone();
+	private final AtomicInteger backendCalls = new AtomicInteger();
+
+	@Test
+	void usesFreshFallbackFileWrittenByAnotherProcess() throws Exception {
+		assertThat(node("first").load(KEY), is("first"));
+		assertThat(node("second").load(KEY), is("first"));
+		assertThat(backendCalls.get(), is(1));
+	}
+
+	@Test
+	void refreshesStaleFallbackFile() throws Exception {
+		node("first").load(KEY);
+		makeFallbackFileStale();
+
+		assertThat(node("second").load(KEY), is("second"));
+		assertThat(node("third").load(KEY), is("second"));
+		assertThat(backendCalls.get(), is(2));
+	}
+
+	@Test
+	void usesStaleFallbackFileWhileAnotherProcessIsRefreshingIt() throws Exception {
+		node("first").load(KEY);
+		makeFallbackFileStale();
+		LockedFile lock = new FallbackFile.Resolver<>(directory, USE_KEY_TOSTRING_AS_FILENAME, clock).resolveFor(KEY).lockedFile;
+		assertTrue(lock.tryLock());
+		try {
+			assertThat(node("second").load(KEY), is("first"));
+			assertThat(backendCalls.get(), is(1));
+		} finally {
+			lock.release();
+		}
+	}
+
+	@Test
+	void returnsLoadedValueWhenReleasingTheLockFails() throws Exception {
+		Loader<String, String> node = new LoaderWithDiskFallbackDecorator<String, String>(directory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>())
+				.withSharedFallbackFiles(Duration.ofMinutes(1))
+				.decorate(key -> {
+					Files.delete(directory.resolve(KEY + LockedFile.LOCK_FILE_POSTFIX));
+					return "loaded";
+				});
+		assertThat(node.load(KEY), is("loaded"));
+	}
+
+	private Loader<String, String> node(String backendValue) {
+		return new LoaderWithDiskFallbackDecorator<String, String>(directory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>())
+				.withSharedFallbackFiles(Duration.ofMinutes(1))
+				.decorate(key -> {
+					backendCalls.incrementAndGet();
+					return backendValue;
+				});
+	}
+
+	private void makeFallbackFileStale() throws Exception {
+		Files.setLastModifiedTime(directory.resolve(KEY), FileTime.from(Instant.now().minus(Duration.ofMinutes(2))));
+	}
+}
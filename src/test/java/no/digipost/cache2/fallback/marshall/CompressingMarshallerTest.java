@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.marshall;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+import static java.util.Collections.nCopies;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompressingMarshallerTest {
+
+	private final ArrayList<String> value = new ArrayList<>(nCopies(1000, "<element attribute=\"value\">content</element>"));
+	private final SerializingMarshaller<ArrayList<String>> serializing = new SerializingMarshaller<>();
+
+	@Test
+	void compressesAndDecompressesValues() throws Exception {
+		CompressingMarshaller<ArrayList<String>> compressing = new CompressingMarshaller<>(serializing, Deflater.BEST_SPEED, 1);
+		for (int i = 0; i < 3; i++) {
+			byte[] compressed = write(compressing, value);
+			assertThat(compressed.length * 10, lessThan(write(serializing, value).length));
+			assertThat(compressing.read(new ByteArrayInputStream(compressed)), is(value));
+		}
+	}
+
+	@Test
+	void readsValuesWrittenWithoutCompression() throws Exception {
+		byte[] uncompressed = write(serializing, value);
+		assertThat(new CompressingMarshaller<>(serializing).read(new ByteArrayInputStream(uncompressed)), is(value));
+	}
+
+	@Test
+	void rejectsInvalidCompressionLevel() {
+		assertThrows(IllegalArgumentException.class, () -> new CompressingMarshaller<>(serializing, 10));
+	}
+
+	private static <T> byte[] write(Marshaller<T> marshaller, T value) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		marshaller.write(value, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.testharness;
+
+import java.time.Duration;
+
+/**
+ * When a {@link SimulatedBackend} fails, given the time elapsed since it was started.
+ */
+@FunctionalInterface
+public interface FailureSchedule {
+
+	FailureSchedule NEVER = elapsedNanos -> false;
+
+	/**
+	 * The backend is down from {@code start} until {@code end}, e.g. to simulate an outage under load.
+	 */
+	static FailureSchedule downBetween(Duration start, Duration end) {
+		long startNanos = start.toNanos(), endNanos = end.toNanos();
+		return elapsedNanos -> elapsedNanos >= startNanos && elapsedNanos < endNanos;
+	}
+
+	/**
+	 * The backend fails in bursts lasting {@code duration}, repeating every {@code period}.
+	 */
+	static FailureSchedule bursts(Duration period, Duration duration) {
+		long periodNanos = period.toNanos(), durationNanos = duration.toNanos();
+		return elapsedNanos -> elapsedNanos % periodNanos >= periodNanos - durationNanos;
+	}
+
+	boolean failsAt(long elapsedNanos);
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.testharness;
+
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * The latencies of a {@link SimulatedBackend}.
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+	LatencyDistribution NONE = random -> 0;
+
+	static LatencyDistribution fixed(Duration latency) {
+		long nanos = latency.toNanos();
+		return random -> nanos;
+	}
+
+	/**
+	 * A log-normal distribution, which has the long tail typical for latencies of remote calls.
+	 *
+	 * @param median the median latency.
+	 * @param sigma the standard deviation of the latency's natural logarithm. E.g. {@code 1.0}
+	 *              yields a 99th percentile about 10 times the median.
+	 */
+	static LatencyDistribution logNormal(Duration median, double sigma) {
+		double mu = Math.log(median.toNanos());
+		return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+	}
+
+	/**
+	 * @return the next latency in nanoseconds.
+	 */
+	long nextNanos(Random random);
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.testharness;
+
+import no.digipost.cache2.loader.Loader;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A backend loading values with latencies from a {@link LatencyDistribution}, and failing
+ * with {@link SimulatedLoaderFailure} according to a {@link FailureSchedule}.
+ * A failing call also takes the time of the latency, as timeouts and failing
+ * connections usually do.
+ */
+public class SimulatedBackend<K> implements Loader<K, String> {
+
+	private final LatencyDistribution latency;
+	private final FailureSchedule failures;
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong failedCalls = new AtomicLong();
+	private final ThreadLocal<Boolean> lastCallFailed = ThreadLocal.withInitial(() -> false);
+	private volatile long startNanos = System.nanoTime();
+
+	public SimulatedBackend(LatencyDistribution latency, FailureSchedule failures) {
+		this.latency = latency;
+		this.failures = failures;
+	}
+
+	/**
+	 * Make the {@link FailureSchedule} relative to now.
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+	}
+
+	@Override
+	public String load(K key) {
+		calls.incrementAndGet();
+		Random random = ThreadLocalRandom.current();
+		long latencyNanos = latency.nextNanos(random);
+		if (latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+		boolean fails = failures.failsAt(System.nanoTime() - startNanos);
+		lastCallFailed.set(fails);
+		if (fails) {
+			failedCalls.incrementAndGet();
+			throw new SimulatedLoaderFailure();
+		}
+		return "value of " + key;
+	}
+
+	/**
+	 * @return whether the last call to the backend from the current thread failed.
+	 */
+	public boolean lastCallFailed() {
+		return lastCallFailed.get();
+	}
+
+	public void resetLastCall() {
+		lastCallFailed.set(false);
+	}
+
+	public long getCalls() {
+		return calls.get();
+	}
+
+	public long getFailedCalls() {
+		return failedCalls.get();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.testharness;
+
+import no.digipost.cache2.latency.LatencySnapshot;
+
+import java.time.Duration;
+
+/**
+ * The outcome of running a {@link SoakScenario}.
+ */
+public class SoakReport {
+
+	private final Duration duration;
+	private final long requests;
+	private final long errors;
+	private final LatencySnapshot latencies;
+	private final long backendCalls;
+	private final long backendFailures;
+	private final long loads;
+	private final long fallbackHits;
+
+	SoakReport(Duration duration, long requests, long errors, LatencySnapshot latencies,
+			long backendCalls, long backendFailures, long loads, long fallbackHits) {
+		this.duration = duration;
+		this.requests = requests;
+		this.errors = errors;
+		this.latencies = latencies;
+		this.backendCalls = backendCalls;
+		this.backendFailures = backendFailures;
+		this.loads = loads;
+		this.fallbackHits = fallbackHits;
+	}
+
+	public long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return the number of requests which failed, i.e. the value could neither be loaded from the backend nor the fallback.
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	public double getThroughput() {
+		return requests / (duration.toNanos() / 1e9);
+	}
+
+	/**
+	 * @return the latencies of all requests, including cache hits.
+	 */
+	public LatencySnapshot getLatencies() {
+		return latencies;
+	}
+
+	public long getBackendCalls() {
+		return backendCalls;
+	}
+
+	public long getBackendFailures() {
+		return backendFailures;
+	}
+
+	/**
+	 * @return the number of times the caches loaded a value, i.e. the number of cache misses.
+	 */
+	public long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * @return the number of loads which were served by the fallback because the backend failed.
+	 */
+	public long getFallbackHits() {
+		return fallbackHits;
+	}
+
+	/**
+	 * @return the fraction of failed backend calls which were served by the fallback,
+	 *         or {@link Double#NaN} if the backend did not fail.
+	 */
+	public double getFallbackHitRatio() {
+		return backendFailures == 0 ? Double.NaN : (double) fallbackHits / backendFailures;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Soaked for %s%n" +
+				"  requests:       %,d (%,.0f/s), %,d errors%n" +
+				"  latency:        %s%n" +
+				"  loads:          %,d%n" +
+				"  backend calls:  %,d, %,d failed%n" +
+				"  fallback hits:  %,d (%.1f%% of failed backend calls)",
+				duration, requests, getThroughput(), errors, latencies, loads, backendCalls, backendFailures,
+				fallbackHits, getFallbackHitRatio() * 100);
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.testharness;
+
+import no.digipost.cache2.fallback.disk.LoaderWithDiskFallbackDecorator;
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import no.digipost.cache2.inmemory.Cache;
+import no.digipost.cache2.latency.LatencyHistogram;
+import no.digipost.cache2.loader.Loader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static no.digipost.cache2.fallback.disk.FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+
+/**
+ * Runs a load against caches with disk fallback for a while, and reports how they behaved.
+ * <p>
+ * The load is run by a number of nodes, each having its own {@link Cache} and loader with disk
+ * fallback, sharing the same fallback directory and {@link SimulatedBackend}, as a number of
+ * processes would in production. Each node requests keys from a {@link ZipfianKeys Zipfian distribution}
+ * on a number of threads, as fast as it can. Give the backend a {@link FailureSchedule} to
+ * reproduce outages under load, e.g. with {@link FailureSchedule#downBetween(Duration, Duration)}.
+ * <p>
+ * This may be run with {@link #main(String[])} for longer soaks, which is not part of the test suite.
+ */
+public class SoakScenario {
+
+	/**
+	 * Runs a scenario where the backend is down for the middle third of the given duration.
+	 * Arguments, all optional: the duration in seconds (default 60), the number of nodes (default 4),
+	 * threads per node (default 8), and the number of keys (default 10 000).
+	 */
+	public static void main(String[] args) throws Exception {
+		Duration duration = Duration.ofSeconds(args.length > 0 ? Long.parseLong(args[0]) : 60);
+		int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int keys = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+		Path directory = Files.createTempDirectory("soak");
+
+		SimulatedBackend<Integer> backend = new SimulatedBackend<>(
+				LatencyDistribution.logNormal(Duration.ofMillis(5), 0.8),
+				FailureSchedule.downBetween(duration.dividedBy(3), duration.dividedBy(3).multipliedBy(2)));
+		System.out.println("Soaking for " + duration + " with " + nodes + " nodes of " + threads + " threads, " +
+				"backend down for the middle third, fallback directory " + directory);
+		SoakReport report = new SoakScenario(directory, backend)
+				.withNodes(nodes)
+				.withThreadsPerNode(threads)
+				.withKeys(new ZipfianKeys(keys))
+				.withDuration(duration)
+				.run();
+		System.out.println(report);
+	}
+
+
+	private final Path fallbackDirectory;
+	private final SimulatedBackend<Integer> backend;
+	private final int nodes;
+	private final int threadsPerNode;
+	private final ZipfianKeys keys;
+	private final Duration duration;
+	private final Duration timeToLive;
+	private final Duration sharedFallbackFreshness;
+
+	public SoakScenario(Path fallbackDirectory, SimulatedBackend<Integer> backend) {
+		this(fallbackDirectory, backend, 2, 4, new ZipfianKeys(1000), Duration.ofSeconds(10), Duration.ofSeconds(1), null);
+	}
+
+	private SoakScenario(
+			Path fallbackDirectory, SimulatedBackend<Integer> backend, int nodes, int threadsPerNode,
+			ZipfianKeys keys, Duration duration, Duration timeToLive, Duration sharedFallbackFreshness) {
+		this.fallbackDirectory = fallbackDirectory;
+		this.backend = backend;
+		this.nodes = nodes;
+		this.threadsPerNode = threadsPerNode;
+		this.keys = keys;
+		this.duration = duration;
+		this.timeToLive = timeToLive;
+		this.sharedFallbackFreshness = sharedFallbackFreshness;
+	}
+
+	public SoakScenario withNodes(int nodes) {
+		return new SoakScenario(fallbackDirectory, backend, nodes, threadsPerNode, keys, duration, timeToLive, sharedFallbackFreshness);
+	}
+
+	public SoakScenario withThreadsPerNode(int threadsPerNode) {
+		return new SoakScenario(fallbackDirectory, backend, nodes, threadsPerNode, keys, duration, timeToLive, sharedFallbackFreshness);
+	}
+
+	public SoakScenario withKeys(ZipfianKeys keys) {
+		return new SoakScenario(fallbackDirectory, backend, nodes, threadsPerNode, keys, duration, timeToLive, sharedFallbackFreshness);
+	}
+
+	public SoakScenario withDuration(Duration duration) {
+		return new SoakScenario(fallbackDirectory, backend, nodes, threadsPerNode, keys, duration, timeToLive, sharedFallbackFreshness);
+	}
+
+	/**
+	 * @param timeToLive how long the nodes cache values before loading them again.
+	 */
+	public SoakScenario withTimeToLive(Duration timeToLive) {
+		return new SoakScenario(fallbackDirectory, backend, nodes, threadsPerNode, keys, duration, timeToLive, sharedFallbackFreshness);
+	}
+
+	/**
+	 * Have the nodes use {@link LoaderWithDiskFallbackDecorator#withSharedFallbackFiles(Duration) shared fallback files}.
+	 */
+	public SoakScenario withSharedFallbackFiles(Duration freshness) {
+		return new SoakScenario(fallbackDirectory, backend, nodes, threadsPerNode, keys, duration, timeToLive, freshness);
+	}
+
+	public SoakReport run() throws InterruptedException {
+		LatencyHistogram latencies = new LatencyHistogram();
+		LongAdder requests = new LongAdder();
+		LongAdder errors = new LongAdder();
+		LongAdder loads = new LongAdder();
+		LongAdder fallbackHits = new LongAdder();
+		long backendCallsBefore = backend.getCalls();
+		long backendFailuresBefore = backend.getFailedCalls();
+
+		ExecutorService executor = Executors.newFixedThreadPool(nodes * threadsPerNode);
+		backend.start();
+		long start = System.nanoTime();
+		long deadline = start + duration.toNanos();
+		try {
+			for (int node = 0; node < nodes; node++) {
+				Cache<Integer, String> cache = Cache.create("soak-node-" + node, expireAfterWrite(timeToLive));
+				Loader<Integer, String> loader = countingFallbackHits(newFallbackDecorator().decorate(backend), loads, fallbackHits);
+				for (int thread = 0; thread < threadsPerNode; thread++) {
+					executor.execute(() -> {
+						Random random = ThreadLocalRandom.current();
+						while (System.nanoTime() < deadline) {
+							int key = keys.next(random);
+							long requestStart = System.nanoTime();
+							try {
+								cache.get(key, loader);
+							} catch (RuntimeException e) {
+								errors.increment();
+							}
+							latencies.recordSince(requestStart);
+							requests.increment();
+						}
+					});
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		executor.awaitTermination(duration.toMillis() + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
+
+		return new SoakReport(Duration.ofNanos(System.nanoTime() - start), requests.sum(), errors.sum(), latencies.snapshot(),
+				backend.getCalls() - backendCallsBefore, backend.getFailedCalls() - backendFailuresBefore, loads.sum(), fallbackHits.sum());
+	}
+
+	private LoaderWithDiskFallbackDecorator<Integer, String> newFallbackDecorator() {
+		LoaderWithDiskFallbackDecorator<Integer, String> decorator =
+				new LoaderWithDiskFallbackDecorator<>(fallbackDirectory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>());
+		return sharedFallbackFreshness != null ? decorator.withSharedFallbackFiles(sharedFallbackFreshness) : decorator;
+	}
+
+	private Loader<Integer, String> countingFallbackHits(Loader<Integer, String> loaderWithFallback, LongAdder loads, LongAdder fallbackHits) {
+		return key -> {
+			loads.increment();
+			backend.resetLastCall();
+			String value = loaderWithFallback.load(key);
+			if (backend.lastCallFailed()) {
+				fallbackHits.increment();
+			}
+			return value;
+		};
+	}
+}
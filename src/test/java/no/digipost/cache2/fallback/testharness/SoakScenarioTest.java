@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.testharness;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+class SoakScenarioTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void fallbackServesRequestsWhileBackendIsDownUnderLoad() throws Exception {
+		SimulatedBackend<Integer> backend = new SimulatedBackend<>(
+				LatencyDistribution.fixed(Duration.ofMillis(1)), FailureSchedule.downBetween(Duration.ofMillis(500), Duration.ofDays(1)));
+
+		SoakReport report = new SoakScenario(directory, backend)
+				.withNodes(2)
+				.withThreadsPerNode(2)
+				.withKeys(new ZipfianKeys(20))
+				.withTimeToLive(Duration.ofMillis(50))
+				.withDuration(Duration.ofMillis(1500))
+				.run();
+
+		assertThat(report.getRequests(), greaterThan(report.getLoads()));
+		assertThat(report.getBackendFailures(), greaterThan(0L));
+		assertThat(report.getFallbackHits(), greaterThan(0L));
+		assertThat(report.getFallbackHitRatio(), greaterThan(0.9));
+		assertThat(report.getLatencies().getCount(), is(report.getRequests()));
+	}
+
+	@Test
+	void zipfianKeysAreSkewedTowardsTheLowestRanks() {
+		ZipfianKeys keys = new ZipfianKeys(1000);
+		Random random = new Random(42);
+		int[] counts = new int[keys.getKeyCount()];
+		IntStream.range(0, 100_000).forEach(i -> counts[keys.next(random)]++);
+
+		assertThat(counts[0], greaterThan(counts[1]));
+		assertThat(counts[1], greaterThan(counts[10]));
+		assertThat(counts[10], greaterThan(counts[100]));
+		assertThat(counts[999], lessThan(100));
+	}
+}
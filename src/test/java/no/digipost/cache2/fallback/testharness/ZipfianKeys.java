@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.fallback.testharness;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates keys from {@code 0} to {@code keyCount - 1} following a Zipfian distribution, where
+ * the key of rank {@code k} is requested with a probability proportional to {@code 1 / (k + 1)^exponent}.
+ * An exponent around {@code 1} resembles typical production workloads, where a few keys are very
+ * hot while most keys are requested rarely.
+ */
+public class ZipfianKeys {
+
+	private final double[] cumulativeProbabilities;
+	private final double exponent;
+
+	public ZipfianKeys(int keyCount) {
+		this(keyCount, 1.0);
+	}
+
+	public ZipfianKeys(int keyCount, double exponent) {
+		if (keyCount <= 0) {
+			throw new IllegalArgumentException("Must have at least one key, but was " + keyCount);
+		}
+		this.exponent = exponent;
+		this.cumulativeProbabilities = new double[keyCount];
+		double sum = 0;
+		for (int rank = 0; rank < keyCount; rank++) {
+			sum += 1 / Math.pow(rank + 1, exponent);
+			cumulativeProbabilities[rank] = sum;
+		}
+		for (int rank = 0; rank < keyCount; rank++) {
+			cumulativeProbabilities[rank] /= sum;
+		}
+	}
+
+	public int next(Random random) {
+		int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+		return Math.min(index >= 0 ? index : -index - 1, cumulativeProbabilities.length - 1);
+	}
+
+	public int getKeyCount() {
+		return cumulativeProbabilities.length;
+	}
+
+	@Override
+	public String toString() {
+		return "Zipfian distribution of " + getKeyCount() + " keys with exponent " + exponent;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static no.digipost.cache2.inmemory.CacheConfig.adaptiveMaximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static no.digipost.cache2.inmemory.SizingDecision.Action.GROW;
+import static no.digipost.cache2.inmemory.SizingDecision.Action.SHRINK;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AdaptiveSizingTest {
+
+	private final CacheRegistry registry = new CacheRegistry();
+	private final List<SizingDecision> decisions = new ArrayList<>();
+	private final Random random = new Random(3);
+	private double heapUsage = 0.5;
+	private final AdaptiveSizing adaptiveSizing = new AdaptiveSizing(registry, () -> heapUsage, decisions::add);
+
+	@Test
+	void growsCacheWithinBoundsWhileHitRateImproves() {
+		Cache<Integer, String> cache = Cache.create(adaptiveMaximumSize(10, 100));
+		registry.register(cache);
+		assertThat(cache.getMaximumSize(), is(10L));
+
+		for (int interval = 0; interval < 30; interval++) {
+			skewedTraffic(cache);
+			adaptiveSizing.adjust();
+		}
+
+		assertThat(cache.getMaximumSize(), greaterThan(10L));
+		assertThat(cache.getMaximumSize(), lessThanOrEqualTo(100L));
+		assertThat(decisions.get(0).getAction(), is(GROW));
+		assertThat(decisions.get(0).getPreviousMaximumSize(), is(10L));
+	}
+
+	@Test
+	void shrinksCachesWhenHeapIsUnderPressure() {
+		Cache<Integer, String> cache = Cache.create(maximumSize(80), adaptiveMaximumSize(10, 100));
+		registry.register(cache);
+		heapUsage = 0.95;
+
+		for (int interval = 0; interval < 20; interval++) {
+			skewedTraffic(cache);
+			adaptiveSizing.adjust();
+		}
+
+		assertThat(cache.getMaximumSize(), is(10L));
+		assertThat(decisions, everyItem(hasProperty("action", is(SHRINK))));
+		assertThat(decisions.get(0).getNewMaximumSize(), is(60L));
+	}
+
+	@Test
+	void doesNotResizeCachesWithoutAdaptiveSize() {
+		Cache<Integer, String> cache = Cache.create(maximumSize(10));
+		registry.register(cache);
+		for (int interval = 0; interval < 5; interval++) {
+			skewedTraffic(cache);
+			adaptiveSizing.adjust();
+		}
+		assertThat(cache.getMaximumSize(), is(10L));
+		assertThat(decisions.isEmpty(), is(true));
+	}
+
+	@Test
+	void rejectsMaximumSizeOutsideOfAdaptiveBounds() {
+		assertThrows(IllegalArgumentException.class, () -> Cache.create(maximumSize(5), adaptiveMaximumSize(10, 100)));
+		assertThrows(IllegalArgumentException.class, () -> Cache.create(maximumSize(101), adaptiveMaximumSize(10, 100)));
+	}
+
+	private void skewedTraffic(Cache<Integer, String> cache) {
+		for (int i = 0; i < 5_000; i++) {
+			double r = random.nextDouble();
+			cache.get((int) (500 * r * r * r), () -> "value");
+		}
+	}
+}
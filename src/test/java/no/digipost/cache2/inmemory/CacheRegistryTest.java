@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.stream.Collectors.toList;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.recordStats;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+
+class CacheRegistryTest {
+
+	private final CacheRegistry registry = new CacheRegistry();
+	private final MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@AfterEach
+	void unexpose() {
+		registry.unexposeViaJmx();
+	}
+
+	@Test
+	void registersAllCreatedCaches() {
+		Cache<String, Integer> cache = Cache.create("registered-cache");
+		SingleCached<Integer> single = new SingleCached<>("registered-single", loads::incrementAndGet);
+
+		assertThat(CacheRegistry.getDefault().getCacheNames(), hasItem("registered-cache"));
+		assertThat(CacheRegistry.getDefault().getCacheNames(), hasItem("registered-single"));
+		assertThat(cache.get("key", loads::incrementAndGet) + single.get(), is(3));
+	}
+
+	@Test
+	void snapshotsSizeAndStats() {
+		Cache<String, Integer> cache = Cache.create("snapshot-cache", recordStats(), maximumSize(10));
+		registry.register(cache);
+		cache.get("a", loads::incrementAndGet);
+		cache.get("a", loads::incrementAndGet);
+		cache.get("b", loads::incrementAndGet);
+
+		List<CacheSnapshot> snapshot = registry.getSnapshot();
+		assertThat(snapshot.stream().map(CacheSnapshot::getName).collect(toList()), contains("snapshot-cache"));
+		assertThat(snapshot.get(0).getEstimatedSize(), is(2L));
+		assertThat(snapshot.get(0).getMaximumSize(), is(10L));
+		assertThat(snapshot.get(0).getStats().getHitCount(), is(1L));
+		assertThat(snapshot.get(0).getStats().getMissCount(), is(2L));
+	}
+
+	@Test
+	void exposesCachesThroughJmx() throws Exception {
+		Cache<String, Integer> cache = Cache.create("jmx-cache", recordStats());
+		registry.register(cache);
+		registry.exposeViaJmx(mbeanServer);
+		cache.get("a", loads::incrementAndGet);
+
+		ObjectName cacheName = new ObjectName("no.digipost.cache2:type=Cache,name=\"jmx-cache\"");
+		assertThat(mbeanServer.getAttribute(cacheName, "EstimatedSize"), is(1L));
+		assertThat(mbeanServer.getAttribute(cacheName, "MissCount"), is(1L));
+
+		mbeanServer.invoke(cacheName, "invalidateAll", new Object[0], new String[0]);
+		assertThat(cache.get("a", loads::incrementAndGet), is(2));
+		assertThat(mbeanServer.isRegistered(new ObjectName("no.digipost.cache2:type=CacheRegistry")), is(true));
+	}
+
+	@Test
+	void doesNotKeepGarbageCollectedCaches() throws InterruptedException {
+		registry.register(Cache.create("collectable-cache"));
+		for (int i = 0; i < 50 && !registry.getCaches().isEmpty(); i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertThat(registry.getCaches(), empty());
+	}
+}
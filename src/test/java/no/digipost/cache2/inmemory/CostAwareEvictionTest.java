@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.stream.IntStream;
+
+import static no.digipost.cache2.inmemory.CacheConfig.costAwareMaximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.executor;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+class CostAwareEvictionTest {
+
+	private final Cache<Integer, String> cache = Cache.create(costAwareMaximumSize(10, Duration.ofMillis(10)), executor(Runnable::run));
+
+	@Test
+	void weighsEntriesInverselyToTheirCost() {
+		CostAwareWeigher weigher = new CostAwareWeigher(Duration.ofMillis(10).toNanos());
+		assertThat(weigher.weightOf(0), is(CostAwareWeigher.FULL_WEIGHT));
+		assertThat(weigher.weightOf(Duration.ofMillis(10).toNanos()), is(CostAwareWeigher.FULL_WEIGHT));
+		assertThat(weigher.weightOf(Duration.ofMillis(40).toNanos()), is(CostAwareWeigher.FULL_WEIGHT / 4));
+		assertThat(weigher.weightOf(Duration.ofSeconds(10).toNanos()), is(1));
+	}
+
+	@Test
+	void holdsMaximumSizeOfCheapEntries() {
+		IntStream.range(0, 100).forEach(key -> cache.get(key, () -> loadCosting(Duration.ZERO, key)));
+		assertThat(cache.snapshot().getEstimatedSize(), lessThanOrEqualTo(10L));
+	}
+
+	@Test
+	void holdsMoreEntriesWhenTheyAreCostly() {
+		IntStream.range(0, 100).forEach(key -> cache.get(key, () -> loadCosting(Duration.ofSeconds(1), key)));
+		assertThat(cache.snapshot().getEstimatedSize(), is(100L));
+	}
+
+	@Test
+	void keepsCostReportedBeforeNestedLoad() {
+		Cache<Integer, String> otherCache = Cache.create(costAwareMaximumSize(1000, Duration.ofMillis(10)), executor(Runnable::run));
+		IntStream.range(0, 100).forEach(key -> cache.get(key, () -> {
+			Cache.reportLoadCost(Duration.ofSeconds(1));
+			return "value " + key + " with " + otherCache.get(key, () -> "cheap value");
+		}));
+		assertThat(cache.snapshot().getEstimatedSize(), is(100L));
+	}
+
+	@Test
+	void maximumSizeIsGivenInEntries() {
+		assertThat(cache.getMaximumSize(), is(10L));
+		cache.setMaximumSize(20);
+		assertThat(cache.getMaximumSize(), is(20L));
+		assertThat(cache.snapshot().getMaximumSize(), is(20L));
+	}
+
+	private static String loadCosting(Duration cost, int key) {
+		Cache.reportLoadCost(cost);
+		return "value " + key;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.inmemory.ReloadingTest.Versioned;
+import no.digipost.cache2.inmemory.ReloadingTest.VersionedLoader;
+import no.digipost.time.ControllableClock;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static java.time.Duration.ofMinutes;
+import static java.time.Instant.ofEpochMilli;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static no.digipost.cache2.inmemory.CacheConfig.clockTicker;
+import static no.digipost.cache2.inmemory.CacheConfig.executor;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.invalidateAllByGeneration;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.recordStats;
+import static no.digipost.cache2.inmemory.CacheConfig.retainExpiredValuesFor;
+import static no.digipost.cache2.inmemory.CacheConfig.taggedBy;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GenerationInvalidationTest {
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@Test
+	void invalidatesAllEntriesByStartingNewGeneration() {
+		Cache<Integer, String> cache = Cache.create(invalidateAllByGeneration, maximumSize(1000), recordStats());
+		IntStream.range(0, 100).forEach(key -> cache.get(key, this::load));
+
+		cache.invalidateAll();
+		IntStream.range(0, 100).forEach(key -> cache.get(key, this::load));
+
+		assertThat(loads.get(), is(200));
+		assertThat(cache.getCacheStats().getRequestCount(), is(200L));
+		assertThat(cache.getCacheStats().getMissCount(), is(200L));
+	}
+
+	@Test
+	void invalidatingSingleEntriesIsUnaffected() {
+		Cache<Integer, String> cache = Cache.create(invalidateAllByGeneration);
+		cache.get(1, this::load);
+		cache.get(2, this::load);
+
+		cache.invalidate(1);
+		cache.get(1, this::load);
+		cache.get(2, this::load);
+
+		assertThat(loads.get(), is(3));
+	}
+
+	@Test
+	void maximumSizeCarriesOverToNewGeneration() {
+		Cache<Integer, String> cache = Cache.create(invalidateAllByGeneration, maximumSize(1000));
+		cache.setMaximumSize(2000);
+
+		cache.invalidateAll();
+
+		assertThat(cache.getMaximumSize(), is(2000L));
+	}
+
+	@Test
+	void leavesRetainedExpiredValuesBehind() {
+		ControllableClock clock = ControllableClock.freezedAt(ofEpochMilli(1000));
+		VersionedLoader loader = new VersionedLoader();
+		Cache<String, Versioned> cache = new Cache<>("generations", asList(invalidateAllByGeneration,
+				expireAfterWrite(ofMinutes(1)), retainExpiredValuesFor(ofMinutes(10)), clockTicker(clock), executor(Runnable::run)));
+		cache.get("a", loader);
+		cache.get("b", loader);
+		clock.timePasses(ofMinutes(2));
+		cache.get("a", loader);
+
+		cache.invalidateAll();
+		cache.get("b", loader);
+
+		assertThat(loader.reloads.get(), is(1));
+		assertThat(loader.loads.get(), is(3));
+	}
+
+	@Test
+	void canNotBeCombinedWithTagging() {
+		assertThrows(IllegalArgumentException.class, () -> Cache.create(invalidateAllByGeneration, taggedBy((Integer key, String value) -> singleton(key))));
+	}
+
+	private String load(Integer key) {
+		loads.incrementAndGet();
+		return "value " + key;
+	}
+}
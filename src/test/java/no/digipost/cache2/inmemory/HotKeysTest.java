@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.stream.Collectors.toList;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.trackHotKeys;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+
+class HotKeysTest {
+
+	private final Random random = new Random(7);
+
+	@Test
+	void tracksMostAccessedKeys() {
+		Cache<Integer, String> cache = Cache.create(trackHotKeys(3));
+		for (int i = 0; i < 100_000; i++) {
+			int key = random.nextInt(10) < 6 ? random.nextInt(3) : 3 + random.nextInt(10_000);
+			cache.get(key, () -> "value");
+		}
+
+		List<HotKeys.HotKey<Integer>> mostAccessed = cache.getHotKeys().getMostAccessed();
+		assertThat(mostAccessed, hasSize(3));
+		assertThat(mostAccessed.stream().map(HotKeys.HotKey::getKey).collect(toList()), containsInAnyOrder(0, 1, 2));
+	}
+
+	@Test
+	void tracksMostMissedKeys() {
+		Cache<Integer, String> cache = Cache.create(trackHotKeys(1), expireAfterWrite(Duration.ZERO));
+		for (int i = 0; i < 1_000; i++) {
+			cache.get(42, () -> "always missing");
+			for (int j = 0; j < 5; j++) {
+				cache.get(random.nextInt(1_000_000), () -> "rarely missing");
+			}
+		}
+
+		assertThat(cache.getHotKeys().getMostMissed().stream().map(HotKeys.HotKey::getKey).collect(toList()), contains(42));
+	}
+
+	@Test
+	void noHotKeysWhenNotTracking() {
+		Cache<Integer, String> cache = Cache.create();
+		cache.get(1, () -> "value");
+		assertThat(cache.getHotKeys().getMostAccessed(), empty());
+		assertThat(cache.getHotKeys().getMostMissed(), empty());
+	}
+}
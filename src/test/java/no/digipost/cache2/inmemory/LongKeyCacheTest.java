@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.time.ControllableClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.time.Duration.ofSeconds;
+import static java.time.Instant.ofEpochMilli;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Stream.generate;
+import static no.digipost.DiggExceptions.mayThrow;
+import static no.digipost.cache2.inmemory.CacheConfig.clockTicker;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.recordStats;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+class LongKeyCacheTest {
+
+	private final AtomicInteger loads = new AtomicInteger();
+	private final ControllableClock clock = ControllableClock.freezedAt(ofEpochMilli(1000));
+
+	@Test
+	void resolvesValueOnceForEachKey() {
+		LongKeyCache<String> cache = LongKeyCache.create(recordStats());
+		for (int i = 0; i < 3; i++) {
+			assertThat(cache.get(42L, key -> key + "-" + loads.incrementAndGet()), is("42-1"));
+			assertThat(cache.get(-42L, key -> key + "-" + loads.incrementAndGet()), is("-42-2"));
+		}
+		assertThat(cache.getCacheStats().getHitCount(), is(4L));
+		assertThat(cache.getCacheStats().getMissCount(), is(2L));
+	}
+
+	@Test
+	void expiresValuesAfterWrite() {
+		LongKeyCache<Integer> cache = LongKeyCache.create(expireAfterWrite(ofSeconds(1)), clockTicker(clock));
+		assertThat(cache.get(1L, key -> loads.incrementAndGet()), is(1));
+		clock.timePasses(ofSeconds(1));
+		assertThat(cache.get(1L, key -> loads.incrementAndGet()), is(2));
+		assertThat(cache.get(1L, key -> loads.incrementAndGet()), is(2));
+	}
+
+	@Test
+	void keepsWithinMaximumSizeAndStillResolvesAllKeys() {
+		LongKeyCache<Long> cache = LongKeyCache.create(maximumSize(100));
+		for (long key = 0; key < 10_000; key++) {
+			assertThat(cache.get(key, k -> k * 2), is(key * 2));
+			assertThat(cache.estimatedSize(), lessThanOrEqualTo(100L));
+		}
+		for (long key = 0; key < 10_000; key++) {
+			assertThat(cache.get(key, k -> k * 2), is(key * 2));
+		}
+	}
+
+	@Test
+	void invalidatingKeys() {
+		LongKeyCache<Integer> cache = LongKeyCache.create();
+		for (long key = 0; key < 1000; key++) {
+			cache.get(key, k -> loads.incrementAndGet());
+		}
+		cache.invalidate(10L, 500L);
+		for (long key = 0; key < 1000; key++) {
+			cache.get(key, k -> loads.incrementAndGet());
+		}
+		assertThat(loads.get(), is(1002));
+
+		cache.invalidateAll();
+		assertThat(cache.estimatedSize(), is(0L));
+	}
+
+	@Test @Timeout(20)
+	void loadsValueOnlyOnceForConcurrentRetrievals() throws InterruptedException {
+		LongKeyCache<Integer> cache = LongKeyCache.create();
+		CountDownLatch startLoading = new CountDownLatch(1);
+		ExecutorService threadpool = Executors.newFixedThreadPool(20);
+		try {
+			List<Future<Integer>> values = generate(() -> threadpool.submit(() -> cache.get(7L, key -> {
+				startLoading.await();
+				return loads.incrementAndGet();
+			}))).limit(20).collect(toList());
+			Thread.sleep(100);
+			startLoading.countDown();
+			assertThat(values.stream().map(mayThrow((Future<Integer> value) -> value.get()).asUnchecked()).collect(toList()), everyItem(is(1)));
+		} finally {
+			threadpool.shutdown();
+			threadpool.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+}
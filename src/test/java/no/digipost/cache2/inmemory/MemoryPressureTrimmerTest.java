@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.trimOnMemoryPressure;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+class MemoryPressureTrimmerTest {
+
+	private final CacheRegistry registry = new CacheRegistry();
+	private final MemoryPressureTrimmer trimmer = new MemoryPressureTrimmer(registry, 0.8);
+
+	@Test
+	void trimsOldestEntriesProportionallyToPressure() {
+		Cache<Integer, String> cache = Cache.create(expireAfterWrite(Duration.ofHours(1)), trimOnMemoryPressure);
+		registry.register(cache);
+		IntStream.range(0, 100).forEach(key -> cache.get(key, () -> "value"));
+
+		assertThat(trimmer.onPressure(0.9), is(25L));
+
+		Set<Integer> remaining = IntStream.range(0, 100).filter(key -> cache.get(key, () -> null) != null).boxed().collect(toSet());
+		assertThat(remaining, is(IntStream.range(25, 100).boxed().collect(toSet())));
+	}
+
+	@Test
+	void trimsOnlyCachesWhichOptIn() {
+		Cache<Integer, String> optedIn = Cache.create(maximumSize(1000), trimOnMemoryPressure);
+		Cache<Integer, String> notOptedIn = Cache.create(maximumSize(1000));
+		registry.register(optedIn);
+		registry.register(notOptedIn);
+		IntStream.range(0, 100).forEach(key -> {
+			optedIn.get(key, () -> "value");
+			notOptedIn.get(key, () -> "value");
+		});
+
+		assertThat(trimmer.onPressure(0.5), is(0L));
+		assertThat(trimmer.onPressure(0.81), is(5L));
+		assertThat(trimmer.onPressure(1.0), is(48L));
+		assertThat(notOptedIn.snapshot().getEstimatedSize(), is(100L));
+	}
+
+	@Test
+	void restoresPreviousCollectionUsageThresholdWhenClosed() {
+		MemoryPoolMXBean tenured = MemoryPressureTrimmer.findTenuredPool(ManagementFactory.getMemoryPoolMXBeans());
+		long previous = tenured.getCollectionUsageThreshold();
+		tenured.setCollectionUsageThreshold(1024);
+		try {
+			MemoryPressureTrimmer started = MemoryPressureTrimmer.start(0.99);
+			try {
+				assertThat(tenured.getCollectionUsageThreshold(), greaterThan(1024L));
+			} finally {
+				started.close();
+			}
+			assertThat(tenured.getCollectionUsageThreshold(), is(1024L));
+		} finally {
+			tenured.setCollectionUsageThreshold(previous);
+		}
+	}
+
+	@Test
+	void setsThresholdOnlyOnTheTenuredPool() {
+		MemoryPressureTrimmer started = MemoryPressureTrimmer.start(0.99);
+		try {
+			List<String> thresholded = ManagementFactory.getMemoryPoolMXBeans().stream()
+					.filter(pool -> pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsageThreshold() > 0)
+					.map(MemoryPoolMXBean::getName)
+					.collect(toList());
+			assertThat(thresholded, contains(MemoryPressureTrimmer.findTenuredPool(ManagementFactory.getMemoryPoolMXBeans()).getName()));
+		} finally {
+			started.close();
+		}
+	}
+}
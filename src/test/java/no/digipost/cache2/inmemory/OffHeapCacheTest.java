@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.emptyList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+class OffHeapCacheTest {
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private final OffHeapCache<Integer, String> cache = OffHeapCache.create(
+			"off-heap-test", new SerializingMarshaller<String>(), 64 * 1024, 4 * 1024, emptyList());
+
+	@Test
+	void decodesCachedValueOnEachRetrieval() {
+		String loaded = cache.get(1, key -> "value" + loads.incrementAndGet());
+		String cached = cache.get(1, key -> "value" + loads.incrementAndGet());
+
+		assertThat(loaded, is("value1"));
+		assertThat(cached, is("value1"));
+		assertThat(cached, not(sameInstance(loaded)));
+		assertThat(loads.get(), is(1));
+	}
+
+	@Test
+	void reclaimsMemoryWhenInvalidated() throws InterruptedException {
+		cache.get(1, key -> "value");
+		assertThat(cache.getOffHeapStats().getUsedBytes(), greaterThan(0L));
+
+		cache.invalidateAll();
+		for (int i = 0; i < 100 && cache.getOffHeapStats().getUsedBytes() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertThat(cache.getOffHeapStats().getUsedBytes(), is(0L));
+	}
+
+	@Test
+	void staysWithinMaximumBytes() {
+		for (int i = 0; i < 10_000; i++) {
+			int key = i;
+			assertThat(cache.get(key, k -> "value for " + k), is("value for " + key));
+		}
+		assertThat(cache.getOffHeapStats().getAllocatedBytes(), lessThanOrEqualTo(64 * 1024L));
+	}
+
+	@Test
+	void returnsValuesTooLargeForSlabWithoutCachingThem() {
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			large.append('x');
+		}
+		assertThat(cache.get(1, key -> large.toString() + loads.incrementAndGet()), is(large + "1"));
+		assertThat(cache.get(1, key -> large.toString() + loads.incrementAndGet()), is(large + "2"));
+		assertThat(cache.getOffHeapStats().getAllocationFailures(), is(2L));
+	}
+
+	@Test
+	void keepsCachingWhenSizesOfValuesChange() {
+		for (int key = 0; key < 10_000; key++) {
+			cache.get(key, k -> "small " + k);
+		}
+		String larger = String.join("", Collections.nCopies(900, "x"));
+		for (int key = 100_000; key < 100_020; key++) {
+			cache.get(key, k -> larger + k + loads.incrementAndGet());
+		}
+		for (int key = 100_000; key < 100_020; key++) {
+			cache.get(key, k -> larger + k + loads.incrementAndGet());
+		}
+		assertThat(cache.getOffHeapStats().getAllocationFailures(), is(0L));
+		assertThat("most larger values are cached, though the eviction policy may reject some", loads.get(), lessThan(25));
+		assertThat(cache.getOffHeapStats().getAllocatedBytes(), lessThanOrEqualTo(64 * 1024L));
+	}
+
+	@Test
+	void evictsBoundedNumberOfEntriesToMakeRoomForValue() {
+		OffHeapCache<Integer, String> cache = OffHeapCache.create(
+				"off-heap-bounded-eviction-test", new SerializingMarshaller<String>(), 256 * 1024, 128 * 1024, emptyList());
+		for (int key = 0; key < 4096; key++) {
+			cache.get(key, k -> "small " + k);
+		}
+		long entriesBefore = cache.getOffHeapStats().getEntryCount();
+		String larger = String.join("", Collections.nCopies(900, "x"));
+
+		assertThat(cache.get(-1, k -> larger), is(larger));
+		assertThat(cache.getOffHeapStats().getAllocationFailures(), is(1L));
+		assertThat(entriesBefore - cache.getOffHeapStats().getEntryCount(), lessThanOrEqualTo(1024L));
+	}
+
+	@Test
+	void handsBackEmptySlabsToOtherSizeClasses() {
+		SlabAllocator allocator = new SlabAllocator(1024, 2048);
+		SlabAllocator.Chunk small = allocator.allocate(100);
+		SlabAllocator.Chunk large = allocator.allocate(1000);
+		assertThat(allocator.allocate(500), nullValue());
+
+		small.release();
+		assertThat(allocator.allocate(500), notNullValue());
+		assertThat(allocator.getAllocatedBytes(), is(2048L));
+		large.release();
+	}
+}
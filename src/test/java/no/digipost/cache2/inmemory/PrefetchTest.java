@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.loader.Loader;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static no.digipost.cache2.inmemory.CacheConfig.executor;
+import static no.digipost.cache2.inmemory.CacheConfig.prefetchRelated;
+import static no.digipost.cache2.inmemory.CacheConfig.recordStats;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+class PrefetchTest {
+
+	private final List<Integer> loadedKeys = new CopyOnWriteArrayList<>();
+	private final Loader<Integer, String> loader = key -> {
+		loadedKeys.add(key);
+		return "value-" + key;
+	};
+
+	@Test
+	void prefetchesRelatedKeysAfterMiss() {
+		Cache<Integer, String> cache = Cache.create(
+				prefetchRelated((Integer key, String value) -> asList(key + 1, key + 2), 100), executor(Runnable::run), recordStats());
+
+		assertThat(cache.get(1, loader), is("value-1"));
+		assertThat(loadedKeys, contains(1, 2, 3));
+
+		assertThat(cache.get(2, loader), is("value-2"));
+		assertThat(cache.get(2, loader), is("value-2"));
+		assertThat(loadedKeys, contains(1, 2, 3));
+		CacheStats stats = cache.getCacheStats();
+		assertThat(stats.getPrefetchedEntries(), is(2L));
+		assertThat(stats.getPrefetchHits(), is(1L));
+		assertThat(stats.getPrefetchUsefulness(), is(0.5));
+		assertThat(stats.getRequestCount(), is(3L));
+		assertThat(stats.getMissCount(), is(1L));
+	}
+
+	@Test
+	void prefetchedEntriesDoNotPrefetchFurther() {
+		Cache<Integer, String> cache = Cache.create(
+				prefetchRelated((Integer key, String value) -> singletonList(key + 1), 100), executor(Runnable::run));
+
+		cache.get(1, loader);
+		assertThat(loadedKeys, contains(1, 2));
+	}
+
+	@Test
+	void dropsPrefetchesBeyondTheRate() {
+		Cache<Integer, String> cache = Cache.create(
+				prefetchRelated((Integer key, String value) -> asList(key + 1, key + 2, key + 3), 2), executor(Runnable::run));
+
+		cache.get(1, loader);
+		assertThat(loadedKeys, contains(1, 2, 3));
+		assertThat(cache.getCacheStats().getDroppedPrefetches(), is(1L));
+	}
+
+	@Test
+	void dropsPrefetchesBeyondTheConcurrencyLimit() {
+		List<Runnable> pending = new CopyOnWriteArrayList<>();
+		Cache<Integer, String> cache = Cache.create(
+				prefetchRelated((Integer key, String value) -> asList(key + 1, key + 2), 100, 1), executor(pending::add));
+
+		cache.get(1, loader);
+		assertThat(pending.size(), is(1));
+		pending.forEach(Runnable::run);
+		assertThat(loadedKeys, contains(1, 2));
+		assertThat(cache.getCacheStats().getDroppedPrefetches(), is(1L));
+	}
+
+	@Test
+	void prefetchesDroppedByTheConcurrencyLimitDoNotCountAgainstTheRate() {
+		List<Runnable> pending = new CopyOnWriteArrayList<>();
+		Cache<Integer, String> cache = Cache.create(
+				prefetchRelated((Integer key, String value) -> asList(key + 1, key + 2, key + 3), 2, 1), executor(pending::add));
+
+		cache.get(1, loader);
+		pending.forEach(Runnable::run);
+		pending.clear();
+		cache.get(10, loader);
+		pending.forEach(Runnable::run);
+		assertThat(loadedKeys, contains(1, 2, 10, 11));
+		assertThat(cache.getCacheStats().getDroppedPrefetches(), is(4L));
+	}
+
+	@Test
+	void doesNotPrefetchForCallables() {
+		Cache<Integer, String> cache = Cache.create(
+				prefetchRelated((Integer key, String value) -> singletonList(key + 1), 100), executor(Runnable::run));
+
+		cache.get(1, () -> "value-1");
+		assertThat(cache.getCacheStats().getPrefetchedEntries(), is(0L));
+	}
+
+	@Test
+	void failingPrefetchesDoNotFailTheLookup() {
+		Cache<Integer, String> cache = Cache.create(
+				prefetchRelated((Integer key, String value) -> singletonList(key + 1), 100), executor(Runnable::run));
+
+		assertThat(cache.get(1, key -> {
+			if (key != 1) {
+				throw new IllegalStateException("unavailable");
+			}
+			return "value-1";
+		}), is("value-1"));
+		assertThat(cache.getCacheStats().getPrefetchedEntries(), is(0L));
+	}
+}
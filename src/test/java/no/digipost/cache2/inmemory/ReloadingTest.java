@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.fallback.FallbackKeeperFailedHandler;
+import no.digipost.cache2.fallback.LoaderWithFallback;
+import no.digipost.cache2.loader.ReloadingLoader;
+import no.digipost.time.ControllableClock;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.time.Duration.ofMinutes;
+import static java.time.Instant.ofEpochMilli;
+import static java.util.Arrays.asList;
+import static no.digipost.cache2.inmemory.CacheConfig.clockTicker;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.retainExpiredValuesFor;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+class ReloadingTest {
+
+	private final ControllableClock clock = ControllableClock.freezedAt(ofEpochMilli(1000));
+	private final VersionedLoader loader = new VersionedLoader();
+
+	@Test
+	void refreshGivesPresentValueToReloadingLoader() {
+		Cache<String, Versioned> cache = Cache.create();
+		Versioned first = cache.get("key", loader);
+
+		assertThat(cache.refresh("key", loader), sameInstance(first));
+		loader.version.incrementAndGet();
+		Versioned changed = cache.refresh("key", loader);
+
+		assertThat(changed.version, is(1));
+		assertThat(cache.get("key", loader), sameInstance(changed));
+		assertThat(loader.loads.get(), is(1));
+		assertThat(loader.reloads.get(), is(2));
+	}
+
+	@Test
+	void reloadsExpiredValueWhenRetained() {
+		Cache<String, Versioned> cache = new Cache<>("reloading", asList(
+				expireAfterWrite(ofMinutes(1)), retainExpiredValuesFor(ofMinutes(10)), clockTicker(clock)));
+		Versioned first = cache.get("key", loader);
+
+		clock.timePasses(ofMinutes(2));
+		assertThat(cache.get("key", loader), sameInstance(first));
+
+		loader.version.incrementAndGet();
+		clock.timePasses(ofMinutes(2));
+		assertThat(cache.get("key", loader).version, is(1));
+		assertThat(loader.loads.get(), is(1));
+		assertThat(loader.reloads.get(), is(2));
+	}
+
+	@Test
+	void loadsExpiredValueWhenNotRetained() {
+		Cache<String, Versioned> cache = new Cache<>("not-reloading", asList(expireAfterWrite(ofMinutes(1)), clockTicker(clock)));
+		cache.get("key", loader);
+
+		clock.timePasses(ofMinutes(2));
+		cache.get("key", loader);
+		assertThat(loader.loads.get(), is(2));
+		assertThat(loader.reloads.get(), is(0));
+	}
+
+	@Test
+	void invalidatedValueIsNotReloaded() {
+		Cache<String, Versioned> cache = new Cache<>("reloading", asList(
+				expireAfterWrite(ofMinutes(1)), retainExpiredValuesFor(ofMinutes(10)), clockTicker(clock)));
+		cache.get("key", loader);
+		clock.timePasses(ofMinutes(2));
+		cache.invalidate("key");
+
+		cache.get("key", loader);
+		assertThat(loader.loads.get(), is(2));
+		assertThat(loader.reloads.get(), is(0));
+	}
+
+	@Test
+	void fallbackIsNotKeptAgainWhenReloadedValueIsUnchanged() throws Exception {
+		List<Integer> kept = new ArrayList<>();
+		LoaderWithFallback<String, Versioned> withFallback = new LoaderWithFallback<>(
+				loader, key -> null, (key, value) -> kept.add(value.version), new FallbackKeeperFailedHandler.Rethrow());
+		Versioned first = withFallback.load("key");
+
+		assertThat(withFallback.reload("key", first), sameInstance(first));
+		loader.version.incrementAndGet();
+		withFallback.reload("key", first);
+
+		assertThat(kept, contains(0, 1));
+	}
+
+
+	static final class Versioned {
+		final int version;
+
+		Versioned(int version) {
+			this.version = version;
+		}
+	}
+
+	static final class VersionedLoader implements ReloadingLoader<String, Versioned> {
+		final AtomicInteger version = new AtomicInteger();
+		final AtomicInteger loads = new AtomicInteger();
+		final AtomicInteger reloads = new AtomicInteger();
+
+		@Override
+		public Versioned load(String key) {
+			loads.incrementAndGet();
+			return new Versioned(version.get());
+		}
+
+		@Override
+		public Versioned reload(String key, Versioned previous) {
+			reloads.incrementAndGet();
+			return previous.version == version.get() ? previous : new Versioned(version.get());
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.loader.ReloadingLoader;
+import no.digipost.time.ControllableClock;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.time.Duration.ofMinutes;
+import static java.time.Instant.ofEpochMilli;
+import static java.util.Arrays.asList;
+import static no.digipost.cache2.inmemory.CacheConfig.clockTicker;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.retainExpiredValuesFor;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+class SingleCachedTest {
+
+	private final AtomicReference<String> source = new AtomicReference<>("a");
+	private final SingleCached<String> value = new SingleCached<>(source::get);
+	private final List<String> changes = new ArrayList<>();
+
+	@Test
+	void notifiesOnlyWhenReloadedValueIsNotEqualToPrevious() {
+		value.onChange(changes::add);
+
+		value.get();
+		value.invalidate();
+		value.get();
+		source.set("b");
+		value.get();
+		value.invalidate();
+		value.get();
+
+		assertThat(changes, contains("a", "b"));
+	}
+
+	@Test
+	void givesAlreadyLoadedValueToNewSubscriber() {
+		value.get();
+		value.onChange(changes::add);
+		assertThat(changes, contains("a"));
+	}
+
+	@Test
+	void stopsNotifyingWhenSubscriptionIsClosed() {
+		SingleCached.Subscription subscription = value.onChange(changes::add);
+		subscription.close();
+		value.get();
+		assertThat(changes, empty());
+	}
+
+	@Test
+	void runsConsumersOnGivenExecutor() throws InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "change-subscriber"));
+		List<String> threads = new ArrayList<>();
+		value.onChange(changed -> threads.add(Thread.currentThread().getName()), executor);
+
+		value.get();
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+
+		assertThat(threads, contains(startsWith("change-subscriber")));
+		assertThat(asList(value.get(), value.get()), contains("a", "a"));
+		assertThat(threads.size(), is(1));
+	}
+
+	@Test
+	void consumerMayGetTheValue() {
+		List<String> gotten = new ArrayList<>();
+		value.onChange(changed -> gotten.add(value.get()));
+		value.get();
+		assertThat(gotten, contains("a"));
+	}
+
+	@Test
+	void reloadsWithReloadingLoader() {
+		ControllableClock clock = ControllableClock.freezedAt(ofEpochMilli(1000));
+		List<String> reloaded = new ArrayList<>();
+		SingleCached<String> reloading = new SingleCached<>("reloading-cachekey", new ReloadingLoader<String, String>() {
+			@Override
+			public String load(String key) {
+				return source.get();
+			}
+
+			@Override
+			public String reload(String key, String previous) {
+				reloaded.add(previous);
+				return source.get();
+			}
+		}, new Cache<>("reloading", asList(expireAfterWrite(ofMinutes(1)), retainExpiredValuesFor(ofMinutes(10)), clockTicker(clock))));
+		reloading.onChange(changes::add);
+
+		reloading.get();
+		source.set("b");
+		clock.timePasses(ofMinutes(2));
+		assertThat(reloading.get(), is("b"));
+		assertThat(reloaded, contains("a"));
+		assertThat(changes, contains("a", "b"));
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import no.digipost.time.ControllableClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofMinutes;
+import static java.time.Instant.ofEpochMilli;
+import static java.util.Arrays.asList;
+import static no.digipost.cache2.inmemory.CacheConfig.clockTicker;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class SnapshotAndRestoreTest {
+
+	@TempDir
+	Path directory;
+
+	private final ControllableClock clock = ControllableClock.freezedAt(ofEpochMilli(1000));
+	private final SerializingMarshaller<Integer> keyMarshaller = new SerializingMarshaller<>();
+	private final SerializingMarshaller<String> valueMarshaller = new SerializingMarshaller<>();
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@Test
+	void restoresAllEntriesFromSnapshot() throws IOException {
+		Path snapshot = directory.resolve("snapshot");
+		Cache<Integer, String> cache = Cache.create();
+		IntStream.range(0, 5000).forEach(key -> cache.get(key, () -> "value " + key));
+
+		assertThat(cache.snapshotTo(snapshot, keyMarshaller, valueMarshaller), is(5000));
+
+		Cache<Integer, String> restarted = Cache.create();
+		assertThat(restarted.restoreFrom(snapshot, keyMarshaller, valueMarshaller), is(5000));
+		IntStream.range(0, 5000).forEach(key -> assertThat(restarted.get(key, this::load), is("value " + key)));
+		assertThat(loads.get(), is(0));
+	}
+
+	@Test
+	void preservesRemainingTimeToLive() throws IOException {
+		Path snapshot = directory.resolve("snapshot");
+		Cache<Integer, String> cache = new Cache<>("ttl", asList(expireAfterWrite(ofMinutes(10)), clockTicker(clock)));
+		cache.get(1, () -> "old");
+		clock.timePasses(ofMinutes(8));
+		cache.get(2, () -> "new");
+		cache.snapshotTo(snapshot, keyMarshaller, valueMarshaller);
+
+		Cache<Integer, String> restarted = new Cache<>("ttl", asList(expireAfterWrite(ofMinutes(10)), clockTicker(clock)));
+		assertThat(restarted.restoreFrom(snapshot, keyMarshaller, valueMarshaller), is(2));
+		clock.timePasses(ofMinutes(3));
+		assertThat(restarted.get(1, this::load), is("loaded"));
+		assertThat(restarted.get(2, this::load), is("new"));
+		assertThat(loads.get(), is(1));
+	}
+
+	@Test
+	void snapshotsOnlyHottestEntries() throws IOException {
+		Path snapshot = directory.resolve("snapshot");
+		Cache<Integer, String> cache = new Cache<>("hottest", asList(expireAfterWrite(ofMinutes(10)), clockTicker(clock)));
+		IntStream.range(0, 100).forEach(key -> {
+			cache.get(key, () -> "value " + key);
+			clock.timePasses(ofMillis(10));
+		});
+
+		assertThat(cache.snapshotTo(snapshot, keyMarshaller, valueMarshaller, 10), is(10));
+
+		Cache<Integer, String> restarted = Cache.create(maximumSize(1000));
+		restarted.restoreFrom(snapshot, keyMarshaller, valueMarshaller);
+		IntStream.range(90, 100).forEach(key -> assertThat(restarted.get(key, this::load), is("value " + key)));
+		assertThat(loads.get(), is(0));
+	}
+
+	@Test
+	void restoresNothingWithoutSnapshot() throws IOException {
+		assertThat(Cache.<Integer, String>create().restoreFrom(directory.resolve("missing"), keyMarshaller, valueMarshaller), is(0));
+	}
+
+	private String load() {
+		loads.incrementAndGet();
+		return "loaded";
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import no.digipost.time.ControllableClock;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static java.time.Duration.ofMinutes;
+import static java.time.Instant.ofEpochMilli;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static no.digipost.cache2.inmemory.CacheConfig.clockTicker;
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.taggedBy;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TaggedEntriesTest {
+
+	private final AtomicInteger loads = new AtomicInteger();
+	private final ControllableClock clock = ControllableClock.freezedAt(ofEpochMilli(1000));
+
+	@Test
+	void invalidatesEntriesWithTag() {
+		Cache<Integer, String> cache = Cache.create(taggedBy((Integer key, String value) -> singleton(key % 3)));
+		IntStream.range(0, 30).forEach(key -> cache.get(key, this::load));
+
+		cache.invalidateTag(1);
+
+		IntStream.range(0, 30).forEach(key -> cache.get(key, this::load));
+		assertThat(loads.get(), is(40));
+		assertThat(cache.getCacheStats().getTagCount(), is(3L));
+		assertThat(cache.getCacheStats().getTagIndexEstimatedBytes(), greaterThan(0L));
+	}
+
+	@Test
+	void entriesMayHaveSeveralTags() {
+		Cache<String, String> cache = Cache.create(taggedBy((String key, String value) -> asList(key.split("/"))));
+		cache.get("org-1/settings", this::load);
+		cache.get("org-2/settings", this::load);
+		cache.get("org-2/users", this::load);
+
+		cache.invalidateTag("settings");
+		cache.invalidateTag("org-2");
+
+		assertThat(cache.getCacheStats().getTagCount(), is(0L));
+		cache.get("org-1/settings", this::load);
+		cache.get("org-2/users", this::load);
+		assertThat(loads.get(), is(5));
+	}
+
+	@Test
+	void keepsIndexConsistentWhenEntriesAreEvictedOrInvalidated() {
+		Cache<Integer, String> cache = new Cache<>("tagged", asList(
+				taggedBy((Integer key, String value) -> singleton("tag-" + key)), expireAfterWrite(ofMinutes(1)), maximumSize(100), clockTicker(clock)));
+		IntStream.range(0, 10).forEach(key -> cache.get(key, this::load));
+		cache.invalidate(0, 1);
+		clock.timePasses(ofMinutes(2));
+		cache.get(2, this::load);
+		cache.invalidateAll();
+		cache.get(3, this::load);
+
+		cache.invalidateTag("tag-3");
+		assertThat(cache.getCacheStats().getTagCount(), is(0L));
+		assertThat(cache.getCacheStats().getTagIndexEstimatedBytes(), is(0L));
+	}
+
+	@Test
+	void invalidatingTagsRequiresTaggingEntries() {
+		Cache<Integer, String> cache = Cache.create();
+		assertThrows(IllegalStateException.class, () -> cache.invalidateTag("tag"));
+		assertThat(cache.getCacheStats().getTagCount(), is(0L));
+	}
+
+	private String load() {
+		loads.incrementAndGet();
+		return "value";
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.inmemory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static no.digipost.cache2.inmemory.CacheConfig.deduplicateValues;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+class ValueDeduplicationTest {
+
+	@Test
+	void equalValuesShareOneInstance() {
+		Cache<Integer, String> cache = Cache.create(deduplicateValues((String value) -> 40 + 2L * value.length()));
+		IntStream.range(0, 100).forEach(key -> cache.get(key, () -> new String("permissions-" + key % 3)));
+
+		String permissions = cache.get(0, () -> "not loaded");
+		IntStream.range(0, 100).filter(key -> key % 3 == 0).forEach(key ->
+				assertThat(cache.get(key, () -> "not loaded"), sameInstance(permissions)));
+		CacheStats stats = cache.getCacheStats();
+		assertThat(stats.getDistinctValues(), is(3L));
+		assertThat(stats.getDeduplicatedValues(), is(97L));
+		assertThat(stats.getValueDeduplicationEstimatedBytesSaved(), is(97L * (40 + 2 * "permissions-0".length())));
+	}
+
+	@Test
+	void valuesAreNotDeduplicatedByDefault() {
+		Cache<Integer, String> cache = Cache.create();
+		String first = cache.get(1, () -> new String("value"));
+		assertThat(cache.get(2, () -> new String("value")), not(sameInstance(first)));
+		assertThat(cache.getCacheStats().getDeduplicatedValues(), is(0L));
+	}
+
+	@Test
+	void canonicalValuesAreReleasedWhenNoLongerReferenced() throws Exception {
+		ValueInterner<String> interner = new ValueInterner<>(null);
+		String canonical = interner.intern(new String("value"));
+		assertThat(interner.intern(new String("value")), sameInstance(canonical));
+		assertThat(interner.size(), is(1));
+
+		canonical = null;
+		String other = interner.intern(new String("other"));
+		for (int attempt = 0; attempt < 50 && interner.size() > 1; attempt++) {
+			System.gc();
+			Thread.sleep(10);
+			interner.intern(other);
+		}
+		assertThat(interner.size(), is(1));
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.invalidation.disk;
+
+import no.digipost.cache2.inmemory.Cache;
+import no.digipost.cache2.invalidation.Invalidation;
+import no.digipost.cache2.invalidation.KeyCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+class SharedDirectoryInvalidationBusTest {
+
+	@TempDir
+	Path directory;
+
+	private final Clock clock = Clock.systemDefaultZone();
+
+	@Test
+	void invalidatesSameNamedCacheInOtherProcess() {
+		SharedDirectoryInvalidationBus nodeA = newBus(1024);
+		SharedDirectoryInvalidationBus nodeB = newBus(1024);
+		AtomicInteger loads = new AtomicInteger();
+		Cache<String, Integer> cacheA = Cache.create("settings");
+		Cache<String, Integer> cacheB = Cache.create("settings");
+		cacheA.connectTo(nodeA, KeyCodec.STRING_KEYS);
+		cacheB.connectTo(nodeB, KeyCodec.STRING_KEYS);
+
+		assertThat(cacheB.get("key", loads::incrementAndGet), is(1));
+		cacheA.invalidate("key");
+		assertThat(cacheB.get("key", loads::incrementAndGet), is(1));
+
+		nodeA.flush();
+		nodeB.poll();
+		assertThat(cacheB.get("key", loads::incrementAndGet), is(2));
+	}
+
+	@Test
+	void mergesInvalidationsOfSameCacheAndDoesNotDeliverOwnInvalidations() {
+		SharedDirectoryInvalidationBus publisher = newBus(1024);
+		SharedDirectoryInvalidationBus subscriber = newBus(1024);
+		List<Invalidation> publisherReceived = new ArrayList<>();
+		List<Invalidation> subscriberReceived = new ArrayList<>();
+		publisher.subscribe("cache", publisherReceived::add);
+		subscriber.subscribe("cache", subscriberReceived::add);
+
+		publisher.publish(Invalidation.ofKeys("cache", asList("a", "b")));
+		publisher.publish(Invalidation.ofKeys("cache", asList("b", "c")));
+		publisher.flush();
+		publisher.publish(Invalidation.ofKeys("cache", asList("d")));
+		publisher.flush();
+		publisher.poll();
+		subscriber.poll();
+
+		assertThat(publisherReceived, empty());
+		assertThat(subscriberReceived, hasSize(1));
+		assertThat(subscriberReceived.get(0).getKeys(), containsInAnyOrder("a", "b", "c", "d"));
+	}
+
+	@Test
+	void skipsCorruptRecordsAndContinuesWithFollowingSegments() throws Exception {
+		SharedDirectoryInvalidationBus publisher = newBus(64);
+		SharedDirectoryInvalidationBus subscriber = newBus(64);
+		List<Invalidation> received = new ArrayList<>();
+		subscriber.subscribe("cache", received::add);
+
+		publisher.publish(Invalidation.ofKeys("cache", asList("first")));
+		publisher.flush();
+		Files.write(directory.resolve("invalidations.0.journal"), new byte[] {0x44, 0x50, 0x49, 0x56, 0, 0, 0, 1, 42, 1, 2, 3}, APPEND);
+		publisher.publish(Invalidation.ofKeys("cache", asList("second")));
+		publisher.flush();
+		publisher.publish(Invalidation.ofAll("cache"));
+		publisher.flush();
+
+		subscriber.poll();
+		assertThat(received, hasSize(1));
+		assertThat(received.get(0).isAll(), is(true));
+		assertThat(Files.exists(directory.resolve("invalidations.1.journal")), is(true));
+
+		received.clear();
+		publisher.publish(Invalidation.ofKeys("cache", asList("third")));
+		publisher.flush();
+		subscriber.poll();
+		assertThat(received, hasSize(1));
+		assertThat(received.get(0).getKeys(), contains("third"));
+	}
+
+	@Test
+	void publishesInvalidationOfAllEntriesInsteadOfTooLongKeys() {
+		SharedDirectoryInvalidationBus publisher = newBus(1024);
+		SharedDirectoryInvalidationBus subscriber = newBus(1024);
+		List<Invalidation> received = new ArrayList<>();
+		subscriber.subscribe("cache", received::add);
+
+		publisher.publish(Invalidation.ofKeys("cache", asList("short", String.join("", Collections.nCopies(70_000, "k")))));
+		assertThat(publisher.flush(), is(true));
+		subscriber.poll();
+		assertThat(received, hasSize(1));
+		assertThat(received.get(0).isAll(), is(true));
+
+		received.clear();
+		publisher.publish(Invalidation.ofKeys("cache", asList("next")));
+		assertThat(publisher.flush(), is(true));
+		subscriber.poll();
+		assertThat(received.get(0).getKeys(), contains("next"));
+	}
+
+	private SharedDirectoryInvalidationBus newBus(long maximumSegmentBytes) {
+		return new SharedDirectoryInvalidationBus(directory, maximumSegmentBytes, Duration.ofDays(1), clock);
+	}
+}
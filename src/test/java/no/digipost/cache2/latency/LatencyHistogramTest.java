@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.latency;
+
+import no.digipost.cache2.fallback.disk.LoaderWithDiskFallbackDecorator;
+import no.digipost.cache2.fallback.marshall.SerializingMarshaller;
+import no.digipost.cache2.inmemory.Cache;
+import no.digipost.cache2.loader.Loader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+
+import static no.digipost.cache2.fallback.disk.FallbackFileNamingStrategy.USE_KEY_TOSTRING_AS_FILENAME;
+import static no.digipost.cache2.latency.Latencies.Operation.FALLBACK_KEEP;
+import static no.digipost.cache2.latency.Latencies.Operation.FALLBACK_LOAD;
+import static no.digipost.cache2.latency.Latencies.Operation.LOAD;
+import static no.digipost.cache2.latency.Latencies.Operation.LOCK_WAIT;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+class LatencyHistogramTest {
+
+	@TempDir
+	Path fallbackDirectory;
+
+	@Test
+	void bucketsAreContiguousAndWithinRelativeErrorBound() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100_000; i++) {
+			long value = random.nextLong() >>> 1 + random.nextInt(63);
+			int bucket = LatencyHistogram.bucketOf(value);
+			long highest = LatencyHistogram.highestValueIn(bucket);
+			assertThat(highest, greaterThanOrEqualTo(value));
+			assertThat(highest - value, lessThanOrEqualTo(value / LatencyHistogram.SUB_BUCKETS));
+			if (bucket > 0) {
+				assertThat(LatencyHistogram.bucketOf(LatencyHistogram.highestValueIn(bucket - 1) + 1), is(bucket));
+			}
+		}
+		assertThat(LatencyHistogram.highestValueIn(LatencyHistogram.bucketOf(Long.MAX_VALUE)), is(Long.MAX_VALUE));
+	}
+
+	@Test
+	void percentilesOfRecordedLatencies() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int millis = 1; millis <= 1000; millis++) {
+			histogram.record(Duration.ofMillis(millis).toNanos());
+		}
+
+		LatencySnapshot snapshot = histogram.snapshot();
+		assertThat(snapshot.getCount(), is(1000L));
+		assertThat(snapshot.getMax(), is(Duration.ofMillis(1000)));
+		assertThat(snapshot.getMedian(), both(greaterThanOrEqualTo(Duration.ofMillis(500))).and(lessThanOrEqualTo(Duration.ofMillis(535))));
+		assertThat(snapshot.getPercentile(99), both(greaterThanOrEqualTo(Duration.ofMillis(990))).and(lessThanOrEqualTo(Duration.ofMillis(1000))));
+		assertThat(snapshot.getPercentile(100), is(Duration.ofMillis(1000)));
+	}
+
+	@Test
+	void resetsPerInterval() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.record(200);
+
+		assertThat(histogram.snapshotAndReset().getCount(), is(2L));
+		LatencySnapshot nextInterval = histogram.snapshot();
+		assertThat(nextInterval.getCount(), is(0L));
+		assertThat(nextInterval.getPercentile(99), is(Duration.ZERO));
+		assertThat(nextInterval.getMax(), is(Duration.ZERO));
+	}
+
+	@Test
+	void cacheRecordsLatencyOfLoads() {
+		Cache<String, String> cache = Cache.create();
+		cache.get("a", () -> "value");
+		cache.get("a", () -> "value");
+		cache.get("b", () -> "value");
+
+		assertThat(cache.getLatencies().snapshot(LOAD).getCount(), is(2L));
+		assertThat(cache.getLatencies().snapshotAndReset().get(FALLBACK_LOAD).getCount(), is(0L));
+		assertThat(cache.getLatencies().snapshot(LOAD).getCount(), is(0L));
+	}
+
+	@Test
+	void diskFallbackRecordsLatencyOfFallbackFileOperations() {
+		Cache<String, String> cache = Cache.create();
+		Loader<String, String> loader = new LoaderWithDiskFallbackDecorator<String, String>(fallbackDirectory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>())
+				.withLatenciesRecordedTo(cache.getLatencies())
+				.decorate(key -> "value");
+		Loader<String, String> failingLoader = new LoaderWithDiskFallbackDecorator<String, String>(fallbackDirectory, USE_KEY_TOSTRING_AS_FILENAME, new SerializingMarshaller<>())
+				.withLatenciesRecordedTo(cache.getLatencies())
+				.decorate(key -> { throw new IllegalStateException("failing"); });
+
+		assertThat(cache.get("a", loader), is("value"));
+		cache.invalidateAll();
+		assertThat(cache.get("a", failingLoader), is("value"));
+
+		assertThat(cache.getLatencies().snapshot(LOAD).getCount(), is(2L));
+		assertThat(cache.getLatencies().snapshot(LOCK_WAIT).getCount(), is(1L));
+		assertThat(cache.getLatencies().snapshot(FALLBACK_KEEP).getCount(), is(1L));
+		assertThat(cache.getLatencies().snapshot(FALLBACK_LOAD).getCount(), is(1L));
+	}
+
+	@Test
+	void discardsLatenciesNotRecorded() {
+		Latencies.NOT_RECORDED.record(LOAD, 100);
+		assertThat(Latencies.NOT_RECORDED.snapshot(LOAD).getCount(), is(0L));
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.loader;
+
+import no.digipost.cache2.fallback.FallbackKeeperFailedHandler;
+import no.digipost.cache2.fallback.LoaderWithFallback;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@Timeout(10)
+class BulkheadTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final CountDownLatch backendResponds = new CountDownLatch(1);
+	private final AtomicInteger concurrentCalls = new AtomicInteger();
+	private final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+
+	private final Loader<Integer, String> backend = key -> {
+		maxConcurrentCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+		try {
+			backendResponds.await();
+			return "value " + key;
+		} finally {
+			concurrentCalls.decrementAndGet();
+		}
+	};
+
+	@AfterEach
+	void shutdown() {
+		backendResponds.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	void limitsConcurrentLoadsAndLetsWaitingLoadsThrough() throws Exception {
+		Bulkhead<Integer, String> bulkhead = new Bulkhead<>("backend", 2, Duration.ofSeconds(5));
+		Loader<Integer, String> loader = bulkhead.decorate(backend);
+		List<Future<String>> values = new ArrayList<>();
+		for (int key = 0; key < 5; key++) {
+			int k = key;
+			values.add(executor.submit(() -> loader.load(k)));
+		}
+		while (bulkhead.getWaitingLoads() < 3) {
+			Thread.sleep(5);
+		}
+		assertThat(bulkhead.getConcurrentLoads(), is(2));
+
+		backendResponds.countDown();
+		for (int key = 0; key < 5; key++) {
+			assertThat(values.get(key).get(), is("value " + key));
+		}
+		assertThat(maxConcurrentCalls.get(), lessThanOrEqualTo(2));
+		assertThat(bulkhead.getRejectedLoads(), is(0L));
+	}
+
+	@Test
+	void rejectsLoadsWaitingTooLong() throws Exception {
+		Bulkhead<Integer, String> bulkhead = new Bulkhead<>("backend", 1, Duration.ofMillis(20));
+		Loader<Integer, String> loader = bulkhead.decorate(backend);
+		executor.submit(() -> loader.load(1));
+		while (bulkhead.getConcurrentLoads() < 1) {
+			Thread.sleep(5);
+		}
+
+		assertThrows(Bulkhead.BulkheadFull.class, () -> loader.load(2));
+		assertThat(bulkhead.getRejectedLoads(), is(1L));
+	}
+
+	@Test
+	void fallbackAnswersRejectedLoads() throws Exception {
+		Bulkhead<Integer, String> bulkhead = new Bulkhead<>("backend", 1, Duration.ofMillis(20));
+		Loader<Integer, String> loader = new LoaderWithFallback<>(
+				bulkhead.decorate(backend), key -> "fallback " + key, new FallbackKeeperFailedHandler.Rethrow());
+		executor.submit(() -> loader.load(1));
+		while (bulkhead.getConcurrentLoads() < 1) {
+			Thread.sleep(5);
+		}
+
+		assertThat(loader.load(2), is("fallback 2"));
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.cache2.trace;
+
+import no.digipost.cache2.inmemory.Cache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static no.digipost.cache2.inmemory.CacheConfig.expireAfterWrite;
+import static no.digipost.cache2.inmemory.CacheConfig.maximumSize;
+import static no.digipost.cache2.inmemory.CacheConfig.recordAccessTrace;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+class TraceReplayTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void replaysRecordedAccessesAgainstCandidateSizes() throws IOException {
+		Path traceFile = directory.resolve("trace");
+		try (AccessTraceRecorder recorder = AccessTraceRecorder.start(traceFile)) {
+			Cache<Integer, String> cache = Cache.create(recordAccessTrace(recorder));
+			for (int i = 0; i < 10_000; i++) {
+				cache.get(i % 100, () -> "value");
+			}
+		}
+
+		List<ReplayResult> results = TraceReplay.of(traceFile)
+				.candidate("small", maximumSize(10))
+				.candidate("large", maximumSize(1000))
+				.run();
+
+		ReplayResult recorded = results.get(0);
+		assertThat(recorded.getRequestCount(), is(10_000L));
+		assertThat(recorded.getLoadCount(), is(100L));
+		assertThat(results.get(1).getLoadCount(), greaterThan(1000L));
+		assertThat(results.get(2).getLoadCount(), is(100L));
+	}
+
+	@Test
+	void simulatesExpiryUsingTimestampsOfTrace() throws IOException {
+		Path traceFile = directory.resolve("trace");
+		try (AccessTraceRecorder recorder = AccessTraceRecorder.start(traceFile)) {
+			for (int minute = 0; minute < 60; minute++) {
+				recorder.record(42, Duration.ofMinutes(minute).toNanos(), minute > 0);
+			}
+		}
+
+		List<ReplayResult> results = TraceReplay.of(traceFile)
+				.candidate("expire after 10 minutes", expireAfterWrite(Duration.ofMinutes(10)))
+				.candidate("expire after 30 seconds", expireAfterWrite(Duration.ofSeconds(30)))
+				.run();
+
+		assertThat(results.get(1).getLoadCount(), is(6L));
+		assertThat(results.get(2).getLoadCount(), is(60L));
+	}
+
+	@Test
+	void scalesCandidateSizesBySampleRate() throws IOException {
+		Path fullTraceFile = directory.resolve("full-trace");
+		Path sampledTraceFile = directory.resolve("sampled-trace");
+		try (AccessTraceRecorder full = AccessTraceRecorder.start(fullTraceFile, 1.0, 1 << 18);
+				AccessTraceRecorder sampled = AccessTraceRecorder.start(sampledTraceFile, 0.1, 1 << 18)) {
+			Random random = new Random(42);
+			for (int i = 0; i < 200_000; i++) {
+				double r = random.nextDouble();
+				int key = (int) (20_000 * r * r);
+				full.record(key, i, false);
+				if (sampled.isSampled(key)) {
+					sampled.record(key, i, false);
+				}
+			}
+		}
+		assertThat(AccessTrace.readSampleRate(sampledTraceFile), closeTo(0.1, 0.001));
+
+		double fullHitRate = TraceReplay.of(fullTraceFile).candidate("2000", maximumSize(2000)).run().get(1).getHitRate();
+		double sampledHitRate = TraceReplay.of(sampledTraceFile).candidate("2000", maximumSize(2000)).run().get(1).getHitRate();
+		assertThat(sampledHitRate, closeTo(fullHitRate, 0.05));
+	}
+
+	@Test
+	void samplesAllAccessesOfSomeKeys() throws IOException {
+		Path traceFile = directory.resolve("trace");
+		try (AccessTraceRecorder recorder = AccessTraceRecorder.start(traceFile, 0.25)) {
+			Cache<Integer, String> cache = Cache.create(recordAccessTrace(recorder));
+			for (int i = 0; i < 10_000; i++) {
+				cache.get(i % 1000, () -> "value");
+			}
+		}
+
+		Set<Integer> sampledKeys = new HashSet<>();
+		long[] accesses = new long[1];
+		AccessTrace.read(traceFile, (timestampNanos, keyHash, hit) -> {
+			sampledKeys.add(keyHash);
+			accesses[0]++;
+		});
+		assertThat(sampledKeys.size(), allOf(greaterThan(200), lessThan(300)));
+		assertThat(accesses[0], is(sampledKeys.size() * 10L));
+	}
+}